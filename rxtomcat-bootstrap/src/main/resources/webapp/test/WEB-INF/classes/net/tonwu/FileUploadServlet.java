@@ -1,6 +1,8 @@
 package net.tonwu;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -9,8 +11,11 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.log4j.Logger;
 
+import net.tonwu.tomcat.container.servletx.Request;
+import net.tonwu.tomcat.http.multipart.Part;
+
 /***
- * TODO 文件上传
+ * 文件上传，上传的文件保存到应用的 upload 目录
  * 
  * @author tonwu.net
  */
@@ -24,6 +29,26 @@ public class FileUploadServlet extends HttpServlet {
 	}
 
 	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+	    File dir = new File(getServletContext().getRealPath("/upload"));
+	    dir.mkdirs();
 	    
+	    response.setContentType("text/plain;charset=UTF-8");
+	    PrintWriter out = response.getWriter();
+	    // Servlet 2.5 没有 getParts 方法，直接使用容器的 Request
+	    for (Part part : ((Request) request).getParts()) {
+	        String fileName = part.getSubmittedFileName();
+	        if (fileName == null) {
+	            out.println(part.getName() + "=" + request.getParameter(part.getName()));
+	            continue;
+	        }
+	        // 去掉客户端的路径
+	        fileName = new File(fileName.replace('\\', '/')).getName();
+	        if (fileName.isEmpty()) {
+	            continue;
+	        }
+	        part.write(new File(dir, fileName));
+	        log.info("保存上传文件 " + fileName + ", " + part.getSize() + " 字节");
+	        out.println(part.getName() + ": " + fileName + " " + part.getSize());
+	    }
 	}
 }
@@ -53,6 +53,9 @@ public class Loader extends URLClassLoader {
     private String classesPath;
     private String libraryPath;
     
+    /** 由文件变化事件设置，已加载的 class 或者 jar 有变动 */
+    private volatile boolean modified = false;
+    
     public Loader(ClassLoader parent, Context cxt) throws Exception {
         super(new URL[0], parent);
         context = cxt;
@@ -62,12 +65,62 @@ public class Loader extends URLClassLoader {
     }
 
     /**
-     * 检查类是否变动，是否要重新加载，这里实现的就是所谓的热加载
+     * 检查类是否变动，是否要重新加载，这里实现的就是所谓的热加载。
+     * <p>
+     * 是否变动由 ResourceWatcher 的事件通知设置，这里不再访问文件系统；
+     * 编译时往往连续修改多个 class 文件，后台线程周期性检查正好把它们合并成一次重新加载
      */
     public void backgroundProcess() {
-        boolean modified = false;
-        
-        // 检查已加载的 class 文件是否变动
+        if (modified) {
+            modified = false;
+            try {
+                context.reload();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /**
+     * 文件变化事件，只关心已加载的 class 文件以及 jar 的添加、修改、删除
+     * 
+     * @param file 变化的文件的绝对路径
+     */
+    public void resourceChanged(Path file) {
+        if (modified) {
+            return;
+        }
+        Path classes = Paths.get(classesPath).toAbsolutePath().normalize();
+        if (file.startsWith(classes)) {
+            String path = classes.relativize(file).toString().replace(File.separatorChar, '/');
+            ResourceEntry entry = resources.get(path);
+            if (entry != null && entry.type == 1) {
+                log.debug("Resource [{}] has been modified", path);
+                modified = true;
+            } else if (Files.isDirectory(file) || !Files.exists(file)) {
+                // 目录被移动或删除时，不会有目录下每个文件的事件
+                String prefix = path.isEmpty() ? "" : path + "/";
+                for (Entry<String, ResourceEntry> e : resources.entrySet()) {
+                    if (e.getValue().type == 1 && e.getKey().startsWith(prefix)) {
+                        log.debug("Resource [{}] has been modified", e.getKey());
+                        modified = true;
+                        break;
+                    }
+                }
+            }
+            return;
+        }
+        Path lib = Paths.get(libraryPath).toAbsolutePath().normalize();
+        if (file.startsWith(lib) && file.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(".jar")) {
+            log.debug("Library [{}] has been changed", file);
+            modified = true;
+        }
+    }
+    
+    /**
+     * 逐个检查已加载的 class 文件是否变动，只在有事件丢失或者无法监听目录时使用
+     */
+    public void checkModified() {
         for (Entry<String,ResourceEntry> entry : resources.entrySet()) {
             if ( entry.getValue().type == 1) {
                 long cachedLastModified = entry.getValue().lastModified;
@@ -82,17 +135,6 @@ public class Loader extends URLClassLoader {
                 }
             }
         }
-        
-        // 检查是否有 jar 添加或删除
-        // TODO
-        
-        if (modified) {
-            try {
-                context.reload();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
     }
     
     public void stop() {
@@ -28,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import net.tonwu.tomcat.container.servletx.Request;
 import net.tonwu.tomcat.container.servletx.Response;
 import net.tonwu.tomcat.http.Adapter;
+import net.tonwu.tomcat.http.Adapter.AsyncEvent;
 import net.tonwu.tomcat.http.RawRequest;
 import net.tonwu.tomcat.http.RawResponse;
 
@@ -58,14 +59,52 @@ public class AdapterImpl implements Adapter {
         containerResponse.setContainerRequest(containerRequest);
         
         // 进入容器生成响应
+        boolean async = false;
         try {
             if (postParseRequest(rawReq, containerRequest, rawResp, containerResponse)) {
                 connector.getContainer().getPipeline().handle(containerRequest, containerResponse);
             }
-            containerResponse.finish();
+            if (containerRequest.isAsyncStarted()) {
+                // 异步处理，保留容器的请求和响应对象，由 asyncDispatch 继续处理
+                async = true;
+                rawReq.setNote(containerRequest);
+            } else {
+                containerResponse.finish();
+            }
         } finally {
-            containerRequest.recycle();
-            containerResponse.recycle();
+            if (!async) {
+                containerRequest.recycle();
+                containerResponse.recycle();
+            }
+        }
+    }
+    
+    @Override
+    public void asyncDispatch(RawRequest rawReq, RawResponse rawResp, AsyncEvent event) throws Exception {
+        Request containerRequest = (Request) rawReq.getNote();
+        if (containerRequest == null) {
+            return;
+        }
+        Response containerResponse = containerRequest.getResp();
+        switch (event) {
+        case DISPATCH:
+            // 重新交给 Servlet 处理，Servlet 可以再次开始异步处理
+            containerRequest.setAsyncStarted(false);
+            connector.getContainer().getPipeline().handle(containerRequest, containerResponse);
+            break;
+        case TIMEOUT:
+            containerRequest.getAsyncContext().fireOnTimeout();
+            break;
+        case COMPLETE:
+            try {
+                containerRequest.getAsyncContext().fireOnComplete();
+                containerResponse.finish();
+            } finally {
+                rawReq.setNote(null);
+                containerRequest.recycle();
+                containerResponse.recycle();
+            }
+            break;
         }
     }
 
@@ -18,7 +18,9 @@ package net.tonwu.tomcat.container.core;
 import java.io.IOException;
 
 import net.tonwu.tomcat.http.Adapter;
+import net.tonwu.tomcat.http.Compression;
 import net.tonwu.tomcat.http.HttpProcessor;
+import net.tonwu.tomcat.http.multipart.MultipartConfig;
 import net.tonwu.tomcat.net.Handler;
 import net.tonwu.tomcat.net.NioEndpoint;
 import net.tonwu.tomcat.net.Processor;
@@ -38,6 +40,10 @@ public class Connector {
 	private NioEndpoint endpoint; 
 	// Adapter
 	private Adapter adapter;
+	// 所有处理器共享的响应压缩配置
+	private Compression compression = new Compression();
+	// 所有处理器共享的文件上传配置
+	private MultipartConfig multipartConfig = new MultipartConfig();
 	
 	public Connector() {
 	    adapter = new AdapterImpl(this);
@@ -47,6 +53,8 @@ public class Connector {
             public Processor createProcessor() {
                 HttpProcessor processor = new HttpProcessor();
                 processor.setAdaptor(adapter);
+                processor.setCompression(compression);
+                processor.setMultipartConfig(multipartConfig);
                 return processor;
             }
         });
@@ -74,6 +82,14 @@ public class Connector {
 	    context = cxt;
 	}
 	
+    public Compression getCompression() {
+        return compression;
+    }
+    
+    public MultipartConfig getMultipartConfig() {
+        return multipartConfig;
+    }
+    
     public Context getContainer() {
         return context;
     }
@@ -16,6 +16,7 @@
 package net.tonwu.tomcat.container.core;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
@@ -45,6 +46,8 @@ public class Context extends Container {
     
     public static final String AppWebXml = "/WEB-INF/web.xml";
     public static final String  RESOURCES_ATTR = "app.resources";
+    /** 连接器的响应压缩配置，DefaultServlet 据此决定是否发送预压缩的资源 */
+    public static final String  COMPRESSION_ATTR = "app.compression";
     
     private String appBase = "webapp";
     private String welcomeFile = "index.html";
@@ -82,9 +85,12 @@ public class Context extends Container {
     /** web.xml 中的 Filter */
     private HashMap<String, FilterWrapper> filters = new HashMap<>();
     
-    private Loader loader;
+    private volatile Loader loader;
     private Manager manager;
     
+    /** 监听应用目录的文件变化 */
+    private ResourceWatcher watcher;
+    
     /** context-param 配置的参数 */
     private final ConcurrentMap<String, String> parameters = new ConcurrentHashMap<>();
     
@@ -163,6 +169,10 @@ public class Context extends Container {
     @Override
     public void backgroundProcess() throws Exception {
         if (loader != null) {
+            if (watcher == null) {
+                // 无法监听文件变化，退化为轮询
+                loader.checkModified();
+            }
             loader.backgroundProcess();
         }
 
@@ -311,9 +321,31 @@ public class Context extends Container {
         // 初始化 web 应用类加载器
         loader = new Loader(parentClassLoader, this);
         
+        // 监听应用目录，文件变化时使资源缓存失效，class 变化时热加载
+        watcher = new ResourceWatcher(Paths.get(getDocBasePath()), new ResourceWatcher.Listener() {
+            @Override
+            public void resourceChanged(Path file) {
+                resources.resourceChanged(file);
+                loader.resourceChanged(file);
+            }
+            @Override
+            public void overflow() {
+                resources.clear();
+                loader.checkModified();
+            }
+        });
+        try {
+            watcher.start("ResourceWatcher[" + docBase + "]");
+            resources.setWatched(true);
+        } catch (IOException e) {
+            log.warn("无法监听应用目录 [" + getDocBasePath() + "]，使用定时检查", e);
+            watcher = null;
+        }
+        
         // 初始化并启动连接器
         connector = new Connector();
         connector.setContext(this);
+        getServletContext().setAttribute(COMPRESSION_ATTR, connector.getCompression());
         connector.start();
     }
     
@@ -321,6 +353,12 @@ public class Context extends Container {
     public void stop() throws Exception {
         connector.stop();
         
+        if (watcher != null) {
+            resources.setWatched(false);
+            watcher.stop();
+            watcher = null;
+        }
+        
         // destory filters
         for (FilterWrapper filterWrapper : filters.values()) {
             filterWrapper.release();
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.container.core;
+
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import net.tonwu.tomcat.container.core.WebResource.CachedResource;
+
+/**
+ * 分段 LRU（SLRU）缓存，同时限制条目数和缓存内容的总字节数。
+ * <p>
+ * 新资源先进入试用段（probation），在试用段中再次被访问时晋升到保护段（protected），
+ * 保护段满时把最久未访问的资源降级回试用段。淘汰总是优先从试用段开始，所以只访问一次的
+ * 资源（比如爬虫扫描随机的 URL）不会把经常访问的资源挤出缓存。
+ * <p>
+ * 所有操作都在同一把锁中完成，每个操作都是 O(1) 的
+ *
+ * @author tonwu.net
+ */
+class ResourceCache {
+
+    /** 试用段，访问顺序 */
+    private final LinkedHashMap<String, CachedResource> probation = new LinkedHashMap<>(16, 0.75f, true);
+    /** 保护段，访问顺序 */
+    private final LinkedHashMap<String, CachedResource> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** 最大条目数 */
+    private int maxEntries;
+    /** 缓存内容的最大总字节数 */
+    private long maxBytes;
+    /** 当前缓存内容的总字节数 */
+    private long bytes;
+
+    private long evictions;
+
+    ResourceCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 获取资源并记录一次访问，试用段中的资源会晋升到保护段
+     */
+    synchronized CachedResource get(String path) {
+        CachedResource resource = protectedSegment.get(path);
+        if (resource != null) {
+            return resource;
+        }
+        resource = probation.remove(path);
+        if (resource != null) {
+            protectedSegment.put(path, resource);
+            // 保护段最多占用 80% 的条目，超出的降级到试用段
+            int protectedMax = Math.max(1, maxEntries * 4 / 5);
+            while (protectedSegment.size() > protectedMax) {
+                Iterator<Entry<String, CachedResource>> it = protectedSegment.entrySet().iterator();
+                Entry<String, CachedResource> eldest = it.next();
+                it.remove();
+                probation.put(eldest.getKey(), eldest.getValue());
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * 放入资源，已存在的会被替换，超出限制时淘汰
+     */
+    synchronized void put(String path, CachedResource resource) {
+        CachedResource old = remove0(path);
+        if (old != null) {
+            bytes -= old.weight;
+        }
+        resource.weight = resource.contentSize();
+        probation.put(path, resource);
+        bytes += resource.weight;
+        evict();
+    }
+
+    /**
+     * 移除资源，只有缓存中的还是同一个对象时才移除
+     */
+    synchronized void remove(String path, CachedResource resource) {
+        CachedResource current = protectedSegment.get(path);
+        if (current == null) {
+            current = probation.get(path);
+        }
+        if (current == resource) {
+            remove0(path);
+            bytes -= resource.weight;
+        }
+    }
+
+    /**
+     * 资源内容延迟加载（比如大文件被映射）后，更新它占用的字节数
+     */
+    synchronized void resize(String path, CachedResource resource) {
+        CachedResource current = protectedSegment.get(path);
+        if (current == null) {
+            current = probation.get(path);
+        }
+        if (current == resource) {
+            long weight = resource.contentSize();
+            bytes += weight - resource.weight;
+            resource.weight = weight;
+            evict();
+        }
+    }
+
+    /**
+     * 移除指定文件，以及指定目录下的所有资源
+     *
+     * @param file 变化的文件的绝对路径
+     * @return 移除的资源个数
+     */
+    synchronized int invalidate(Path file) {
+        return invalidate(probation, file) + invalidate(protectedSegment, file);
+    }
+
+    private int invalidate(LinkedHashMap<String, CachedResource> segment, Path file) {
+        int removed = 0;
+        Iterator<CachedResource> it = segment.values().iterator();
+        while (it.hasNext()) {
+            CachedResource resource = it.next();
+            if (resource.isUnder(file)) {
+                it.remove();
+                bytes -= resource.weight;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private CachedResource remove0(String path) {
+        CachedResource resource = protectedSegment.remove(path);
+        if (resource == null) {
+            resource = probation.remove(path);
+        }
+        return resource;
+    }
+
+    /** 超出条目数或者字节数限制时，先淘汰试用段中最久未访问的，再淘汰保护段的 */
+    private void evict() {
+        while (size() > maxEntries || bytes > maxBytes) {
+            LinkedHashMap<String, CachedResource> segment = !probation.isEmpty() ? probation : protectedSegment;
+            if (segment.isEmpty()) {
+                break;
+            }
+            Iterator<CachedResource> it = segment.values().iterator();
+            CachedResource eldest = it.next();
+            it.remove();
+            bytes -= eldest.weight;
+            evictions++;
+        }
+    }
+
+    synchronized int size() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        evict();
+    }
+
+    synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    synchronized void clear() {
+        probation.clear();
+        protectedSegment.clear();
+        bytes = 0;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.container.core;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 使用 WatchService 监听 web 应用目录的变化，文件被创建、修改或删除时通知监听者。
+ * <p>
+ * WatchService 只监听单个目录，所以启动时注册整棵目录树，运行中新建的目录也会被注册。
+ * 有了事件通知，静态资源缓存和类加载器都不用再周期性地访问文件系统检查文件是否被修改
+ *
+ * @author tonwu.net
+ */
+public class ResourceWatcher implements Runnable {
+    final static Logger log = LoggerFactory.getLogger(ResourceWatcher.class);
+
+    /** 文件变化监听者 */
+    public interface Listener {
+        /**
+         * 文件或目录被创建、修改或删除
+         *
+         * @param file 变化的文件的绝对路径，已规范化
+         */
+        void resourceChanged(Path file);
+
+        /** 事件太多，有事件丢失，所有缓存的状态都不再可信 */
+        void overflow();
+    }
+
+    /** 监听的根目录 */
+    private final Path root;
+    private final Listener listener;
+
+    private WatchService watchService;
+    private Thread thread;
+
+    public ResourceWatcher(Path root, Listener listener) {
+        this.root = root.toAbsolutePath().normalize();
+        this.listener = listener;
+    }
+
+    /**
+     * 注册整棵目录树并启动监听线程
+     *
+     * @param threadName 线程名称
+     * @throws IOException 文件系统不支持监听或者注册失败
+     */
+    public void start(String threadName) throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            registerAll(root);
+        } catch (IOException e) {
+            watchService.close();
+            watchService = null;
+            throw e;
+        }
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** 注册目录及其所有子目录 */
+    private void registerAll(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                d.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    if (event.kind() == OVERFLOW) {
+                        log.debug("目录 [{}] 的变化事件溢出", dir);
+                        listener.overflow();
+                        continue;
+                    }
+                    Path file = dir.resolve((Path) event.context());
+                    if (log.isDebugEnabled()) {
+                        log.debug("[{}] {}", event.kind().name(), file);
+                    }
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(file)) {
+                        // 新建的目录，注册之前里面可能已经有文件，监听者会使目录下的缓存全部失效
+                        try {
+                            registerAll(file);
+                        } catch (IOException e) {
+                            log.warn("无法监听目录 [" + file + "]", e);
+                        }
+                    }
+                    listener.resourceChanged(file);
+                } catch (Throwable e) {
+                    log.error("", e);
+                }
+            }
+            // 目录被删除后 key 失效，不用处理
+            key.reset();
+        }
+    }
+
+    /**
+     * 停止监听
+     */
+    public void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.debug("WatchService close failed", e);
+            }
+            watchService = null;
+        }
+        thread = null;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+}
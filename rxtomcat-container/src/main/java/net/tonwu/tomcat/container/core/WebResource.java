@@ -15,64 +15,224 @@
  */
 package net.tonwu.tomcat.container.core;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 /**
- * 主要用于缓存 web 应用程序静态资源
+ * 主要用于缓存 web 应用程序静态资源。
+ * <p>
+ * 资源内容分两级缓存在堆外：小于 512KB 的文件读入直接缓冲区；更大的文件被访问过两次以上时，
+ * 使用 MappedByteBuffer 映射到内存。每个请求获取一个只读的 slice()，可以直接写入通道，
+ * 不占用 GC 管理的堆内存，也没有每个请求一次的拷贝。
+ * <p>
+ * 缓存同时限制条目数和内容的总字节数，使用分段 LRU 淘汰；不存在的资源也会缓存，
+ * 但只保留很短的时间。
+ * <p>
+ * 应用目录被 ResourceWatcher 监听时，文件变化由事件通知并使缓存失效，缓存不再过期，
+ * 请求处理时不会访问文件系统。
+ * <p>
+ * 可以压缩的资源还有一个 gzip 变体，优先使用同目录下较新的 .gz 文件，没有时在第一次
+ * 请求时压缩一次并和原资源一起缓存，之后的请求不再消耗 CPU 压缩
  * 
  * @author tonwu.net
  */
 public class WebResource {
     
+    /** 小于此大小的资源读入直接缓冲区 */
+    private static final int MAX_DIRECT_SIZE = 512 * 1024;
+    /** 大文件被访问多少次后使用内存映射 */
+    private static final int MAP_HITS = 2;
+    
     /** 关联的应用上下文 */
     private Context context;
     
+    /** 资源有效期，过期后检查文件是否被修改，单位毫秒 */
+    private long ttl = 5000;
+    /** 不存在的资源的有效期，单位毫秒 */
+    private long negativeTtl = 1000;
+    
+    /** 最多缓存的资源个数 */
+    private int cacheMaxEntries = 4096;
+    /** 缓存内容的最大总字节数，默认 64MB */
+    private long cacheMaxSize = 64 * 1024 * 1024;
+    private final ResourceCache resourceCache = new ResourceCache(cacheMaxEntries, cacheMaxSize);
+    
+    /** 是否有 ResourceWatcher 监听文件变化 */
+    private volatile boolean watched = false;
+    /** 收到的文件变化事件次数，用于检测加载资源期间发生的变化 */
+    private final AtomicLong changeCount = new AtomicLong();
+    
+    /** 缓存命中和未命中的次数 */
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    
     public WebResource(Context context) {
         this.context = context;
     }
 
-    private final ConcurrentMap<String, CachedResource> resourceCache = new ConcurrentHashMap<>();
-    
     public CachedResource getResource(String path) {
         CachedResource resource = resourceCache.get(path);
         
         // 检查缓存是否过期以及检查缓存是否被修改
         if (resource != null && !resource.validateResource()) {
-            resourceCache.remove(path);
+            // 旧的缓冲区由 GC 回收，映射的文件随之解除映射
+            resourceCache.remove(path, resource);
             resource = null;
         }
         
         if (resource == null) {
+            missCount.incrementAndGet();
+            long changes = changeCount.get();
             resource = new CachedResource(path);
-            resourceCache.putIfAbsent(path, resource);
-            
             resource.validateResource();
+            resourceCache.put(path, resource);
+            if (changeCount.get() != changes) {
+                // 加载期间有文件变化，事件可能在放入缓存前已经处理，不能保证缓存的是最新状态
+                resourceCache.remove(path, resource);
+            }
+        } else {
+            hitCount.incrementAndGet();
         }
         
+        resource.hits.incrementAndGet();
         return resource;
     }
+    
+    /**
+     * 文件或目录发生变化，移除它以及它下面的所有缓存资源
+     * 
+     * @param file 变化的文件的绝对路径
+     */
+    public void resourceChanged(Path file) {
+        changeCount.incrementAndGet();
+        resourceCache.invalidate(file);
+    }
+    
+    /** 清空缓存 */
+    public void clear() {
+        changeCount.incrementAndGet();
+        resourceCache.clear();
+    }
+    
+    public boolean isWatched() {
+        return watched;
+    }
+    
+    /** 设置为 true 后，缓存的资源不再过期，由文件变化事件使其失效 */
+    public void setWatched(boolean watched) {
+        this.watched = watched;
+    }
+    
+    /** 单个资源内容的最大缓存大小，超过时不映射，每次从文件读取 */
+    private long getObjectMaxSize() {
+        return getCacheMaxSize() / 20;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return resourceCache.getEvictions();
+    }
+    
+    /** 当前缓存的资源个数 */
+    public int getCacheSize() {
+        return resourceCache.size();
+    }
+    
+    /** 当前缓存内容的总字节数 */
+    public long getCachedBytes() {
+        return resourceCache.getBytes();
+    }
+
+    public long getCacheMaxSize() {
+        return cacheMaxSize;
+    }
+
+    public void setCacheMaxSize(long cacheMaxSize) {
+        this.cacheMaxSize = cacheMaxSize;
+        resourceCache.setMaxBytes(cacheMaxSize);
+    }
+
+    public int getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+        resourceCache.setMaxEntries(cacheMaxEntries);
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    public long getNegativeTtl() {
+        return negativeTtl;
+    }
+
+    public void setNegativeTtl(long negativeTtl) {
+        this.negativeTtl = negativeTtl;
+    }
+    
     /** 缓存资源对象 */
     public class CachedResource {
         private File resource = null;
         private String path; // 资源相对路径
+        /** 规范化的绝对路径，用于匹配文件变化事件 */
+        private Path file;
         
-        private long ttl = 5000; // 5s
+        /** 下次检查文件是否被修改的时间 */
         public long nextCheck;
         
+        /* 加载时记录的文件状态，避免每个请求都访问文件系统 */
+        private boolean exists;
+        private boolean directory;
+        
+        /** 在缓存中占用的字节数，由 ResourceCache 维护 */
+        long weight;
+        
         private long cachedLastModified = -1L;
         private long cachedContentLength = -1L;
         
-        private byte[] cachedContent;
+        /** 堆外缓存的资源内容，只读 */
+        private volatile ByteBuffer cachedContent;
+        /** 压缩生成的 gzip 变体，它的内容也计入原资源占用的缓存大小 */
+        private volatile CachedResource gzipVariant;
+        /** 已经尝试过压缩，但压缩后没有变小或者无法读取 */
+        private volatile boolean gzipUseless;
+        /** 查找同目录下 .gz 文件时记录的状态，为 null 表示还没有查找；不放入缓存，随原资源一起失效 */
+        private volatile CachedResource gzipProbe;
+        /** 可以使用的 .gz 文件，不存在或者比原文件旧时为 null */
+        private volatile CachedResource gzipSibling;
+        /** 不单独放入缓存的 .gz 文件所属的原资源，内容大小计入原资源 */
+        private CachedResource owner;
+        /** 访问次数，用于判断大文件是否是热点，并发请求的计数不能丢失 */
+        private final AtomicInteger hits = new AtomicInteger();
         
         private String mimeType;
         private String weakETag;
@@ -81,6 +241,17 @@ public class WebResource {
             this.path = path;
         }
         
+        /** 压缩生成的 gzip 变体，没有对应的文件，不放入缓存，随原资源一起失效 */
+        private CachedResource(CachedResource original, ByteBuffer compressed) {
+            this.path = original.path + ".gz";
+            this.exists = true;
+            this.cachedLastModified = original.cachedLastModified;
+            this.cachedContentLength = compressed.remaining();
+            this.cachedContent = compressed;
+            // 与原资源的 ETag 不同，缓存和条件请求才能区分两种表示
+            this.weakETag = "W/\"" + original.cachedContentLength + "-" + original.cachedLastModified + "-gzip\"";
+        }
+        
         public final String getETag() {
             if (weakETag == null) {
                 synchronized (this) {
@@ -88,7 +259,7 @@ public class WebResource {
                         long contentLength = getCachedContentLength();
                         long lastModified = getCachedLastModified();
                         if ((contentLength >= 0) || (lastModified >= 0)) {
-                            weakETag = "w/\"" + contentLength + "-" +
+                            weakETag = "W/\"" + contentLength + "-" +
                                        lastModified + "\"";
                         }
                     }
@@ -105,42 +276,172 @@ public class WebResource {
             long now = System.currentTimeMillis();
             if (resource == null) {
                 resource = new File(context.getRealPath(path));
-                cachedLastModified = resource.lastModified();
-                cachedContentLength = resource.length();
-                cachedContent = cacheLoad();
+                file = resource.toPath().toAbsolutePath().normalize();
+                exists = resource.exists();
+                if (exists) {
+                    directory = resource.isDirectory();
+                    cachedLastModified = resource.lastModified();
+                    cachedContentLength = resource.length();
+                    cachedContent = cacheLoad();
+                }
+            } else if (watched) {
+                return true;
+            } else if (now > nextCheck) {
+                // 缓存已过期，且被修改或者被创建、删除；查找过的 .gz 文件变化时也一起失效
+                CachedResource probe = gzipProbe;
+                if (isModified() || (probe != null && probe.isModified())) {
+                    return false;
+                }
             } else {
-                // 缓存已过期
-                if (now > nextCheck) {
-                    // 且被修改
-                    if (resource.lastModified() != getCachedLastModified()
-                            || resource.length() != getCachedContentLength()) {
-                        return false;
-                    }
-                } 
+                return true;
             }
-            nextCheck = ttl + now;
+            nextCheck = (exists ? ttl : negativeTtl) + now;
             return true;
         }
-        /** 小于 512KB 的静态资源缓存其字节数组 */
-        private byte[] cacheLoad() {
-            if (cachedContentLength > 0 && cachedContentLength < 512 * 1024) {
-                int size = (int) cachedContentLength;
-                byte[] result = new byte[size];
-
-                int pos = 0;
-                try (InputStream is = new FileInputStream(resource)) {
-                    while (pos < size) {
-                        int n = is.read(result, pos, size - pos);
-                        if (n < 0) {
+        
+        /** 文件被修改或者被创建、删除 */
+        private boolean isModified() {
+            if (resource.exists() != exists) {
+                return true;
+            }
+            return exists && (resource.lastModified() != getCachedLastModified()
+                    || resource.length() != getCachedContentLength());
+        }
+        
+        /** 是否是指定的文件，或者在指定的目录下；查找过的 .gz 文件变化时也要使原资源失效 */
+        boolean isUnder(Path changed) {
+            CachedResource probe = gzipProbe;
+            return (file != null && file.startsWith(changed)) || (probe != null && probe.isUnder(changed));
+        }
+        
+        /** 缓存的内容大小，包括压缩生成的变体和 .gz 文件 */
+        long contentSize() {
+            ByteBuffer content = cachedContent;
+            CachedResource variant = gzipVariant;
+            CachedResource sibling = gzipSibling;
+            return (content == null ? 0 : content.capacity()) + (variant == null ? 0 : variant.contentSize())
+                    + (sibling == null ? 0 : sibling.contentSize());
+        }
+        
+        /**
+         * 获取 gzip 变体。同目录下有不比原文件旧的 .gz 文件时使用它（也经过缓存），
+         * 否则第一次调用时压缩原资源，只压缩不超过单个资源最大缓存大小的文件
+         * 
+         * @return 变体资源，没有可用的变体时返回 null
+         */
+        public CachedResource getGzipVariant() {
+            if (!isFile() || path.endsWith(".gz")) {
+                return null;
+            }
+            CachedResource sibling = getGzipSibling();
+            if (sibling != null) {
+                sibling.hits.incrementAndGet();
+                return sibling;
+            }
+            CachedResource variant = gzipVariant;
+            if (variant != null || gzipUseless || cachedContentLength > getObjectMaxSize()) {
+                return variant;
+            }
+            synchronized (this) {
+                if (gzipVariant == null && !gzipUseless) {
+                    ByteBuffer compressed = compress();
+                    if (compressed == null) {
+                        gzipUseless = true;
+                    } else {
+                        gzipVariant = new CachedResource(this, compressed);
+                        resourceCache.resize(path, this);
+                    }
+                }
+                return gzipVariant;
+            }
+        }
+        
+        /**
+         * 查找同目录下不比原文件旧的 .gz 文件。只查找一次，不存在时也记住结果，不会在缓存中
+         * 为每个资源留下一个不存在的条目；.gz 文件的变化由原资源的过期检查或者文件变化事件发现
+         */
+        private CachedResource getGzipSibling() {
+            if (gzipProbe == null) {
+                synchronized (this) {
+                    if (gzipProbe == null) {
+                        CachedResource probe = new CachedResource(path + ".gz");
+                        probe.owner = this;
+                        probe.validateResource();
+                        if (probe.isFile() && probe.getCachedLastModified() >= cachedLastModified) {
+                            gzipSibling = probe;
+                            resourceCache.resize(path, this);
+                        }
+                        gzipProbe = probe;
+                    }
+                }
+            }
+            return gzipSibling;
+        }
+        
+        /** 使用最高压缩级别压缩，只压缩一次，多花点时间是值得的 */
+        private ByteBuffer compress() {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream((int) (cachedContentLength / 4) + 64);
+            try (InputStream is = getInputStream()) {
+                if (is == null) {
+                    return null;
+                }
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bos, 8192) {
+                    {
+                        def.setLevel(Deflater.BEST_COMPRESSION);
+                    }
+                }) {
+                    byte[] buffer = new byte[8192];
+                    int len;
+                    while ((len = is.read(buffer)) != -1) {
+                        gzip.write(buffer, 0, len);
+                    }
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+                return null;
+            }
+            if (bos.size() >= cachedContentLength) {
+                return null;
+            }
+            ByteBuffer result = ByteBuffer.allocateDirect(bos.size());
+            result.put(bos.toByteArray());
+            result.flip();
+            return result.asReadOnlyBuffer();
+        }
+        
+        /** 小于 512KB 的静态资源读入直接缓冲区 */
+        private ByteBuffer cacheLoad() {
+            if (cachedContentLength > 0 && cachedContentLength < MAX_DIRECT_SIZE
+                    && cachedContentLength <= getObjectMaxSize()) {
+                try (FileChannel fc = FileChannel.open(resource.toPath(), StandardOpenOption.READ)) {
+                    ByteBuffer result = ByteBuffer.allocateDirect((int) cachedContentLength);
+                    while (result.hasRemaining()) {
+                        if (fc.read(result) < 0) {
                             break;
                         }
-                        pos += n;
                     }
+                    result.flip();
+                    return result.asReadOnlyBuffer();
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                    return null;
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * 映射大文件，映射后文件被截断时访问会出错，但资源会在 ttl 后被检测到修改并移除
+         */
+        private ByteBuffer cacheMap() {
+            if (cachedContentLength >= MAX_DIRECT_SIZE && cachedContentLength <= Integer.MAX_VALUE) {
+                try (FileChannel fc = FileChannel.open(resource.toPath(), StandardOpenOption.READ)) {
+                    // 关闭通道不会影响已经建立的映射
+                    return fc.map(FileChannel.MapMode.READ_ONLY, 0, cachedContentLength);
                 } catch (IOException ioe) {
                     ioe.printStackTrace();
                     return null;
                 }
-                return result;
             }
             return null;
         }
@@ -167,11 +468,12 @@ public class WebResource {
         }
 
         public boolean exists() {
-            return resource.exists();
+            return exists;
         }
 
+        /** 是否是文件，压缩生成的变体没有对应的文件，不是文件 */
         public boolean isFile() {
-            return resource.isFile();
+            return exists && !directory && resource != null;
         }
 
         public String getName() {
@@ -179,17 +481,58 @@ public class WebResource {
         }
 
         public boolean isDirectory() {
-            return resource.isDirectory();
+            return directory;
         }
 
-        public byte[] getContent() {
-            return cachedContent;
+        /** 文件的规范路径，零拷贝发送时使用，获取失败返回 null */
+        public String getCanonicalPath() {
+            try {
+                return resource.getCanonicalPath();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * 获取缓存的资源内容，大文件访问次数达到 MAP_HITS 时才映射
+         * 
+         * @return 只读的 slice()，每个请求独立的读取位置；没有缓存时返回 null
+         */
+        public ByteBuffer getContent() {
+            ByteBuffer content = cachedContent;
+            if (content == null && hits.get() >= MAP_HITS && cachedContentLength >= MAX_DIRECT_SIZE
+                    && cachedContentLength <= getObjectMaxSize()) {
+                synchronized (this) {
+                    if (cachedContent == null) {
+                        cachedContent = cacheMap();
+                        CachedResource entry = owner == null ? this : owner;
+                        resourceCache.resize(entry.path, entry);
+                    }
+                    content = cachedContent;
+                }
+            }
+            return content == null ? null : content.slice();
         }
         
-        /** 大小超过 512KB 时，使用 InputStream 底层流读取 */
+        /** 没有缓存资源内容时，使用 InputStream 底层流读取 */
         public InputStream getInputStream(){
-            if (cachedContent != null) {
-                return new ByteArrayInputStream(cachedContent);
+            final ByteBuffer content = getContent();
+            if (content != null) {
+                return new InputStream() {
+                    @Override
+                    public int read() throws IOException {
+                        return content.hasRemaining() ? content.get() & 0xff : -1;
+                    }
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        if (!content.hasRemaining()) {
+                            return -1;
+                        }
+                        len = Math.min(len, content.remaining());
+                        content.get(b, off, len);
+                        return len;
+                    }
+                };
             } else {
                 try {
                     return new FileInputStream(resource);
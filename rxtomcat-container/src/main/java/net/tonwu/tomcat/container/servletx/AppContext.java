@@ -136,7 +136,7 @@ public class AppContext implements ServletContext {
 
     @Override
     public String getRealPath(String path) {
-        return null;
+        return context.getRealPath(path);
     }
 
     @Override
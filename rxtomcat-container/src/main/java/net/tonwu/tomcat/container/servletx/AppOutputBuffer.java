@@ -105,22 +105,33 @@ public class AppOutputBuffer extends ServletOutputStream {
         isNew = false;
     }
     
+    /**
+     * 写入 ByteBuffer，先发送已缓存的数据，再把它直接交给连接器发送，不拷贝到 bodyBytes 中，
+     * 用于发送堆外缓存的静态资源
+     */
+    public void write(ByteBuffer src) throws IOException {
+        if (bodyChars.remaining() > 0) {
+            flushCharBuffer();
+        }
+        flushByteBuffer();
+        if (src.hasRemaining()) {
+            rawResp.doWrite(src);
+        }
+        isNew = false;
+    }
+    
     private void appendByteArray(byte[] b, int off, int len) throws IOException {
         if (len == 0) {
             return;
         }
 
-        // 发送剩余数据
-        int limit = bodyBytes.capacity();
-        while (len >= limit) {
+        // 大于缓冲区的数据直接发送，不再拷贝
+        if (len >= bodyBytes.capacity()) {
             rawResp.doWrite(ByteBuffer.wrap(b, off, len));
-            len = len - limit;
-            off = off + limit;
+            return;
         }
         // 还有剩余数据，写入 bodyBytes 中
-        if (len > 0) {
-            transfer(b, off, len, bodyBytes);
-        }
+        transfer(b, off, len, bodyBytes);
     }
     
     /**
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.container.servletx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.tonwu.tomcat.http.ActionHook.ActionCode;
+import net.tonwu.tomcat.http.RawRequest;
+
+/**
+ * 异步请求的上下文，类似 Servlet 3 的 AsyncContext，由 Request.startAsync 创建。
+ * <p>
+ * Servlet 返回后容器线程被释放，请求和响应保持打开，应用可以在任意线程中生成响应，
+ * 最后调用 complete 结束响应，或者调用 dispatch 重新交给 Servlet 处理。
+ * 在超时时间内都没有调用时，通知 AsyncListener 并结束响应
+ * 
+ * @author tonwu.net
+ */
+public class AsyncContext {
+    final static Logger log = LoggerFactory.getLogger(AsyncContext.class);
+    
+    private final Request request;
+    private final Response response;
+    private final RawRequest rawReq;
+    
+    private final List<AsyncListener> listeners = new ArrayList<>();
+    private long timeout;
+    /** 本次异步处理是否已经调用了 complete 或 dispatch */
+    private volatile boolean finished = false;
+
+    AsyncContext(Request request, Response response, RawRequest rawReq) {
+        this.request = request;
+        this.response = response;
+        this.rawReq = rawReq;
+    }
+    
+    /** 开始新一轮异步处理，dispatch 后可以再次开始 */
+    void start(long defaultTimeout) {
+        rawReq.action(ActionCode.ASYNC_START, null);
+        finished = false;
+        timeout = defaultTimeout;
+    }
+
+    public HttpServletRequest getRequest() {
+        return request;
+    }
+
+    public HttpServletResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * 结束异步处理，容器在线程池中完成响应，可以在任意线程中调用
+     * 
+     * @throws IllegalStateException 没有开始异步处理，或者已经调用了 complete、dispatch
+     */
+    public void complete() {
+        rawReq.action(ActionCode.ASYNC_COMPLETE, null);
+        finished = true;
+    }
+
+    /**
+     * 把请求重新交给 Servlet 处理，Servlet 可以再次开始异步处理，可以在任意线程中调用
+     * 
+     * @throws IllegalStateException 没有开始异步处理，或者已经调用了 complete、dispatch
+     */
+    public void dispatch() {
+        rawReq.action(ActionCode.ASYNC_DISPATCH, null);
+        finished = true;
+    }
+
+    /**
+     * 设置超时时间，必须在开始异步处理的 Servlet 返回之前调用
+     * 
+     * @param timeout 单位毫秒，小于等于 0 表示不超时
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+        rawReq.action(ActionCode.ASYNC_SETTIMEOUT, timeout);
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void addListener(AsyncListener listener) {
+        listeners.add(listener);
+    }
+
+    /** 通知监听器超时，都没有调用 complete 或 dispatch 时以 500 结束响应 */
+    public void fireOnTimeout() {
+        for (AsyncListener listener : listeners) {
+            try {
+                listener.onTimeout(this);
+            } catch (Throwable t) {
+                log.error("AsyncListener.onTimeout 异常", t);
+            }
+        }
+        if (!finished && !response.isCommitted()) {
+            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /** 通知监听器异步处理结束 */
+    public void fireOnComplete() {
+        for (AsyncListener listener : listeners) {
+            try {
+                listener.onComplete(this);
+            } catch (Throwable t) {
+                log.error("AsyncListener.onComplete 异常", t);
+            }
+        }
+    }
+}
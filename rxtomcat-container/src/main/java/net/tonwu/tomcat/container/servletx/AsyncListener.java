@@ -0,0 +1,35 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.container.servletx;
+
+/**
+ * 异步请求的监听器，在容器线程中回调
+ * 
+ * @author tonwu.net
+ */
+public interface AsyncListener {
+
+    /**
+     * 异步处理结束，响应即将完成
+     */
+    void onComplete(AsyncContext asyncContext);
+
+    /**
+     * 异步处理超时。监听器可以生成响应并调用 complete 或 dispatch，
+     * 都没有调用时，容器以 500 状态码结束响应
+     */
+    void onTimeout(AsyncContext asyncContext);
+}
@@ -18,6 +18,7 @@ package net.tonwu.tomcat.container.servletx;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -28,6 +29,8 @@ import javax.servlet.http.HttpServletResponse;
 import net.tonwu.tomcat.container.core.Context;
 import net.tonwu.tomcat.container.core.WebResource;
 import net.tonwu.tomcat.container.core.WebResource.CachedResource;
+import net.tonwu.tomcat.http.Compression;
+import net.tonwu.tomcat.http.RawRequest;
 
 /**
  * 默认 Servlet，用于处理静态资源，简单实现了缓存
@@ -42,10 +45,13 @@ public class DefaultServlet extends HttpServlet {
     protected boolean listings = false;
     
     protected transient WebResource resources = null;
+    /** 连接器的压缩配置，为 null 或者未启用时不发送 gzip 变体 */
+    protected transient Compression compression = null;
     
     @Override
     public void init() throws ServletException {
         resources = (WebResource) getServletContext().getAttribute(Context.RESOURCES_ATTR);
+        compression = (Compression) getServletContext().getAttribute(Context.COMPRESSION_ATTR);
     }
     
     @Override
@@ -62,42 +68,54 @@ public class DefaultServlet extends HttpServlet {
         if (resource.isDirectory()) {
             resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
             return;
-        } else {
-            // Checking If headers
-            if (!checkIfHeaders(req, resp, resource)) {
-                return;
-            }
-            
-            // Find content type.
-            String contentType = resource.getMimeType();
-            if (contentType == null) {
-                contentType = getServletContext().getMimeType(resource.getName());
-                resource.setMimeType(contentType);
+        }
+        
+        // Find content type.
+        String contentType = resource.getMimeType();
+        if (contentType == null) {
+            contentType = getServletContext().getMimeType(resource.getName());
+            resource.setMimeType(contentType);
+        }
+        
+        // 可以压缩的资源，客户端接受 gzip 时发送压缩好的变体，它有自己的 ETag
+        CachedResource content = resource;
+        if (isCompressible(resource)) {
+            resp.setHeader("Vary", "Accept-Encoding");
+            if (Compression.GZIP.equals(compression.selectEncoding(req.getHeader("Accept-Encoding")))) {
+                CachedResource variant = resource.getGzipVariant();
+                if (variant != null) {
+                    content = variant;
+                    resp.setHeader("Content-Encoding", Compression.GZIP);
+                }
             }
-            
-            String eTag = resource.getETag();
-            String lastModifiedHttp = resource.getLastModifiedHttp();
-            
-//            response.setHeader("Accept-Ranges", "bytes"); TODO
-            
-            // ETag header
-            resp.setHeader("ETag", eTag);
-            
-            // Last-Modified header
-            resp.setHeader("Last-Modified", lastModifiedHttp);
-            
         }
         
-        long contentLength = resource.getCachedContentLength();
+        // Checking If headers
+        if (!checkIfHeaders(req, resp, content)) {
+            return;
+        }
+        
+        String eTag = content.getETag();
+        String lastModifiedHttp = content.getLastModifiedHttp();
+        
+//        response.setHeader("Accept-Ranges", "bytes"); TODO
+        
+        // ETag header
+        resp.setHeader("ETag", eTag);
+        
+        // Last-Modified header
+        resp.setHeader("Last-Modified", lastModifiedHttp);
+        
+        long contentLength = content.getCachedContentLength();
         if (contentLength > 0) {
             resp.setContentType(resource.getMimeType());
             
-            ServletOutputStream ostream = resp.getOutputStream();
-            if (!checkSendfile()) {
-                byte[] resourceBody = resource.getContent();
+            if (!checkSendfile(req, resp, content, contentLength)) {
+                ServletOutputStream ostream = resp.getOutputStream();
+                ByteBuffer resourceBody = content.getContent();
                 
                 if (resourceBody == null) {
-                    InputStream is = resource.getInputStream();
+                    InputStream is = content.getInputStream();
                     InputStream istream = new BufferedInputStream(is, 2048);
                     byte buffer[] = new byte[2048];
                     int len = buffer.length;
@@ -113,11 +131,31 @@ public class DefaultServlet extends HttpServlet {
                         }
                     }
                 } else {
-                    ostream.write(resourceBody);
+                    resp.setContentLength((int) contentLength);
+                    if (ostream instanceof AppOutputBuffer) {
+                        // 堆外缓存的内容直接写入通道，不再拷贝
+                        ((AppOutputBuffer) ostream).write(resourceBody);
+                    } else {
+                        byte buffer[] = new byte[2048];
+                        while (resourceBody.hasRemaining()) {
+                            int len = Math.min(buffer.length, resourceBody.remaining());
+                            resourceBody.get(buffer, 0, len);
+                            ostream.write(buffer, 0, len);
+                        }
+                    }
                 }
             }
         }
     }
+    /**
+     * 资源的内容类型可以压缩，并且不会太小
+     */
+    protected boolean isCompressible(CachedResource resource) {
+        return compression != null && compression.isEnabled()
+                && resource.getCachedContentLength() >= compression.getMinSize()
+                && compression.isCompressible(resource.getMimeType());
+    }
+    
     /**
      * 校验 if-match, if-none-match, if-modified-since, if-unmodified-since 请求头域值
      */
@@ -175,7 +213,30 @@ public class DefaultServlet extends HttpServlet {
         return true;
     }
 
-    private boolean checkSendfile() {
-        return false;
+    /**
+     * 检查能否使用零拷贝发送资源。文件大于 sendfileSize 并且连接器支持时，设置请求属性，
+     * 响应结束时由连接器使用 FileChannel.transferTo 直接把文件传输到通道
+     */
+    protected boolean checkSendfile(HttpServletRequest request, HttpServletResponse response,
+            CachedResource resource, long length) {
+        if (sendfileSize <= 0 || length <= sendfileSize || length > Integer.MAX_VALUE) {
+            return false;
+        }
+        if (!Boolean.TRUE.equals(request.getAttribute(RawRequest.SENDFILE_SUPPORTED_ATTR))) {
+            return false;
+        }
+        // 请求或响应被包装过时，过滤器可能要修改响应体，不能绕过
+        if (!(request instanceof Request) || !(response instanceof Response) || !resource.isFile()) {
+            return false;
+        }
+        String canonicalPath = resource.getCanonicalPath();
+        if (canonicalPath == null) {
+            return false;
+        }
+        request.setAttribute(RawRequest.SENDFILE_FILENAME_ATTR, canonicalPath);
+        request.setAttribute(RawRequest.SENDFILE_FILE_START_ATTR, Long.valueOf(0L));
+        request.setAttribute(RawRequest.SENDFILE_FILE_LENGTH_ATTR, Long.valueOf(length));
+        response.setContentLength((int) length);
+        return true;
     }
 }
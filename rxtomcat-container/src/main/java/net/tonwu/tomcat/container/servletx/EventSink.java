@@ -0,0 +1,354 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.container.servletx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.tonwu.tomcat.http.reactive.Publisher;
+import net.tonwu.tomcat.http.reactive.Subscriber;
+import net.tonwu.tomcat.http.reactive.Subscription;
+
+/**
+ * Server-Sent Events（text/event-stream）的事件发送端，由 Response.startEventStream 创建。
+ * <p>
+ * 它是响应体的发布者：应用在任意线程中调用 send，事件编码后放入队列，连接器请求数据时
+ * 才取出，通过 chunked 非阻塞写入通道。没有事件时通道停在 Poller 上，不占用线程；
+ * 所有连接的心跳由一个共享的定时线程发送，用来保持代理的连接和发现已经断开的客户端。
+ * <p>
+ * 客户端读得太慢、队列超过上限时关闭连接，不会在内存中无限堆积事件
+ *
+ * @author tonwu.net
+ */
+public class EventSink implements Publisher<ByteBuffer> {
+    final static Logger log = LoggerFactory.getLogger(EventSink.class);
+
+    /** 默认心跳间隔，单位毫秒 */
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 15000;
+    /** 默认最多缓存的事件个数 */
+    public static final int DEFAULT_MAX_QUEUED_EVENTS = 1024;
+
+    private static final ByteBuffer HEARTBEAT = ByteBuffer.wrap(":\n\n".getBytes(StandardCharsets.UTF_8));
+
+    /** 所有连接共享的心跳线程，第一次使用时创建 */
+    private static class Heartbeats {
+        static final ScheduledThreadPoolExecutor executor;
+        static {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "EventSink-heartbeat");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // 连接关闭时取消的任务立即移除，大量连接反复建立时队列不会变大
+            executor.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    private final int maxQueuedEvents;
+
+    /* 以下状态由 this 锁保护，调用订阅者时不持有锁，它会获取通道锁 */
+    private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+    private Subscriber<? super ByteBuffer> subscriber;
+    private long demand = 0;
+    /** 调用了 close，队列中的事件发送完后结束响应 */
+    private boolean closed = false;
+    /** 队列溢出，关闭连接 */
+    private Throwable failure;
+    /** 已经通知订阅者结束，或者订阅被取消 */
+    private boolean terminated = false;
+    /** 正在调用订阅者，其他线程的事件由它发送 */
+    private boolean emitting = false;
+    private boolean missed = false;
+    /** 上次心跳之后是否发送过事件，有事件时不用心跳 */
+    private boolean active = false;
+    private ScheduledFuture<?> heartbeat;
+    private Runnable closeHandler;
+
+    EventSink(int maxQueuedEvents) {
+        this.maxQueuedEvents = maxQueuedEvents;
+    }
+
+    /**
+     * 发送一个只有数据的事件，客户端触发 message 事件
+     *
+     * @return false 连接已经关闭，或者客户端太慢导致连接被关闭
+     */
+    public boolean send(String data) {
+        return send(null, null, data);
+    }
+
+    /**
+     * 发送指定类型的事件
+     *
+     * @param event 事件类型，为 null 时是 message
+     */
+    public boolean send(String event, String data) {
+        return send(null, event, data);
+    }
+
+    /**
+     * 发送一个事件，多行数据按行拆分为多个 data 字段
+     *
+     * @param id 事件 ID，客户端重连时通过 Last-Event-ID 头发回，可以为 null
+     * @param event 事件类型，可以为 null
+     * @param data 数据，不能为 null
+     * @return false 连接已经关闭，或者客户端太慢导致连接被关闭
+     */
+    public boolean send(String id, String event, String data) {
+        if (data == null) {
+            throw new NullPointerException("事件数据不能为 null");
+        }
+        StringBuilder sb = new StringBuilder(data.length() + 32);
+        if (id != null) {
+            field(sb, "id", id);
+        }
+        if (event != null) {
+            field(sb, "event", event);
+        }
+        // "\r\n"、"\r"、"\n" 都是换行，每行一个 data 字段
+        int start = 0;
+        int len = data.length();
+        for (int i = 0; i < len; i++) {
+            char c = data.charAt(i);
+            if (c == '\r' || c == '\n') {
+                field(sb, "data", data.substring(start, i));
+                if (c == '\r' && i + 1 < len && data.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        field(sb, "data", data.substring(start));
+        sb.append('\n');
+        return offer(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)), true);
+    }
+
+    /** id 和 event 的值不能包含换行，否则会被当作新的字段 */
+    private static void field(StringBuilder sb, String name, String value) {
+        if (!name.equals("data") && (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)) {
+            throw new IllegalArgumentException("SSE 字段 [" + name + "] 的值不能包含换行");
+        }
+        sb.append(name).append(": ").append(value).append('\n');
+    }
+
+    /**
+     * 发送完队列中的事件后结束响应，可以在任意线程中调用
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed || terminated) {
+                return;
+            }
+            closed = true;
+        }
+        drain();
+    }
+
+    /** 连接是否还可以发送事件 */
+    public synchronized boolean isOpen() {
+        return !closed && !terminated && failure == null;
+    }
+
+    /**
+     * 设置连接结束时的回调，比如从广播列表中移除此连接。客户端断开、队列溢出或者调用 close
+     * 都会触发，只调用一次；可能持有通道锁调用，不要在回调中发送事件或者执行耗时操作
+     */
+    public void setCloseHandler(Runnable closeHandler) {
+        boolean ended;
+        synchronized (this) {
+            this.closeHandler = closeHandler;
+            ended = terminated;
+        }
+        if (ended) {
+            runCloseHandler(closeHandler);
+        }
+    }
+
+    /**
+     * 设置心跳间隔，没有事件发送超过这个时间时发送一个注释行
+     *
+     * @param interval 单位毫秒，小于等于 0 表示不发送心跳
+     */
+    public void setHeartbeatInterval(long interval) {
+        synchronized (this) {
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+                heartbeat = null;
+            }
+            if (terminated || interval <= 0) {
+                return;
+            }
+            heartbeat = Heartbeats.executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sendHeartbeat();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void sendHeartbeat() {
+        synchronized (this) {
+            if (active || !queue.isEmpty()) {
+                active = false;
+                return;
+            }
+        }
+        offer(HEARTBEAT.duplicate(), false);
+    }
+
+    /**
+     * @param event 是否是应用的事件，心跳不算
+     */
+    private boolean offer(ByteBuffer item, boolean event) {
+        boolean accepted;
+        synchronized (this) {
+            if (closed || terminated || failure != null) {
+                return false;
+            }
+            accepted = queue.size() < maxQueuedEvents;
+            if (accepted) {
+                queue.offer(item);
+                active |= event;
+            } else {
+                log.debug("客户端接收事件太慢，缓存的事件超过了 {} 个，关闭连接", maxQueuedEvents);
+                failure = new IOException("缓存的事件超过了 " + maxQueuedEvents + " 个");
+                queue.clear();
+            }
+        }
+        drain();
+        return accepted;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ByteBuffer> s) {
+        synchronized (this) {
+            if (subscriber != null) {
+                throw new IllegalStateException("事件流只能订阅一次");
+            }
+            subscriber = s;
+        }
+        s.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                synchronized (EventSink.this) {
+                    demand += n;
+                    if (demand < 0) {
+                        demand = Long.MAX_VALUE;
+                    }
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                terminate();
+            }
+        });
+        drain();
+    }
+
+    /**
+     * 把队列中的事件交给订阅者，同一时刻只有一个线程调用订阅者，其他线程只标记有新的事件。
+     * 订阅者写入通道时要获取通道锁，而连接器持有通道锁调用 request，所以调用订阅者时不能持有此锁
+     */
+    private void drain() {
+        synchronized (this) {
+            if (emitting) {
+                missed = true;
+                return;
+            }
+            emitting = true;
+        }
+        for (;;) {
+            Subscriber<? super ByteBuffer> s;
+            ByteBuffer item = null;
+            Throwable error = null;
+            boolean complete = false;
+            synchronized (this) {
+                s = subscriber;
+                if (s != null && !terminated) {
+                    if (failure != null) {
+                        error = failure;
+                    } else if (demand > 0 && !queue.isEmpty()) {
+                        item = queue.poll();
+                        demand--;
+                    } else if (closed && queue.isEmpty()) {
+                        complete = true;
+                    }
+                }
+                if (item == null && error == null && !complete) {
+                    if (!missed) {
+                        emitting = false;
+                        return;
+                    }
+                    missed = false;
+                    continue;
+                }
+            }
+            if (item != null) {
+                s.onNext(item);
+                continue;
+            }
+            terminate();
+            if (error != null) {
+                s.onError(error);
+            } else {
+                s.onComplete();
+            }
+        }
+    }
+
+    /** 结束事件流，停止心跳并通知应用 */
+    private void terminate() {
+        Runnable handler;
+        synchronized (this) {
+            if (terminated) {
+                return;
+            }
+            terminated = true;
+            queue.clear();
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+                heartbeat = null;
+            }
+            handler = closeHandler;
+        }
+        if (handler != null) {
+            runCloseHandler(handler);
+        }
+    }
+
+    private static void runCloseHandler(Runnable handler) {
+        try {
+            handler.run();
+        } catch (Throwable t) {
+            log.error("EventSink 关闭回调异常", t);
+        }
+    }
+}
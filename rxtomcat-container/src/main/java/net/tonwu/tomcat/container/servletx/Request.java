@@ -18,12 +18,15 @@ package net.tonwu.tomcat.container.servletx;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.Principal;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -37,8 +40,15 @@ import net.tonwu.tomcat.container.core.Context;
 import net.tonwu.tomcat.container.core.Wrapper;
 import net.tonwu.tomcat.container.session.Manager;
 import net.tonwu.tomcat.container.session.Session;
+import net.tonwu.tomcat.http.ActionHook.ActionCode;
+import net.tonwu.tomcat.http.HttpProcessor;
+import net.tonwu.tomcat.http.KnownHeader;
+import net.tonwu.tomcat.http.MessageBytes;
 import net.tonwu.tomcat.http.RawRequest;
 import net.tonwu.tomcat.http.Recyclable;
+import net.tonwu.tomcat.http.multipart.Part;
+import net.tonwu.tomcat.http.reactive.Publisher;
+import net.tonwu.tomcat.http.reactive.Subscriber;
 
 /**
  * 这个对象最终会传到 Servlet 的 service 方法中，主要功能：<br>
@@ -57,6 +67,10 @@ public class Request implements HttpServletRequest, Recyclable {
 	
 	private RawRequest rawReq;
 	
+	/** 异步处理的上下文，第一次 startAsync 时创建 */
+	private AsyncContext asyncContext;
+	private boolean asyncStarted = false;
+	
 	private SimpleDateFormat formats[] = {
         new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US),
         new SimpleDateFormat("EEEEEE, dd-MMM-yy HH:mm:ss zzz", Locale.US),
@@ -72,26 +86,31 @@ public class Request implements HttpServletRequest, Recyclable {
 		return cookies;
 	}
 	private void parseCookies() {
-		String cookiesStr = rawReq.getHeader("cookie");
-		if (cookiesStr != null) {
+		if (rawReq.getHeaderValue(KnownHeader.COOKIE) == null) {
+			return;
+		}
+		// 可能有多个 Cookie 头域
+		List<Cookie> result = new ArrayList<>();
+		for (String cookiesStr : rawReq.getHeaders(KnownHeader.COOKIE.getName())) {
 			String[] cookiesArry = cookiesStr.split(";");
-			int idx = cookiesArry.length;
-			if (idx == 0) {
-				return;
-			}
-			cookies = new Cookie[idx];
-			for (int i = 0; i < idx; i++) {
-				String[] temp = cookiesArry[i].trim().split("=");
-				Cookie cookie = new Cookie(temp[0],temp[1]);
-				cookies[i] = cookie;
+			for (int i = 0; i < cookiesArry.length; i++) {
+				String[] temp = cookiesArry[i].trim().split("=", 2);
+				if (temp[0].isEmpty()) {
+					continue;
+				}
+				Cookie cookie = new Cookie(temp[0], temp.length > 1 ? temp[1] : "");
+				result.add(cookie);
 			}
 		}
+		if (!result.isEmpty()) {
+			cookies = result.toArray(new Cookie[result.size()]);
+		}
 	}
 	
 	@Override
 	public String getParameter(String name) {
 	    // 请求参数的解析放到了 RawRequest 中
-		return rawReq.getParameters().get(name);
+		return rawReq.getParameters().getParameter(name);
 	}
 	
 	private Session session = null;
@@ -160,10 +179,62 @@ public class Request implements HttpServletRequest, Recyclable {
 		return null;
 	}
 	
+	/**
+	 * 开始异步处理，Servlet 返回后不结束响应，由 AsyncContext 的 complete 或 dispatch 继续处理。
+	 * Servlet 2.5 没有这个方法，使用时需要把请求转为 Request
+	 * 
+	 * @throws IllegalStateException 已经在异步处理中
+	 */
+	public AsyncContext startAsync() {
+	    if (asyncContext == null) {
+	        asyncContext = new AsyncContext(this, resp, rawReq);
+	    }
+	    asyncContext.start(HttpProcessor.DEFAULT_ASYNC_TIMEOUT);
+	    asyncStarted = true;
+	    return asyncContext;
+	}
+	
+	/**
+	 * 非阻塞读取请求体的发布者，订阅前要先调用 startAsync。
+	 * <p>
+	 * 订阅者请求数据时才从通道读取，暂时没有数据时由 Poller 在可读时继续，不占用线程，
+	 * 适合上传大量数据的请求。请求体结束时调用 onComplete，之后应用调用 complete 或者
+	 * 通过 Response.setBodyPublisher 生成响应。只能订阅一次，也不能再使用输入流或者读取表单参数
+	 */
+	public Publisher<ByteBuffer> getBodyPublisher() {
+	    return new Publisher<ByteBuffer>() {
+	        @Override
+	        public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+	            rawReq.action(ActionCode.SUBSCRIBE_BODY, subscriber);
+	        }
+	    };
+	}
+	
+	/** 本次交给容器处理时是否开始了异步处理，dispatch 重新处理时重置 */
+	public boolean isAsyncStarted() {
+	    return asyncStarted;
+	}
+	
+	public void setAsyncStarted(boolean asyncStarted) {
+	    this.asyncStarted = asyncStarted;
+	}
+	
+	/**
+	 * @throws IllegalStateException 没有开始过异步处理
+	 */
+	public AsyncContext getAsyncContext() {
+	    if (asyncContext == null) {
+	        throw new IllegalStateException("没有调用 startAsync");
+	    }
+	    return asyncContext;
+	}
+	
 	@Override
 	public void recycle() {
 		context = null;
 		wrapper = null;
+		asyncContext = null;
+		asyncStarted = false;
 		
 		cookies = null;
 		if (session != null) {
@@ -175,6 +246,9 @@ public class Request implements HttpServletRequest, Recyclable {
 	public void setResp(Response resp) {
 		this.resp = resp;
 	}
+	public Response getResp() {
+		return resp;
+	}
 	// Getter & Setter
 	public Context getContext() {
 		return context;
@@ -234,17 +308,30 @@ public class Request implements HttpServletRequest, Recyclable {
 
 	@Override
 	public Enumeration<?> getParameterNames() {
-		return Collections.enumeration(rawReq.getParameters().keySet());
+		return Collections.enumeration(rawReq.getParameters().getParameterNames());
 	}
 
 	@Override
 	public String[] getParameterValues(String name) {
-		return null;
+		return rawReq.getParameters().getParameterValues(name);
 	}
 
 	@Override
 	public Map<?, ?> getParameterMap() {
-		return null;
+		return rawReq.getParameters().getParameterMap();
+	}
+
+	/**
+	 * multipart/form-data 请求的各个部分，Servlet 2.5 没有这个方法，使用时需要把请求转为
+	 * Request；上传的文件超过阈值时保存在临时文件中，请求结束后删除
+	 */
+	public List<Part> getParts() {
+		return rawReq.getParts();
+	}
+
+	/** 指定名称的 Part，没有时返回 null */
+	public Part getPart(String name) {
+		return rawReq.getPart(name);
 	}
 
 	@Override
@@ -362,17 +449,21 @@ public class Request implements HttpServletRequest, Recyclable {
 
 	@Override
 	public Enumeration<?> getHeaders(String name) {
-		return null;
+		return Collections.enumeration(rawReq.getHeaders(name));
 	}
 
 	@Override
 	public Enumeration<?> getHeaderNames() {
-		return null;
+		return Collections.enumeration(rawReq.getHeaderNames());
 	}
 
 	@Override
 	public int getIntHeader(String name) {
-		return 0;
+		MessageBytes value = rawReq.getHeaderValue(name);
+		if (value == null) {
+			return -1;
+		}
+		return value.getInt();
 	}
 
 	@Override
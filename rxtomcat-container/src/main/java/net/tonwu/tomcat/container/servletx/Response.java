@@ -17,14 +17,22 @@ package net.tonwu.tomcat.container.servletx;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
+import net.tonwu.tomcat.http.ActionHook.ActionCode;
+import net.tonwu.tomcat.http.RawRequest;
 import net.tonwu.tomcat.http.RawResponse;
 import net.tonwu.tomcat.http.Recyclable;
+import net.tonwu.tomcat.http.reactive.Publisher;
+import net.tonwu.tomcat.net.SendfileData;
 
 /**
  * 这个对象最终会传到 Servlet 的 service 方法中，主要功能：<br>
@@ -52,40 +60,40 @@ public class Response implements HttpServletResponse, Recyclable {
 		return rawResp.isCommitted();
 	}
 	
+    /**
+     * 每个 Cookie 单独发送一个 Set-Cookie 头域，属性之间用 "; " 分隔
+     */
     @Override
 	public void addCookie(Cookie cookie) {
 		StringBuilder buf = new StringBuilder();
-		
-		String prefix = cookie.getName() + "=";
 		String value = cookie.getValue();
 		if (value == null || value.length() == 0) {
-			value ="\"\"";
+			value = "\"\"";
 		}
-		boolean isSet = false;
-		String cookies = rawResp.getHeader("Set-Cookie");
-		if (cookies != null) {
-			if (cookies.contains(prefix)) {
-				isSet = true;
-				for (String tmp : cookies.split(";")) {
-					if (tmp.contains(prefix)) {
-						buf.append(prefix).append(value).append(";");
-					} else {
-						buf.append(tmp).append(";");
-					}
-				}
-				buf.delete(buf.length() - 1, buf.length());
-			} else {
-				buf.append(cookies).append(";");
-			}
+		buf.append(cookie.getName()).append('=').append(value);
+		if (cookie.getMaxAge() >= 0) {
+			buf.append("; Max-Age=").append(cookie.getMaxAge());
 		}
-		if (!isSet) {
-			buf.append(prefix).append(value);
+		if (cookie.getDomain() != null) {
+			buf.append("; Domain=").append(cookie.getDomain());
+		}
+		if (cookie.getPath() != null) {
+			buf.append("; Path=").append(cookie.getPath());
+		}
+		if (cookie.getSecure()) {
+			buf.append("; Secure");
 		}
-		
 		rawResp.addHeader("Set-Cookie", buf.toString());
 	}
 	
 	public void finish() throws IOException {
+	    // Servlet 要求零拷贝发送文件
+	    String fileName = (String) containerRequest.getAttribute(RawRequest.SENDFILE_FILENAME_ATTR);
+	    if (fileName != null && !error) {
+	        long start = (Long) containerRequest.getAttribute(RawRequest.SENDFILE_FILE_START_ATTR);
+	        long length = (Long) containerRequest.getAttribute(RawRequest.SENDFILE_FILE_LENGTH_ATTR);
+	        rawResp.action(ActionCode.SENDFILE, new SendfileData(fileName, start, length));
+	    }
 	    obuffer.close();
 	}
 	
@@ -109,6 +117,50 @@ public class Response implements HttpServletResponse, Recyclable {
         obuffer.setSuspended(true);
     }
 	
+    /**
+     * 使用发布者生成响应体，Servlet 返回后不用等待数据生成完毕。
+     * <p>
+     * 连接器每次只请求一个数据，发送到客户端后才请求下一个，通道不可写时等待，
+     * 生成大的响应也只占用有限的内存；发布者结束时响应结束，出错时关闭连接。
+     * 没有设置 Content-Length 时使用 chunked 传输，不会压缩。
+     * Servlet 2.5 没有这个方法，使用时需要把响应转为 Response
+     * 
+     * @return 异步处理的上下文，可以在 Servlet 返回前设置超时时间，超时时关闭连接
+     * @throws IllegalStateException 已经获取了输出流
+     */
+    public AsyncContext setBodyPublisher(Publisher<ByteBuffer> publisher) {
+        if (usingOutputStream || usingWriter) {
+            throw new IllegalStateException("已经使用输出流写入响应体");
+        }
+        // 比如非阻塞读取请求体后再生成响应，已经在异步处理中
+        AsyncContext asyncContext = containerRequest.isAsyncStarted() ? containerRequest.getAsyncContext()
+                : containerRequest.startAsync();
+        // 响应体不再经过 AppOutputBuffer
+        setSuspended(true);
+        rawResp.action(ActionCode.PUBLISH_BODY, publisher);
+        return asyncContext;
+    }
+
+    /**
+     * 开始 Server-Sent Events 响应，Servlet 返回后连接保持打开，应用通过返回的 EventSink
+     * 在任意线程中推送事件。
+     * <p>
+     * 等待事件时通道停在 Poller 上，不占用线程；异步处理不超时，但事件没有发送完时使用连接器的
+     * 写超时，停止读取或者已经断开的客户端（心跳写不出去）会被关闭，队列溢出时立即关闭。
+     * Servlet 2.5 没有这个方法，使用时需要把响应转为 Response
+     *
+     * @throws IllegalStateException 已经获取了输出流
+     */
+    public EventSink startEventStream() {
+        setContentType("text/event-stream");
+        setCharacterEncoding("UTF-8");
+        setHeader("Cache-Control", "no-cache");
+        EventSink sink = new EventSink(EventSink.DEFAULT_MAX_QUEUED_EVENTS);
+        setBodyPublisher(sink).setTimeout(0);
+        sink.setHeartbeatInterval(EventSink.DEFAULT_HEARTBEAT_INTERVAL);
+        return sink;
+    }
+
     public void setSuspended(boolean suspended) {
         obuffer.setSuspended(suspended);
     }
@@ -216,11 +268,17 @@ public class Response implements HttpServletResponse, Recyclable {
 	
     @Override
     public void setHeader(String name, String value) {
-        addHeader(name, value);
+        if (isCommitted()) {
+            return;
+        }
+        rawResp.setHeader(name, value);
     }
 
     @Override
     public void addHeader(String name, String value) {
+        if (isCommitted()) {
+            return;
+        }
         rawResp.addHeader(name, value);
     }
 	
@@ -264,7 +322,7 @@ public class Response implements HttpServletResponse, Recyclable {
 
 	@Override
 	public boolean containsHeader(String name) {
-		return false;
+		return rawResp.containsHeader(name);
 	}
 
 	@Override
@@ -289,18 +347,28 @@ public class Response implements HttpServletResponse, Recyclable {
 
 	@Override
 	public void setDateHeader(String name, long date) {
+		setHeader(name, formatDate(date));
 	}
 
 	@Override
 	public void addDateHeader(String name, long date) {
+		addHeader(name, formatDate(date));
+	}
+	
+	private String formatDate(long date) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(date));
 	}
 
 	@Override
 	public void setIntHeader(String name, int value) {
+		setHeader(name, String.valueOf(value));
 	}
 
 	@Override
 	public void addIntHeader(String name, int value) {
+		addHeader(name, String.valueOf(value));
 	}
 
 	@Override
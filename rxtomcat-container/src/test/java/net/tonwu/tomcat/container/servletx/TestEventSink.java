@@ -0,0 +1,180 @@
+package net.tonwu.tomcat.container.servletx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.tonwu.tomcat.http.ActionHook.ActionCode;
+import net.tonwu.tomcat.http.Adapter;
+import net.tonwu.tomcat.http.HttpProcessor;
+import net.tonwu.tomcat.http.RawRequest;
+import net.tonwu.tomcat.http.RawResponse;
+import net.tonwu.tomcat.http.reactive.Subscriber;
+import net.tonwu.tomcat.http.reactive.Subscription;
+import net.tonwu.tomcat.net.Handler;
+import net.tonwu.tomcat.net.NioEndpoint;
+import net.tonwu.tomcat.net.Processor;
+
+public class TestEventSink {
+
+    private NioEndpoint endpoint;
+    private Socket client;
+
+    @After
+    public void stop() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+        if (endpoint != null) {
+            endpoint.stop();
+        }
+    }
+
+    @Test
+    public void overflowFailsStream() {
+        EventSink sink = new EventSink(2);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        // 订阅了但不请求数据，相当于不读取的客户端
+        sink.subscribe(new Subscriber<ByteBuffer>() {
+            public void onSubscribe(Subscription s) {}
+            public void onNext(ByteBuffer item) {}
+            public void onError(Throwable t) { error.set(t); }
+            public void onComplete() {}
+        });
+        final CountDownLatch closed = new CountDownLatch(1);
+        sink.setCloseHandler(new Runnable() {
+            public void run() { closed.countDown(); }
+        });
+
+        Assert.assertTrue(sink.send("1"));
+        Assert.assertTrue(sink.send("2"));
+        Assert.assertFalse(sink.send("3"));
+        Assert.assertFalse(sink.isOpen());
+        Assert.assertTrue(error.get() instanceof IOException);
+        Assert.assertEquals(0, closed.getCount());
+        Assert.assertFalse(sink.send("4"));
+    }
+
+    /** 队列溢出时，即使还有数据等待写出，也要关闭连接 */
+    @Test
+    public void overflowClosesStalledClient() throws Exception {
+        BlockingQueue<EventSink> sinks = start(4, 60000);
+        EventSink sink = connect(sinks);
+        CountDownLatch closed = closeLatch(sink);
+
+        String data = payload(64 * 1024);
+        int sent = 0;
+        while (sink.send(data)) {
+            Assert.assertTrue("客户端不读取时队列应该溢出", ++sent < 10000);
+        }
+        Assert.assertTrue(closed.await(5, TimeUnit.SECONDS));
+        assertClosedByServer();
+    }
+
+    /** 异步处理不超时，停止读取的客户端由写超时关闭 */
+    @Test
+    public void writeTimeoutClosesStalledClient() throws Exception {
+        BlockingQueue<EventSink> sinks = start(1024, 1000);
+        EventSink sink = connect(sinks);
+        CountDownLatch closed = closeLatch(sink);
+
+        String data = payload(256 * 1024);
+        for (int i = 0; i < 64; i++) {
+            Assert.assertTrue(sink.send(data));
+        }
+        Assert.assertTrue("写超时后应该关闭事件流", closed.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(sink.isOpen());
+        assertClosedByServer();
+    }
+
+    private BlockingQueue<EventSink> start(final int maxQueuedEvents, int writeTimeout) throws IOException {
+        final BlockingQueue<EventSink> sinks = new ArrayBlockingQueue<>(1);
+        final Adapter adapter = new Adapter() {
+            @Override
+            public void service(RawRequest request, RawResponse response) throws Exception {
+                request.action(ActionCode.ASYNC_START, null);
+                request.action(ActionCode.ASYNC_SETTIMEOUT, 0L);
+                response.setContentType("text/event-stream");
+                EventSink sink = new EventSink(maxQueuedEvents);
+                response.action(ActionCode.PUBLISH_BODY, sink);
+                sinks.offer(sink);
+            }
+
+            @Override
+            public void asyncDispatch(RawRequest request, RawResponse response, AsyncEvent event) {
+            }
+        };
+        endpoint = new NioEndpoint();
+        endpoint.setPort(0);
+        endpoint.setWriteTimeout(writeTimeout);
+        endpoint.setHandler(new Handler() {
+            @Override
+            public Processor createProcessor() {
+                HttpProcessor processor = new HttpProcessor();
+                processor.setAdaptor(adapter);
+                return processor;
+            }
+        });
+        endpoint.init();
+        endpoint.start();
+        return sinks;
+    }
+
+    /** 发送请求后不再读取的客户端，接收缓冲区很小，服务端很快就写不出去 */
+    private EventSink connect(BlockingQueue<EventSink> sinks) throws Exception {
+        client = new Socket();
+        client.setReceiveBufferSize(4096);
+        client.connect(new InetSocketAddress("127.0.0.1", endpoint.getServerSock().socket().getLocalPort()));
+        OutputStream out = client.getOutputStream();
+        out.write("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        EventSink sink = sinks.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(sink);
+        return sink;
+    }
+
+    private static CountDownLatch closeLatch(EventSink sink) {
+        final CountDownLatch closed = new CountDownLatch(1);
+        sink.setCloseHandler(new Runnable() {
+            public void run() { closed.countDown(); }
+        });
+        return closed;
+    }
+
+    /** 读完已经发送的数据后应该遇到 EOF 或者连接被重置，而不是一直等待 */
+    private void assertClosedByServer() throws IOException {
+        client.setSoTimeout(5000);
+        InputStream in = client.getInputStream();
+        byte[] buf = new byte[64 * 1024];
+        try {
+            while (in.read(buf) != -1) {
+            }
+        } catch (SocketTimeoutException e) {
+            Assert.fail("服务端没有关闭连接");
+        } catch (SocketException e) {
+            // 放弃响应时连接被重置
+        }
+    }
+
+    private static String payload(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+}
@@ -38,7 +38,21 @@ public interface ActionHook {
         /** 请求将响应发送到客户端 */
         FLUSH,
         /** 响应处理完毕 */
-        CLOSE
+        CLOSE,
+        /** 请求使用零拷贝发送文件作为响应体，参数是 SendfileData */
+        SENDFILE,
+        /** 开始异步处理，容器线程返回后不结束响应 */
+        ASYNC_START,
+        /** 结束异步处理，在容器线程中完成响应 */
+        ASYNC_COMPLETE,
+        /** 在容器线程中把异步请求重新交给容器处理 */
+        ASYNC_DISPATCH,
+        /** 设置异步请求的超时时间，参数是 Long，单位毫秒 */
+        ASYNC_SETTIMEOUT,
+        /** 由发布者生成响应体，必须先开始异步处理，参数是 Publisher&lt;ByteBuffer&gt; */
+        PUBLISH_BODY,
+        /** 非阻塞读取请求体，必须先开始异步处理，参数是 Subscriber&lt;ByteBuffer&gt; */
+        SUBSCRIBE_BODY
     }
 
     /**
@@ -24,6 +24,16 @@ import java.io.IOException;
  */
 public interface Adapter {
     
+    /** 异步请求恢复处理时，交给容器的事件 */
+    public enum AsyncEvent {
+        /** 重新交给容器生成响应 */
+        DISPATCH,
+        /** 超时，通知监听器 */
+        TIMEOUT,
+        /** 异步处理结束，完成响应并释放容器的请求和响应对象 */
+        COMPLETE
+    }
+    
     /**
      * 处理请求，生成响应
      * 
@@ -32,4 +42,14 @@ public interface Adapter {
      * @throws IOException
      */
     void service(RawRequest request, RawResponse response)  throws Exception;
+    
+    /**
+     * 继续处理异步请求，在容器线程中调用，每个异步请求最后都会收到 COMPLETE 事件
+     * 
+     * @param request 底层原始请求对象
+     * @param response 底层原始响应对象
+     * @param event 恢复处理的原因
+     * @throws Exception
+     */
+    void asyncDispatch(RawRequest request, RawResponse response, AsyncEvent event) throws Exception;
 }
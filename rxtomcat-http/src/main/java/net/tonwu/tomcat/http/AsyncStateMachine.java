@@ -0,0 +1,161 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http;
+
+import net.tonwu.tomcat.http.Adapter.AsyncEvent;
+
+/**
+ * 异步请求的状态机。
+ * <p>
+ * startAsync 在容器线程中调用，complete、dispatch 可能在任意的应用线程中调用，超时由
+ * Poller 触发，这些调用可能同时发生，所以状态转换都是同步的。容器线程还没有返回时调用
+ * complete 或 dispatch，只记录状态，等容器线程返回后直接继续处理；容器线程已经释放时，
+ * 由调用方通知 Poller 把通道重新提交到线程池
+ *
+ * <pre>
+ *   DISPATCHED --startAsync--> STARTING --容器线程返回--> STARTED
+ *   STARTING/STARTED/TIMING_OUT --complete--> COMPLETING --> DISPATCHED
+ *   STARTING/STARTED/TIMING_OUT --dispatch--> MUST_DISPATCH --> DISPATCHING --> DISPATCHED
+ *   STARTED --超时--> TIMING_OUT --> DISPATCHED
+ *   STARTED --通道可读写--> STARTING
+ *   DISPATCHING --startAsync--> STARTING
+ * </pre>
+ *
+ * @author tonwu.net
+ */
+public class AsyncStateMachine {
+
+    private enum AsyncState {
+        /** 没有异步处理 */
+        DISPATCHED,
+        /** 调用了 startAsync，容器线程还没有返回 */
+        STARTING,
+        /** 容器线程已经释放，等待 complete、dispatch 或者超时 */
+        STARTED,
+        /** 调用了 complete，等待结束响应 */
+        COMPLETING,
+        /** 调用了 dispatch，等待重新交给容器处理 */
+        MUST_DISPATCH,
+        /** 正在重新交给容器处理 */
+        DISPATCHING,
+        /** 正在通知超时监听器 */
+        TIMING_OUT
+    }
+
+    private AsyncState state = AsyncState.DISPATCHED;
+
+    /**
+     * 开始异步处理
+     *
+     * @throws IllegalStateException 请求已经在异步处理中
+     */
+    public synchronized void asyncStart() {
+        if (state != AsyncState.DISPATCHED && state != AsyncState.DISPATCHING) {
+            throw new IllegalStateException("startAsync 不能在 [" + state + "] 状态调用");
+        }
+        state = AsyncState.STARTING;
+    }
+
+    /**
+     * 结束异步处理
+     *
+     * @return true 容器线程已经释放，调用方要通知 Poller 恢复处理
+     * @throws IllegalStateException 没有开始异步处理或者已经 complete、dispatch
+     */
+    public synchronized boolean asyncComplete() {
+        boolean resume = checkResumable("complete");
+        state = AsyncState.COMPLETING;
+        return resume;
+    }
+
+    /**
+     * 把请求重新交给容器处理
+     *
+     * @return true 容器线程已经释放，调用方要通知 Poller 恢复处理
+     * @throws IllegalStateException 没有开始异步处理或者已经 complete、dispatch
+     */
+    public synchronized boolean asyncDispatch() {
+        boolean resume = checkResumable("dispatch");
+        state = AsyncState.MUST_DISPATCH;
+        return resume;
+    }
+
+    private boolean checkResumable(String method) {
+        if (state != AsyncState.STARTING && state != AsyncState.STARTED && state != AsyncState.TIMING_OUT) {
+            throw new IllegalStateException(method + " 不能在 [" + state + "] 状态调用");
+        }
+        return state == AsyncState.STARTED;
+    }
+
+    /**
+     * Poller 检测到异步请求超时
+     *
+     * @return false 请求已经 complete 或 dispatch，忽略超时
+     */
+    public synchronized boolean asyncTimeout() {
+        if (state != AsyncState.STARTED) {
+            return false;
+        }
+        state = AsyncState.TIMING_OUT;
+        return true;
+    }
+
+    /**
+     * 响应式流等待的通道可读或可写，在容器线程中继续读写，期间 complete 不用再通知 Poller
+     *
+     * @return false 请求已经 complete 或 dispatch，忽略此事件
+     */
+    public synchronized boolean asyncIo() {
+        if (state != AsyncState.STARTED) {
+            return false;
+        }
+        state = AsyncState.STARTING;
+        return true;
+    }
+
+    /**
+     * 容器线程返回后调用，决定下一步的处理
+     *
+     * @return DISPATCH 重新交给容器处理，COMPLETE 结束响应，null 表示等待 complete、dispatch 或者超时，
+     *         释放容器线程
+     */
+    public synchronized AsyncEvent asyncPostProcess() {
+        switch (state) {
+        case STARTING:
+            state = AsyncState.STARTED;
+            return null;
+        case MUST_DISPATCH:
+            state = AsyncState.DISPATCHING;
+            return AsyncEvent.DISPATCH;
+        case COMPLETING:
+        case DISPATCHING: // 重新处理时没有再次 startAsync
+        case TIMING_OUT: // 超时监听器没有 complete 或 dispatch
+            state = AsyncState.DISPATCHED;
+            return AsyncEvent.COMPLETE;
+        default:
+            return null;
+        }
+    }
+
+    /** 是否在异步处理中 */
+    public synchronized boolean isAsync() {
+        return state != AsyncState.DISPATCHED;
+    }
+
+    public synchronized void recycle() {
+        state = AsyncState.DISPATCHED;
+    }
+}
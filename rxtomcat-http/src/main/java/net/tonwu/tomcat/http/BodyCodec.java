@@ -16,14 +16,13 @@
 package net.tonwu.tomcat.http;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 /**
- * 请求体解码器、响应体编码器
+ * 请求体解码器，同时也是响应体的传输编码器
  * 
  * @author tonwu.net
  */
-public interface BodyCodec {
+public interface BodyCodec extends BodyEncoder {
     
     int maxSwallowSize = 1 * 1024 * 1024; // 1MB
     
@@ -48,13 +47,9 @@ public interface BodyCodec {
 	public void endRead(InputBuffer input) throws IOException;
 	
 	/**
-	 * 将响应体数据写入缓冲区，chunked 和 identity 写入方式不一样
+	 * 非阻塞读取前检查解码器的状态，区分暂时没有数据和请求体结束
 	 * 
-	 * @param output 关联的响应编码处理类
-	 * @param src 待写入的数据
-	 * @throws IOException
+	 * @return 解码器中还没有解析的字节数，0 表示要从通道读取，-1 表示请求体已经读完
 	 */
-	public void doWrite(OutputBuffer output, ByteBuffer src) throws IOException;
-	
-	public void endWrite(OutputBuffer output) throws IOException;
+	public int available();
 }
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 响应体编码器，只负责写出。压缩这类只用于响应的编码器实现这个接口，
+ * 传输编码（chunked、identity）同时也是请求体解码器，实现 BodyCodec
+ * 
+ * @author tonwu.net
+ */
+public interface BodyEncoder {
+	
+	/**
+	 * 将响应体数据写入缓冲区，chunked 和 identity 写入方式不一样
+	 * 
+	 * @param output 关联的响应编码处理类
+	 * @param src 待写入的数据
+	 * @throws IOException
+	 */
+	public void doWrite(OutputBuffer output, ByteBuffer src) throws IOException;
+	
+	public void endWrite(OutputBuffer output) throws IOException;
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * 响应压缩的配置，由连接器创建，所有 HttpProcessor 共享。
+ * <p>
+ * Deflater 内部使用的 zlib 本地内存比较大，创建和释放的开销也不小，所以放在对象池中
+ * 复用，只在发送压缩的响应体期间借用
+ *
+ * @author tonwu.net
+ */
+public class Compression {
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    /** 是否启用压缩 */
+    private boolean enabled = true;
+    /** 响应体长度已知且小于此值时不压缩，压缩小数据得不偿失 */
+    private int minSize = 2048;
+    /** 可以压缩的内容类型，已经压缩过的图片、视频等再压缩没有意义 */
+    private String[] mimeTypes = { "text/html", "text/xml", "text/plain", "text/css", "text/javascript",
+            "application/javascript", "application/json", "application/xml" };
+    /** 压缩级别 0-9，-1 表示 zlib 的默认级别 6 */
+    private int level = Deflater.DEFAULT_COMPRESSION;
+
+    /** 池中最多保留的 Deflater 个数，gzip 和 deflate 分别计算 */
+    private int maxPooled = 64;
+    /** gzip 使用不带 zlib 头的原始 deflate 数据 */
+    private final ConcurrentLinkedDeque<Deflater> gzipPool = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger gzipPooled = new AtomicInteger();
+    private final ConcurrentLinkedDeque<Deflater> zlibPool = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger zlibPooled = new AtomicInteger();
+
+    /**
+     * 根据 Accept-Encoding 选择压缩方式，优先使用 gzip，q=0 表示不接受
+     *
+     * @param acceptEncoding 请求头的值，可以为 null
+     * @return gzip、deflate，或者客户端都不接受时返回 null
+     */
+    public String selectEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false, deflate = false, any = false;
+        boolean gzipListed = false, deflateListed = false;
+        int start = 0, len = acceptEncoding.length();
+        while (start < len) {
+            int end = acceptEncoding.indexOf(',', start);
+            if (end < 0) {
+                end = len;
+            }
+            int semi = acceptEncoding.indexOf(';', start);
+            int nameEnd = (semi >= 0 && semi < end) ? semi : end;
+            String coding = acceptEncoding.substring(start, nameEnd).trim();
+            boolean accepted = nameEnd == end || qvalue(acceptEncoding.substring(nameEnd + 1, end)) > 0;
+            if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+                gzip = accepted;
+                gzipListed = true;
+            } else if (coding.equalsIgnoreCase(DEFLATE)) {
+                deflate = accepted;
+                deflateListed = true;
+            } else if (coding.equals("*")) {
+                any = accepted;
+            }
+            start = end + 1;
+        }
+        if (gzip || (any && !gzipListed)) {
+            return GZIP;
+        }
+        if (deflate || (any && !deflateListed)) {
+            return DEFLATE;
+        }
+        return null;
+    }
+
+    /** 解析 q=0.5 这样的参数，没有 q 参数时返回 1 */
+    private static float qvalue(String params) {
+        for (String param : params.split(";")) {
+            param = param.trim();
+            if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=') {
+                try {
+                    return Float.parseFloat(param.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * 内容类型是否在允许压缩的列表中
+     *
+     * @param contentType 不带 charset 的内容类型，可以有其他参数
+     */
+    public boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semi = contentType.indexOf(';');
+        String type = (semi >= 0 ? contentType.substring(0, semi) : contentType).trim();
+        for (String mimeType : mimeTypes) {
+            if (mimeType.equalsIgnoreCase(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 借用一个 Deflater，池为空时新创建一个
+     *
+     * @param nowrap true 用于 gzip，不输出 zlib 头和校验和
+     */
+    public Deflater borrowDeflater(boolean nowrap) {
+        Deflater deflater = (nowrap ? gzipPool : zlibPool).pollFirst();
+        if (deflater != null) {
+            (nowrap ? gzipPooled : zlibPooled).decrementAndGet();
+            deflater.setLevel(level);
+            return deflater;
+        }
+        return new Deflater(level, nowrap);
+    }
+
+    /**
+     * 归还 Deflater，池满时释放它的本地内存
+     *
+     * @param deflater 借用的 Deflater
+     * @param nowrap 借用时的参数
+     */
+    public void releaseDeflater(Deflater deflater, boolean nowrap) {
+        AtomicInteger pooled = nowrap ? gzipPooled : zlibPooled;
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        (nowrap ? gzipPool : zlibPool).offerFirst(deflater);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    public int getMinSize() {
+        return minSize;
+    }
+    public void setMinSize(int minSize) {
+        this.minSize = minSize;
+    }
+    public String[] getMimeTypes() {
+        return mimeTypes.clone();
+    }
+    /**
+     * @param mimeTypes 逗号分隔的内容类型，比如 text/html,application/json
+     */
+    public void setMimeTypes(String mimeTypes) {
+        String[] types = mimeTypes.split(",");
+        for (int i = 0; i < types.length; i++) {
+            types[i] = types[i].trim().toLowerCase(Locale.ENGLISH);
+        }
+        this.mimeTypes = types;
+    }
+    public int getLevel() {
+        return level;
+    }
+    public void setLevel(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        this.level = level;
+    }
+    public int getMaxPooled() {
+        return maxPooled;
+    }
+    public void setMaxPooled(int maxPooled) {
+        this.maxPooled = maxPooled;
+    }
+}
@@ -17,15 +17,25 @@ package net.tonwu.tomcat.http;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.Locale;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.tonwu.tomcat.http.Adapter.AsyncEvent;
 import net.tonwu.tomcat.http.codecs.ChunkedCodec;
+import net.tonwu.tomcat.http.codecs.GzipCodec;
 import net.tonwu.tomcat.http.codecs.IdentityCodec;
+import net.tonwu.tomcat.http.multipart.MultipartConfig;
+import net.tonwu.tomcat.http.reactive.Publisher;
+import net.tonwu.tomcat.http.reactive.Subscriber;
+import net.tonwu.tomcat.net.Handler.SocketEvent;
 import net.tonwu.tomcat.net.Handler.SocketState;
 import net.tonwu.tomcat.net.NioChannel;
+import net.tonwu.tomcat.net.Poller;
 import net.tonwu.tomcat.net.Processor;
+import net.tonwu.tomcat.net.SendfileData;
 /**
  * HTTP 协议处理器，与底层通道通信
  * 
@@ -34,6 +44,9 @@ import net.tonwu.tomcat.net.Processor;
 public class HttpProcessor implements Processor, ActionHook {
     final static Logger log = LoggerFactory.getLogger(HttpProcessor.class);
     
+    /** 异步请求默认的超时时间，单位毫秒 */
+    public static final long DEFAULT_ASYNC_TIMEOUT = 30000;
+    
     private InputBuffer inBuffer;
     private OutputBuffer outBuffer;
 
@@ -41,13 +54,37 @@ public class HttpProcessor implements Processor, ActionHook {
     private RawResponse response;
 
     private Adapter adapter;
+    
+    private NioChannel socket;
 
     private boolean keepAlive = true;
     private boolean error = false;
+    /** 当前连接还能处理的请求数，异步请求恢复处理后继续使用 */
+    private int keepAliveLeft;
+    
+    /** 异步请求的状态 */
+    private final AsyncStateMachine asyncStateMachine = new AsyncStateMachine();
+    /** 异步请求的超时时间，单位毫秒，小于等于 0 表示不超时 */
+    private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
     
     /** 一个长连接最多处理多少个 Request，-1 表示不限制 */
     private int maxKeepAliveRequests = -1;
     
+    /** 响应压缩配置，为 null 时不压缩 */
+    private Compression compression;
+    /** 压缩编码器，随处理器重复使用 */
+    private GzipCodec gzipCodec;
+    /** 当前响应体是否使用零拷贝发送，这种响应不经过编码器，不能压缩 */
+    private boolean sendfile = false;
+    /** 订阅响应体发布者，为 null 时响应体由容器阻塞写入 */
+    private ResponseBodySubscriber bodySubscriber;
+    /** 非阻塞读取请求体的订阅，为 null 时请求体由容器阻塞读取 */
+    private RequestBodySubscription bodySubscription;
+    /** 是否正在容器线程中处理，由通道锁保护 */
+    private boolean processing = false;
+    /** 异步请求等待期间，写缓冲区中还有之前流水线请求的响应，由 Poller 在通道可写时继续发送 */
+    private boolean pipelineWritePending = false;
+    
     public HttpProcessor() {
         request = new RawRequest();
         inBuffer = new InputBuffer(request);
@@ -60,20 +97,53 @@ public class HttpProcessor implements Processor, ActionHook {
     }
 
     @Override
-    public SocketState process(NioChannel socket) {
+    public SocketState process(NioChannel socket, SocketEvent event) {
+        processing = true;
+        try {
+            return doProcess(socket, event);
+        } finally {
+            processing = false;
+        }
+    }
+    
+    private SocketState doProcess(NioChannel socket, SocketEvent event) {
+        if (event != SocketEvent.OPEN) {
+            // 恢复异步处理的请求，请求结束后继续处理读缓冲区中的流水线请求
+            SocketState state = asyncResume(event);
+            if (state != null) {
+                return state;
+            }
+            return service();
+        }
+        this.socket = socket;
         inBuffer.setSocket(socket);
         outBuffer.setSocket(socket);
-        
-        int keepAliveLeft = maxKeepAliveRequests;
-        
+        keepAliveLeft = maxKeepAliveRequests;
+        return service();
+    }
+    
+    private SocketState service() {
         while (!error && keepAlive) {
             // 1. 解析请求头
         	try {
         		if (!inBuffer.parseRequestLineAndHeaders()) {
+        		    // 流水线请求的响应可能还在写缓冲区中，等待后续数据前非阻塞发送一次，
+        		    // 没有发送完时由 Handler 交给 Poller 继续发送，发送完后再读取剩余的请求头
+        		    if (socket.hasPendingWrite()) {
+        		        socket.flushNonBlocking();
+        		    }
         			return SocketState.LONG;
         		}
         	} catch (IOException e) {
         		// 这里异常通常是 连接关闭和 socket 超时，EOFException SocketTimeoutException
+        		// 客户端发送完流水线请求后可能只关闭了输出，已经生成的响应由 Poller 发送完后再关闭连接
+        		try {
+        		    if (socket.hasPendingWrite() && !socket.flushNonBlocking()) {
+        		        socket.setCloseAfterWrite(true);
+        		        return SocketState.WRITE;
+        		    }
+        		} catch (IOException ignore) {
+        		}
         		return SocketState.CLOSED;
         	}
         	// 2. 校验请求头数据，设置请求体解码器
@@ -83,7 +153,7 @@ public class HttpProcessor implements Processor, ActionHook {
     		if (maxKeepAliveRequests > 0 && --keepAliveLeft == 0) {
     		    keepAlive = false;
     		}
-    		// 4. 交给容器处理请求并生成响应
+        	// 4. 交给容器处理请求并生成响应
         	if (!error) {
         		try {
         		    log.debug("交给容器处理请求并生成响应");
@@ -93,58 +163,276 @@ public class HttpProcessor implements Processor, ActionHook {
         			e.printStackTrace();
         		}
         	}
-        	
-        	try {
-                inBuffer.end();
-            } catch (Throwable t) {
-                log.error("Error finishing request", t);
-                error = true;
-                response.setStatus(500);
-            }
-        	try {
-        	    outBuffer.end();
-        	} catch (Throwable t) {
-        	    log.error("Error finishing response", t);
-        	    error = true;
-        	    response.setStatus(500);
+        	// 容器开始了异步处理，等待 complete 或 dispatch 时释放线程
+        	if (asyncStateMachine.isAsync()) {
+        	    SocketState state = asyncPostProcess();
+        	    if (state != null) {
+        	        return state;
+        	    }
         	}
         	
-        	// 5. 回收释放资源处理下一个请求
-        	inBuffer.recycle();
-        	outBuffer.recycle();
-        	
-        	// 6. 返回保持连接的状态 
-        	if (!error && keepAlive) {
-        		return SocketState.OPEN;
+        	SocketState state = endRequest();
+        	if (state != null) {
+        	    return state;
         	}
         }// end while
         return SocketState.CLOSED;
     }
+    
+    /**
+     * 结束当前请求，决定连接的下一个状态
+     * 
+     * @return null 表示读缓冲区中还有流水线请求，继续处理
+     */
+    private SocketState endRequest() {
+        try {
+            // 出错时连接会关闭，不用再跳过剩余的请求体
+            if (!error) {
+                inBuffer.end();
+            }
+        } catch (Throwable t) {
+            log.error("Error finishing request", t);
+            error = true;
+            response.setStatus(500);
+        }
+        try {
+            outBuffer.end();
+        } catch (Throwable t) {
+            log.error("Error finishing response", t);
+            error = true;
+            response.setStatus(500);
+        }
+        
+        // 5. 回收释放资源处理下一个请求，读缓冲区中剩余的数据属于下一个流水线请求
+        inBuffer.recycle();
+        outBuffer.recycle();
+        sendfile = false;
+        pipelineWritePending = false;
+        endStreams();
+        
+        // 6. 读缓冲区中还有请求时直接处理，不用经过 Poller，响应留在写缓冲区中和后面的合并发送
+        if (!error && keepAlive && inBuffer.available() > 0) {
+            if (socket.getSendfileData() != null) {
+                // 后面的响应必须在文件之后发送
+                try {
+                    socket.drain();
+                } catch (IOException e) {
+                    return SocketState.CLOSED;
+                }
+            }
+            log.debug("处理通道 [{}] 的下一个流水线请求", socket);
+            return null;
+        }
+        try {
+            // 非阻塞发送，没有发送完时由 Poller 在通道可写时继续发送
+            socket.flushNonBlocking();
+        } catch (IOException e) {
+            error = true;
+        }
+        
+        // 7. 响应数据没有发送完，释放线程，由 Poller 在通道可写时继续发送
+        if (!error && socket.hasPendingWrite()) {
+            socket.setCloseAfterWrite(!keepAlive);
+            return SocketState.WRITE;
+        }
+        
+        // 8. 返回保持连接的状态 
+        if (!error && keepAlive) {
+            return SocketState.OPEN;
+        }
+        return SocketState.CLOSED;
+    }
+    
+    /**
+     * 恢复异步处理的请求
+     * 
+     * @return null 表示请求已经结束，继续处理后续的流水线请求
+     */
+    private SocketState asyncResume(SocketEvent event) {
+        if (event == SocketEvent.TIMEOUT) {
+            if (!asyncStateMachine.asyncTimeout()) {
+                // 已经 complete 或 dispatch，恢复事件随后处理
+                return SocketState.ASYNC;
+            }
+            if (bodySubscription != null) {
+                // 请求体没有读完，连接不能再用于后续的请求
+                bodySubscription.timeout();
+                error = true;
+            }
+            if (bodySubscriber != null) {
+                // 响应体已经开始发送，不能再生成其他响应，放弃并关闭连接
+                bodySubscriber.cancel();
+                outBuffer.abort();
+                error = true;
+            }
+            try {
+                adapter.asyncDispatch(request, response, AsyncEvent.TIMEOUT);
+            } catch (Exception e) {
+                log.error("异步请求超时处理失败", e);
+                error = true;
+            }
+        } else if (event == SocketEvent.READ || event == SocketEvent.WRITE) {
+            if (!asyncStateMachine.asyncIo()) {
+                // 请求已经 complete 或 dispatch，恢复事件随后处理
+                return SocketState.ASYNC;
+            }
+            if (event == SocketEvent.READ && bodySubscription != null) {
+                bodySubscription.onReadable();
+            } else if (event == SocketEvent.WRITE && bodySubscriber != null) {
+                bodySubscriber.onWritable();
+            } else if (event == SocketEvent.WRITE) {
+                flushPipelined();
+            }
+        }
+        SocketState state = asyncPostProcess();
+        if (state != null) {
+            return state;
+        }
+        return endRequest();
+    }
+    
+    /**
+     * 容器线程返回后，根据异步状态继续处理，直到请求结束或者需要等待
+     * 
+     * @return null 表示异步处理结束，可以结束请求；否则释放线程等待恢复
+     */
+    private SocketState asyncPostProcess() {
+        AsyncEvent next;
+        while (!error && (next = asyncStateMachine.asyncPostProcess()) != null) {
+            try {
+                adapter.asyncDispatch(request, response, next);
+            } catch (Exception e) {
+                log.error("异步请求处理失败", e);
+                error = true;
+            }
+            if (next == AsyncEvent.COMPLETE) {
+                return null;
+            }
+        }
+        if (error) {
+            // 出错时不再等待，直接结束异步处理，容器的对象仍要释放
+            asyncStateMachine.recycle();
+            try {
+                adapter.asyncDispatch(request, response, AsyncEvent.COMPLETE);
+            } catch (Exception e) {
+                log.debug("结束异步请求失败", e);
+            }
+            return null;
+        }
+        if (asyncStateMachine.isAsync()) {
+            flushPipelined();
+            return SocketState.ASYNC;
+        }
+        return null;
+    }
+    
+    /**
+     * 异步请求等待期间，非阻塞发送之前流水线请求的响应，不能等到异步请求结束时才和它的响应一起发送。
+     * 在通道锁中调用；响应提交后写缓冲区由应用线程写入，之前的响应随它一起发送
+     */
+    private void flushPipelined() {
+        pipelineWritePending = false;
+        if (response.isCommitted() || bodySubscriber != null || !socket.hasPendingWrite()) {
+            return;
+        }
+        try {
+            pipelineWritePending = !socket.flushNonBlocking();
+        } catch (IOException e) {
+            // 连接已经不可用，异步请求的读写或超时会结束它
+            log.debug("发送通道 [{}] 流水线请求的响应失败", socket, e);
+        }
+    }
+    
+    /**
+     * 响应体发布结束，在通道锁中调用，通知容器结束异步处理
+     * 
+     * @param t 为 null 表示正常结束，否则放弃响应并关闭连接
+     */
+    void publishEnd(Throwable t) {
+        if (t != null) {
+            error = true;
+            outBuffer.abort();
+        }
+        try {
+            if (asyncStateMachine.asyncComplete()) {
+                socket.getPoller().processSocket(socket, SocketEvent.ASYNC);
+            }
+        } catch (IllegalStateException e) {
+            // 应用已经调用了 complete 或 dispatch
+            log.debug("响应体发布结束时请求已经不在异步处理中", e);
+        }
+    }
+    
+    /**
+     * 在 Poller 上等待请求体可读或者响应体可写。在容器线程中时，由 Handler 返回后根据
+     * getAsyncInterestOps 声明
+     */
+    void awaitIo() {
+        if (!processing) {
+            socket.getPoller().register(socket, Poller.OP_ASYNC | getAsyncInterestOps(), getAsyncTimeout());
+        }
+    }
+    
+    /** 请求结束时取消还没有结束的请求体和响应体订阅 */
+    private void endStreams() {
+        if (bodySubscription != null) {
+            bodySubscription.cancel();
+            bodySubscription = null;
+        }
+        if (bodySubscriber != null) {
+            bodySubscriber.cancel();
+            bodySubscriber = null;
+        }
+    }
+    
+    /**
+     * 由 Handler 在连接保持或关闭后调用，重置状态以便放回对象池处理其他连接
+     */
+    @Override
+    public void recycle() {
+        // 连接异常关闭时，可能没有回收请求和响应
+        inBuffer.recycle();
+        outBuffer.recycle();
+        sendfile = false;
+        pipelineWritePending = false;
+        endStreams();
+        keepAlive = true;
+        error = false;
+        asyncStateMachine.recycle();
+        socket = null;
+    }
+    
     /**
      * 检查请求头部值是否合法，设置请求体解码器
      */
     private void prepareRequest() {
         // 0. 检查协议版本
-        String verion = request.getProtocol();
-        if (!"HTTP/1.1".equalsIgnoreCase(verion)) {
+        if (!request.protocol().equalsIgnoreCase("HTTP/1.1")) {
             error = true;
 //            Send 505; Unsupported HTTP version TODO
 //            response.setStatus(505);
         }
         
         // 1. 检查是否要保持连接
-        String conn = request.getHeader("connection");
-        if (conn == null || "close".equals(conn)) {
+        // HTTP/1.1 默认保持连接，除非客户端要求关闭
+        MessageBytes conn = request.getHeaderValue(KnownHeader.CONNECTION);
+        if (conn != null && conn.equalsIgnoreCase("close")) {
             keepAlive = false;
-        } else if ("keep-alive".equals(conn)) {
-            keepAlive = true;
         }
-        // 2. 检查 expect 头 TODO
+        // 2. 检查 expect 头，100 Continue 在第一次读取请求体时才发送，
+        // 没有读取请求体就生成了最终响应（比如 401、413）时，客户端不用发送请求体
+        MessageBytes expect = request.getHeaderValue(KnownHeader.EXPECT);
+        boolean expectation = expect != null && expect.equalsIgnoreCase("100-continue");
+        
+        // 告诉容器可以使用零拷贝发送文件
+        if (socket.getPoller() != null && socket.getPoller().getEndpoint().getUseSendfile()) {
+            request.setAttribute(RawRequest.SENDFILE_SUPPORTED_ATTR, Boolean.TRUE);
+        }
         
         // 3. 检查传输编码
         boolean contentDelimitation = false;
-        String transferEncoding = request.getHeader("transfer-encoding");
-        if ("chunked".equals(transferEncoding)) {
+        MessageBytes transferEncoding = request.getHeaderValue(KnownHeader.TRANSFER_ENCODING);
+        if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
             contentDelimitation = true;
             inBuffer.setBodyCodec(new ChunkedCodec());
         }
@@ -154,16 +442,21 @@ public class HttpProcessor implements Processor, ActionHook {
         if (contentLength >= 0) { 
             if (contentDelimitation) {
                 // 有了 chunked 编码，contentLength 无效
-                request.removeHeader("content-length");
+                request.removeHeader(KnownHeader.CONTENT_LENGTH.getName());
                 request.setContentLength(-1);
             } else {
                 inBuffer.setBodyCodec(new IdentityCodec(contentLength));
                 contentDelimitation = true;
             }
         }
+        // 有请求体时才需要等待 100 响应
+        if (expectation && contentDelimitation && contentLength != 0) {
+            inBuffer.setExpectation(true);
+        }
+        
         // 5. 检查 host
-        String host = request.getHeader("host");
-        if (host == null || host.length() <= 0) {
+        MessageBytes host = request.getHeaderValue(KnownHeader.HOST);
+        if (host == null || host.getLength() <= 0) {
             error = true;
 //            400 - Bad request TODO
 //            response.setStatus(400);
@@ -171,6 +464,11 @@ public class HttpProcessor implements Processor, ActionHook {
     }
 
     private void prepareResponse() throws IOException {
+        if (inBuffer.hasExpectation()) {
+            // 客户端等待超时后可能仍会发送请求体，无法确定下一个请求的开始位置，关闭连接
+            keepAlive = false;
+            response.setHeader("Connection", "close");
+        }
         // 0. 检查是否有响应体
         int statusCode = response.getStatus();
         if ((statusCode == 204) || (statusCode == 205)
@@ -178,39 +476,83 @@ public class HttpProcessor implements Processor, ActionHook {
             // No entity body
             response.setContentLength(-1);
         } else {
-            // 1. Content-Type
-            String contentType = response.getContentType();
-            if (contentType != null) {
-                response.addHeader("Content-Type", contentType);
-            }
-            String contentLanguage = response.getContentLanguage();
-            if (contentLanguage != null) {
-                response.addHeader("Content-Language", contentLanguage);
-            }
-            // 2. 设置响应体编码处理器
+            // 1. 设置响应体编码处理器，Content-Type、Content-Length 等头域在提交时由 OutputBuffer 直接编码
+            String encoding = useCompression();
             int contentLength = response.getContentLength();
-            if (contentLength != -1) {
-                response.addHeader("Content-Length", String.valueOf(contentLength));
+            if (encoding != null) {
+                // 压缩后的长度未知，使用 chunked 传输
+                if (gzipCodec == null) {
+                    gzipCodec = new GzipCodec(compression);
+                }
+                gzipCodec.start(new ChunkedCodec(), Compression.GZIP.equals(encoding));
+                outBuffer.setBodyCodec(gzipCodec);
+            } else if (contentLength != -1) {
                 outBuffer.setBodyCodec(new IdentityCodec(contentLength));
             } else {
-                response.addHeader("Transfer-Encoding", "chunked");
                 outBuffer.setBodyCodec(new ChunkedCodec());
             }
         }
-        
-        response.addHeader("Server", "RxTomcat/1.0");
+    }
+    
+    /**
+     * 检查响应是否要压缩，要压缩时设置 Content-Encoding 头并去掉 Content-Length
+     * 
+     * @return 压缩方式，不压缩时返回 null
+     */
+    private String useCompression() {
+        if (compression == null || !compression.isEnabled() || sendfile || bodySubscriber != null) {
+            return null;
+        }
+        // 已经编码过的、部分内容的响应不再压缩
+        if (response.containsHeader("Content-Encoding") || response.containsHeader("Content-Range")) {
+            return null;
+        }
+        if (!compression.isCompressible(response.getRawContentType())) {
+            return null;
+        }
+        int contentLength = response.getContentLength();
+        if (contentLength != -1 && contentLength < compression.getMinSize()) {
+            return null;
+        }
+        // 是否压缩取决于 Accept-Encoding，告诉中间的缓存
+        String vary = response.getHeader("Vary");
+        if (vary == null) {
+            response.addHeader("Vary", "Accept-Encoding");
+        } else if (!vary.trim().equals("*") && vary.toLowerCase(Locale.ENGLISH).indexOf("accept-encoding") < 0) {
+            response.setHeader("Vary", vary + ", Accept-Encoding");
+        }
+        // HEAD 请求没有响应体
+        if (request.method().equals("HEAD")) {
+            return null;
+        }
+        MessageBytes acceptEncoding = request.getHeaderValue(KnownHeader.ACCEPT_ENCODING);
+        String encoding = compression.selectEncoding(acceptEncoding == null ? null : acceptEncoding.toString());
+        if (encoding == null) {
+            return null;
+        }
+        response.addHeader("Content-Encoding", encoding);
+        response.setContentLength(-1);
+        // 压缩后的内容与原来的不再逐字节相同，强 ETag 要改为弱 ETag
+        String etag = response.getHeader("ETag");
+        if (etag != null && etag.startsWith("\"")) {
+            response.setHeader("ETag", "W/" + etag);
+        }
+        return encoding;
     }
     
     @Override
     public void action(ActionCode actionCode, Object... param) {
         switch (actionCode) {
         case COMMIT:
-            if (!response.isCommitted()) {
-                try {
-                    prepareResponse();
-                    outBuffer.commit();
-                } catch (IOException e) {
-                    error = true;
+            // 异步处理时可能在应用线程中调用，和容器线程发送流水线请求的响应串行
+            synchronized (socket) {
+                if (!response.isCommitted()) {
+                    try {
+                        prepareResponse();
+                        outBuffer.commit();
+                    } catch (IOException e) {
+                        error = true;
+                    }
                 }
             }
             break;
@@ -224,7 +566,70 @@ public class HttpProcessor implements Processor, ActionHook {
 				e.printStackTrace();
 			}
             break;
+        case SENDFILE:
+            // 响应体不经过 OutputBuffer，响应头发送后由通道直接传输文件，
+            // 在 OutputBuffer.end() 中非阻塞发送，没有发送完时由 Poller 继续发送
+            sendfile = true;
+            action(ActionCode.COMMIT);
+            socket.setSendfileData((SendfileData) param[0]);
+            break;
+        case PUBLISH_BODY:
+            // 响应体由发布者在任意线程中生成，按通道的可写情况请求数据，也不压缩
+            // 可能在应用线程中调用，和通道上的其他处理串行；订阅发布者时不持有通道锁
+            ResponseBodySubscriber responseSubscriber;
+            synchronized (socket) {
+                if (!asyncStateMachine.isAsync() || bodySubscriber != null) {
+                    throw new IllegalStateException("发布响应体前要先开始异步处理，并且只能发布一次");
+                }
+                responseSubscriber = new ResponseBodySubscriber(this, socket, outBuffer);
+                bodySubscriber = responseSubscriber;
+                action(ActionCode.COMMIT);
+            }
+            @SuppressWarnings("unchecked")
+            Publisher<ByteBuffer> publisher = (Publisher<ByteBuffer>) param[0];
+            responseSubscriber.subscribe(publisher);
+            break;
+        case SUBSCRIBE_BODY:
+            // 请求体由 Poller 在通道可读时驱动读取，不占用线程等待慢速的上传
+            // 可能在应用线程中调用，通知订阅者时不持有通道锁
+            RequestBodySubscription subscription;
+            synchronized (socket) {
+                if (!asyncStateMachine.isAsync() || bodySubscription != null) {
+                    throw new IllegalStateException("非阻塞读取请求体前要先开始异步处理，并且只能订阅一次");
+                }
+                @SuppressWarnings("unchecked")
+                Subscriber<? super ByteBuffer> subscriber = (Subscriber<? super ByteBuffer>) param[0];
+                subscription = new RequestBodySubscription(this, socket, inBuffer, subscriber);
+                bodySubscription = subscription;
+            }
+            subscription.start();
+            break;
+        case ASYNC_START:
+            asyncStateMachine.asyncStart();
+            asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+            break;
+        case ASYNC_COMPLETE:
+            if (asyncStateMachine.asyncComplete()) {
+                // 容器线程已经释放，重新提交到线程池
+                socket.getPoller().processSocket(socket, SocketEvent.ASYNC);
+            }
+            break;
+        case ASYNC_DISPATCH:
+            if (asyncStateMachine.asyncDispatch()) {
+                socket.getPoller().processSocket(socket, SocketEvent.ASYNC);
+            }
+            break;
+        case ASYNC_SETTIMEOUT:
+            asyncTimeout = (Long) param[0];
+            break;
         case ACK:
+            synchronized (socket) {
+                try {
+                    outBuffer.sendAck();
+                } catch (IOException e) {
+                    error = true;
+                }
+            }
             break;
         case PARSE_PARAMS:
             inBuffer.readAndParseBody();
@@ -260,7 +665,50 @@ public class HttpProcessor implements Processor, ActionHook {
         }
     }
     
+    @Override
+    public boolean isAsync() {
+        return asyncStateMachine.isAsync();
+    }
+    
+    /**
+     * 异步处理不超时的请求（比如事件流），等待通道可读或可写时仍使用连接器的读写超时，
+     * 停止读取的客户端不会让连接永远占用
+     */
+    @Override
+    public long getAsyncTimeout() {
+        if (asyncTimeout <= 0) {
+            int ops = getAsyncInterestOps();
+            if ((ops & SelectionKey.OP_WRITE) != 0) {
+                return socket.getPoller().getEndpoint().getWriteTimeout();
+            }
+            if ((ops & SelectionKey.OP_READ) != 0) {
+                return socket.getPoller().getEndpoint().getReadTimeout();
+            }
+        }
+        return asyncTimeout;
+    }
+    
+    @Override
+    public int getAsyncInterestOps() {
+        int ops = 0;
+        if (bodySubscription != null && bodySubscription.isReadPending()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if ((bodySubscriber != null && bodySubscriber.isWritePending()) || pipelineWritePending) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        return ops;
+    }
+    
     public void setAdaptor(Adapter adapter) {
         this.adapter = adapter;
     }
+    
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+    
+    public void setMultipartConfig(MultipartConfig multipartConfig) {
+        inBuffer.setMultipartConfig(multipartConfig);
+    }
 }
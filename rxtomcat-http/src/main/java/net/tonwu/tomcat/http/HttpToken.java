@@ -15,6 +15,8 @@
  */
 package net.tonwu.tomcat.http;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * HTTP 协议相关标识符
  * 
@@ -25,6 +27,7 @@ public final class HttpToken {
     public static final byte CR         = (byte) '\r';
     public static final byte LF         = (byte) '\n';
     public static final byte SP         = (byte) ' ';
+    public static final byte HT         = (byte) '\t';
     public static final byte COLON      = (byte) ':';
     public static final byte SEMI_COLON = (byte) ';';
     public static final byte QUESTION   = (byte) '?';
@@ -45,11 +48,51 @@ public final class HttpToken {
         switch (code) {
           case SC_OK: return " OK";
           case SC_CONTINUE: return " Continue";
+          case 201: return " Created";
+          case 202: return " Accepted";
+          case 204: return " No Content";
+          case 206: return " Partial Content";
+          case 301: return " Moved Permanently";
+          case 302: return " Found";
+          case 303: return " See Other";
+          case 307: return " Temporary Redirect";
           case SC_BAD_REQUEST: return " Bad Request";
+          case 401: return " Unauthorized";
+          case 403: return " Forbidden";
           case SC_NOT_FOUND: return " Not Found";
+          case 405: return " Method Not Allowed";
+          case 408: return " Request Timeout";
+          case 411: return " Length Required";
+          case 412: return " Precondition Failed";
+          case 413: return " Payload Too Large";
+          case 416: return " Range Not Satisfiable";
+          case 417: return " Expectation Failed";
           case SC_INTERNAL_SERVER_ERROR: return " Internal Server Error";
+          case 501: return " Not Implemented";
+          case 503: return " Service Unavailable";
+          case 505: return " HTTP Version Not Supported";
           case SC_NOT_MODIFIED: return " Not Modified";
           default: return "";
         }
       }
+    
+    /** 预先编码的状态行，比如 "HTTP/1.1 200 OK\r\n"，按状态码索引 */
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    static {
+        for (int code = 100; code < STATUS_LINES.length; code++) {
+            STATUS_LINES[code] = ("HTTP/1.1 " + code + msg(code) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+    
+    /**
+     * 获取预先编码的状态行
+     * 
+     * @return 状态码不在 100 ~ 599 之间时返回 null
+     */
+    static byte[] statusLine(int code) {
+        if (code < 100 || code >= STATUS_LINES.length) {
+            return null;
+        }
+        return STATUS_LINES[code];
+    }
 }
@@ -17,19 +17,24 @@ package net.tonwu.tomcat.http;
 
 import static net.tonwu.tomcat.http.HttpToken.COLON;
 import static net.tonwu.tomcat.http.HttpToken.CR;
+import static net.tonwu.tomcat.http.HttpToken.HT;
 import static net.tonwu.tomcat.http.HttpToken.LF;
 import static net.tonwu.tomcat.http.HttpToken.QUESTION;
 import static net.tonwu.tomcat.http.HttpToken.SP;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.tonwu.tomcat.http.ActionHook.ActionCode;
+import net.tonwu.tomcat.http.multipart.MultipartConfig;
+import net.tonwu.tomcat.http.multipart.MultipartParser;
+import net.tonwu.tomcat.http.multipart.Part;
 import net.tonwu.tomcat.net.NioChannel;
 
 /**
@@ -52,7 +57,7 @@ public class InputBuffer implements Recyclable, BufferHolder {
         VERSION, // 解析协议版本
         QUERY, // 解析查询参数
         HEADER_NAME, // 解析头域名称
-        HEADER_VALUE, // 解析头域值
+        HEADER_VALUE, // 解析头域值，跳过前后的空白
         HEADER_END, // 解析一个头域完毕
         DONE // 解析完成
     }
@@ -78,7 +83,9 @@ public class InputBuffer implements Recyclable, BufferHolder {
     public void setSocket(NioChannel socket) {
         this.socket = socket;
         byteBuffer = socket.getReadBuffer();
-        byteBuffer.position(0).limit(0);
+        if (!partialHeader) {
+            byteBuffer.position(0).limit(0);
+        }
     }
     
     /**
@@ -87,15 +94,45 @@ public class InputBuffer implements Recyclable, BufferHolder {
      */
     private int rhend;
     
-    private StringBuilder sb = new StringBuilder();
-    private String takeString() {
-        String retv = sb.toString();
-        sb.setLength(0);
-        return retv;
+    /* 正在解析的 token 在缓冲区中的位置，请求头不完整时下次继续 */
+    private int tokenStart;
+    /** 头域值最后一个非空白字符之后的位置 */
+    private int valueEnd;
+    /** 正在解析的头域值 */
+    private MessageBytes headerValue;
+    /** 请求头不完整，已解析的部分引用着缓冲区中的数据，继续解析时不能重置缓冲区 */
+    private boolean partialHeader;
+    
+    /** 常见的请求方法，直接使用常量，不用每次创建字符串 */
+    private static final String[] METHODS = {
+        "GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT"
+    };
+    private static final String[] PROTOCOLS = { "HTTP/1.1", "HTTP/1.0" };
+    private static final byte[][] METHOD_BYTES = toBytes(METHODS);
+    private static final byte[][] PROTOCOL_BYTES = toBytes(PROTOCOLS);
+    
+    private static byte[][] toBytes(String[] values) {
+        byte[][] result = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = values[i].getBytes(StandardCharsets.ISO_8859_1);
+        }
+        return result;
+    }
+    
+    /** 把解析出的字节替换为相同的字符串常量 */
+    private static void intern(MessageBytes mb, byte[][] bytes, String[] values) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (mb.equals(bytes[i])) {
+                mb.setString(values[i]);
+                return;
+            }
+        }
     }
 
     /**
-     * 使用状态机的方法，遍历字节解析请求头（解析时没有进行严谨性校验）
+     * 使用状态机的方法，遍历字节解析请求头（解析时没有进行严谨性校验）。
+     * <p>
+     * 请求行和头域只记录在缓冲区中的位置，不拷贝字节也不创建字符串，头域的名称和值保持原样
      * 
      * @return true - 读取完成，false - 读取到部分请求头
      * @throws IOException
@@ -103,78 +140,83 @@ public class InputBuffer implements Recyclable, BufferHolder {
     public boolean parseRequestLineAndHeaders() throws IOException {
         log.debug("解析请求行和请求 Headers");
         
-        String headerName = null;
         do {
             // 缓冲区是否有数据可读
             if (byteBuffer.position() >= byteBuffer.limit()) {
                 if (!fill(false)) {
+                    partialHeader = true;
                     return false; // 请求头不完整
                 }
             }
-            // 状态机解析请求头，这里直接存储字符串，Tomcat 是在使用时才转字符串
+            int pos = byteBuffer.position();
             byte chr = byteBuffer.get();
             switch (status) {
             case METHOD:
                 if (chr == SP) {
-                    request.setMethod(takeString());
-                    sb.setLength(0);
+                    request.method().setBytes(byteBuffer, tokenStart, pos);
+                    intern(request.method(), METHOD_BYTES, METHODS);
+                    tokenStart = pos + 1;
                     status = ParseStatus.URI;
-                } else {
-                    sb.append((char) chr);
                 }
                 break;
             case URI:
                 if (chr == SP || chr == QUESTION) {
-                    request.setUri(takeString());
-                    sb.setLength(0);
+                    request.uri().setBytes(byteBuffer, tokenStart, pos);
                     if (chr == QUESTION) {
                         status = ParseStatus.QUERY;
                         request.setQueryStartPos(byteBuffer.position());
                     } else {
+                        tokenStart = pos + 1;
                         status = ParseStatus.VERSION;
                     }
-                } else {
-                    sb.append((char) chr);
                 }
                 break;
             case QUERY: // 查询字符串特殊字符会被编码
                 if (chr == SP) {
                     // 获取实际查询字符串的字节数据视图
-                    int queryEndPos = byteBuffer.position();
                     ByteBuffer temp = byteBuffer.duplicate();
-                    temp.position(request.getQueryStartPos()).limit(queryEndPos);
-                    request.setQuery(temp.duplicate());
-                    request.getQuery().mark();
+                    temp.position(request.getQueryStartPos()).limit(pos);
+                    temp.mark();
+                    request.setQuery(temp);
                     
+                    tokenStart = pos + 1;
                     status = ParseStatus.VERSION;
                 }
                 break;
             case VERSION:
                 if (chr == CR) {
+                    valueEnd = pos;
                 } else if (chr == LF) {
-                    request.setProtocol(takeString());
-                    status = ParseStatus.HEADER_NAME;
-                } else {
-                    sb.append((char) chr);
+                    if (valueEnd < tokenStart) {
+                        valueEnd = pos; // 只有 LF
+                    }
+                    request.protocol().setBytes(byteBuffer, tokenStart, valueEnd);
+                    intern(request.protocol(), PROTOCOL_BYTES, PROTOCOLS);
+                    tokenStart = pos + 1;
+                    status = ParseStatus.HEADER_END;
                 }
                 break;
             case HEADER_NAME:
                 if (chr == COLON) {
-                    headerName = takeString().toLowerCase();
+                    headerValue = request.addHeader(byteBuffer, tokenStart, pos);
+                    tokenStart = -1;
                     status = ParseStatus.HEADER_VALUE;
-                } else {
-                    sb.append((char) chr);
                 }
                 break;
             case HEADER_VALUE:
-                if (chr == CR) {
-                } else if (chr == LF) {
-                    // 这里有个空格没处理 ，trim 一下，也可以多加一个 HEADER_VALUE_START 状态来跳过空格
-                    request.addHeader(headerName, takeString().trim().toLowerCase());
-                    headerName = null;
+                if (chr == LF) {
+                    if (tokenStart < 0) {
+                        tokenStart = valueEnd = pos; // 空值
+                    }
+                    headerValue.setBytes(byteBuffer, tokenStart, valueEnd);
+                    headerValue = null;
                     status = ParseStatus.HEADER_END;
-                } else {
-                    sb.append((char) chr);
+                } else if (chr != SP && chr != HT && chr != CR) {
+                    // 跳过值前后的空白
+                    if (tokenStart < 0) {
+                        tokenStart = pos;
+                    }
+                    valueEnd = pos + 1;
                 }
                 break;
             case HEADER_END:
@@ -186,7 +228,7 @@ public class InputBuffer implements Recyclable, BufferHolder {
                     // 记录请求头数据在缓冲区结束的位置
                     rhend = byteBuffer.position();
                 } else {
-                    sb.append((char) chr);
+                    tokenStart = pos;
                     status = ParseStatus.HEADER_NAME;
                 }
                 break;
@@ -194,6 +236,7 @@ public class InputBuffer implements Recyclable, BufferHolder {
                 break;
             }
         } while (status != ParseStatus.DONE);
+        partialHeader = false;
         
         log.debug("请求头部数据读取并解析完毕\r\n======Request======\r\n{}\r\n===================", request);
         
@@ -242,12 +285,42 @@ public class InputBuffer implements Recyclable, BufferHolder {
      * @throws IOException
      */
     public int readBody(BufferHolder buffHolder) throws IOException {
+        if (expectation) {
+            // 第一次读取请求体，通知客户端发送
+            expectation = false;
+            request.action(ActionCode.ACK, null);
+        }
         if (codec != null) {
             return codec.doRead(this, buffHolder);
         } else {
             return realReadBytes(buffHolder);
         }
     }
+    /**
+     * 非阻塞读取请求体数据，读缓冲区中没有数据时只从通道非阻塞读取一次。
+     * <p>
+     * 数据由解码器解析，chunk 头等格式数据不完整时解码器保留解析状态，返回 0，不会阻塞
+     * 
+     * @param buffHolder 持有读取数据的字节视图
+     * @return 读到的字节数，0 表示暂时没有数据，要等待通道可读，-1 表示请求体结束
+     * @throws IOException 连接被关闭或者请求体格式错误
+     */
+    public int readBodyNonBlocking(BufferHolder buffHolder) throws IOException {
+        if (codec == null || codec.available() < 0) {
+            return -1;
+        }
+        if (expectation) {
+            expectation = false;
+            request.action(ActionCode.ACK, null);
+        }
+        nonBlocking = true;
+        try {
+            return codec.doRead(this, buffHolder);
+        } finally {
+            nonBlocking = false;
+        }
+    }
+    
     /**
      * 从底层通道读取数据，并返回一个与结果对应视图 ByteBuffer
      * 
@@ -256,118 +329,186 @@ public class InputBuffer implements Recyclable, BufferHolder {
      * @throws IOException
      */
     public int realReadBytes(BufferHolder buffHolder) throws IOException {
+        return realReadBytes(buffHolder, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * 从底层通道读取数据，最多返回 max 个字节，之后的数据可能属于下一个流水线请求，保留在缓冲区中
+     * 
+     * @param buffHolder 持有读取数据的字节视图，可以为 null
+     * @param max 最多读取的字节数
+     * @return 返回实际读取的数据大小，-1 表示连接被关闭，非阻塞读取时 0 表示暂时没有数据
+     * @throws IOException
+     */
+    public int realReadBytes(BufferHolder buffHolder, int max) throws IOException {
         if (byteBuffer.position() >= byteBuffer.limit()) {
-            if(!fill(true)) {
-                buffHolder.setByteBuffer(null);
-                return -1;
+            if(!fill(!nonBlocking)) {
+                if (buffHolder != null) {
+                    buffHolder.setByteBuffer(null);
+                }
+                return nonBlocking ? 0 : -1;
             }
         }
-        int length = byteBuffer.remaining();
+        int length = Math.min(byteBuffer.remaining(), max);
         if (buffHolder != null) {
             // dst 与 byteBuffer 底层共用一个 byte[]
-            buffHolder.setByteBuffer(byteBuffer.duplicate());
+            ByteBuffer view = byteBuffer.duplicate();
+            view.limit(view.position() + length);
+            buffHolder.setByteBuffer(view);
         }
-        byteBuffer.position(byteBuffer.limit());
+        byteBuffer.position(byteBuffer.position() + length);
         return length;
     }
     
-    private int maxPostSize = 1 * 1024 * 1024;
-    
     /**
-     * 存储 post 数据，最大 1M
+     * 请求体解码器自己在缓冲区视图上解析时（比如 chunked），读取结束后把缓冲区的位置设置到请求体之后，
+     * 剩余的数据属于下一个流水线请求
+     * 
+     * @param position 请求体结束的位置
      */
-    private ByteBuffer body = ByteBuffer.allocate(maxPostSize); // 1MB
+    public void setBodyEnd(int position) {
+        byteBuffer.position(position);
+    }
+    
+    /** 读缓冲区中还未处理的字节数，请求处理完后不为 0 说明客户端发送了流水线请求 */
+    public int available() {
+        return byteBuffer == null ? 0 : byteBuffer.remaining();
+    }
+    
+    /** POST 表单数据的最大字节数，只用于计数，不再预先分配缓冲区 */
+    private int maxPostSize = 1 * 1024 * 1024;
+    
     private ByteBuffer bodyView = null; // 部分请求体数据
     
+    /** 客户端发送了 Expect: 100-continue，还在等待 100 响应才发送请求体 */
+    private boolean expectation = false;
+    
+    /** 正在 readBodyNonBlocking 中，解码器读取通道时不阻塞 */
+    private boolean nonBlocking = false;
+    
+    /** multipart/form-data 请求的解析配置 */
+    private MultipartConfig multipartConfig = new MultipartConfig();
+    
     /**
-     * 解析 GET 和 POST 请求参数
+     * 解析 GET 和 POST 请求参数，请求体边读取边解码，不缓存整个请求体
      */
     public void readAndParseBody() {
         request.setParametersParsed(true);
+        Parameters parameters = request.getParameters();
+        parseParameters(parameters);
+        // 和解析出错一样，丢弃了参数时也要让应用知道参数不完整
+        if (parameters.isLimitExceeded()) {
+            request.setParseParamFail(true);
+        }
+    }
+    
+    private void parseParameters(Parameters parameters) {
         // 1. 解析查询参数 GET
         if (request.getQuery() != null) {
-            request.getQuery().reset();
-            byte[] queryBytes = new byte[request.getQuery().remaining()];
-            request.getQuery().get(queryBytes);
-            parseParameters(queryBytes);
+            ByteBuffer query = request.getQuery().duplicate();
+            query.reset();
+            parameters.startDecode(request.getEncoding());
+            parameters.decode(query);
+            parameters.endDecode();
         }
         
         // 2. 解析 post 请求参数并且是以键值对进行传输
-        if (!"POST".contentEquals(request.getMethod()) || 
-                !request.getContentType().contains("application/x-www-form-urlencoded")) {
+        String contentType = request.getContentType();
+        if (!request.method().equals("POST") || contentType == null) {
+            return;
+        }
+        String lowerType = contentType.toLowerCase(Locale.ENGLISH);
+        if (lowerType.startsWith("multipart/form-data")) {
+            parseParts(contentType);
+            return;
+        }
+        if (!lowerType.contains("application/x-www-form-urlencoded")) {
             return;
         }
         
-        // 3. 读取请求体数据
-        body.clear();
+        // 3. 读取并解码请求体数据，identity 和 chunked 由请求体解码器处理
+        int len = request.getContentLength();
+        if (len > maxPostSize) {
+            request.setParseParamFail(true);
+            return;
+        }
+        if (codec == null) {
+            return; // 没有请求体
+        }
+        parameters.startDecode(request.getEncoding());
         try {
-            int len = request.getContentLength();
-            if (len > 0) { // identity 传输编码
-                if (len > maxPostSize) {
+            int total = 0, n;
+            while ((n = readBody(this)) >= 0) {
+                total += n;
+                if (total > maxPostSize) { // POST 数据太大了
                     request.setParseParamFail(true);
                     return;
                 }
-                // 循环读取指定数量的字节
-                int n = -1;
-                while (len > 0 && ((n = readBody(this)) >= 0)) {
-                    body.put(bodyView);
-                    len -= n;
-                }
-            } else if ("chunked".equalsIgnoreCase(request.getHeader("transfer-encoding"))){
-                // chunked 传输编码
-                len = 0;
-                int n = 0;
-                while ((n = readBody(this)) >= 0) {
-                    body.put(bodyView);
-                    len += n;
-                    if (len > maxPostSize) { // POST 数据太大了
-                        request.setParseParamFail(true);
-                        return;
-                    }
-                }
+                parameters.decode(bodyView);
             }
         } catch (IOException ioe) {
             ioe.printStackTrace();
             request.setParseParamFail(true);
             return;
         }
-        
-        // 5. 解析参数
-        body.flip();
-        byte[] post = new byte[body.remaining()];
-        body.get(post);
-        parseParameters(post);
+        parameters.endDecode();
     }
     
     /**
-     * 解析请求参数，查询参数，查询参数可以是这样 a=%E5%88%9B+a
+     * 流式解析 multipart/form-data 请求体，上传的文件超过阈值时写入临时文件，
+     * 普通的表单字段同时作为请求参数
      */
-    private void parseParameters(byte[] body) {
-        String params = new String(body, request.getEncoding());
-        try {
-            // 将形如 "%xy" 的编码，转为正确的字符串
-            params = URLDecoder.decode(params, request.getEncoding().toString());
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+    private void parseParts(String contentType) {
+        byte[] boundary = MultipartParser.getBoundary(contentType);
+        long maxRequestSize = multipartConfig.getMaxRequestSize();
+        if (boundary == null || codec == null
+                || (maxRequestSize >= 0 && request.getContentLength() > maxRequestSize)) {
+            request.setParseParamFail(true);
+            return;
         }
-        
-        // 参数格式为 "a=1&b=&c=2"
-        String[] param = params.split("&");
-        if (param != null && param.length > 0) {
-            for (String ele : param) {
-                if (ele.startsWith("=")) {
-                    continue; // no name
+        MultipartParser parser = new MultipartParser(boundary, multipartConfig, request.getParts());
+        // 表单字段会作为请求参数保存在内存中，和 urlencoded 请求体一样受 maxPostSize 限制
+        parser.setMaxFieldSize(maxPostSize);
+        try {
+            long total = 0;
+            int n;
+            while ((n = readBody(this)) >= 0) {
+                total += n;
+                if (maxRequestSize >= 0 && total > maxRequestSize) {
+                    request.setParseParamFail(true);
+                    return;
                 }
-                try {
-                    String[] nv = ele.trim().split("=");
-                    String name = nv[0];
-                    String value = nv.length > 1 ? nv[1] : "";
-                    request.getParameters().put(name, value);
-                } catch (Exception ignore) {
+                parser.parse(bodyView);
+            }
+            parser.end();
+        } catch (IOException ioe) {
+            log.warn("解析 multipart 请求体失败", ioe);
+            request.setParseParamFail(true);
+            return;
+        }
+        Parameters parameters = request.getParameters();
+        try {
+            for (Part part : request.getParts()) {
+                if (part.getSubmittedFileName() == null) {
+                    parameters.addParameter(part.getName(), part.getString(request.getEncoding()));
                 }
             }
+        } catch (IOException ioe) {
+            log.warn("读取 multipart 表单字段失败", ioe);
+            request.setParseParamFail(true);
         }
     }
+    
+    public void setMultipartConfig(MultipartConfig multipartConfig) {
+        this.multipartConfig = multipartConfig;
+    }
+    
+    public int getMaxPostSize() {
+        return maxPostSize;
+    }
+    public void setMaxPostSize(int maxPostSize) {
+        this.maxPostSize = maxPostSize;
+    }
 
     public void setBodyCodec(BodyCodec body) {
         this.codec = body;
@@ -376,7 +517,21 @@ public class InputBuffer implements Recyclable, BufferHolder {
         request = req;
     }
 
+    public void setExpectation(boolean expectation) {
+        this.expectation = expectation;
+    }
+    /**
+     * @return true 客户端还在等待 100 响应，请求体没有发送
+     */
+    public boolean hasExpectation() {
+        return expectation;
+    }
+    
     public void end() throws IOException {
+        if (expectation) {
+            // 没有读取请求体，客户端也就没有发送，不用跳过
+            return;
+        }
         if (codec != null) {
             codec.endRead(this);
         }
@@ -388,10 +543,17 @@ public class InputBuffer implements Recyclable, BufferHolder {
         
         status = ParseStatus.METHOD;
         parsingHeader = true;
-        byteBuffer.clear();
-        body.clear();
+        // 保留下一个流水线请求的数据，移动到缓冲区开头
+        byteBuffer.compact();
+        byteBuffer.flip();
         codec = null;
+        bodyView = null;
+        expectation = false;
         rhend = 0;
+        tokenStart = 0;
+        valueEnd = 0;
+        headerValue = null;
+        partialHeader = false;
     }
 
     // BufferHolder Method
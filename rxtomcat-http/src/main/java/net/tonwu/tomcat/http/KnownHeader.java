@@ -0,0 +1,104 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http;
+
+/**
+ * 常用的请求头域，解析时就确定它们在 RawRequest 中的位置，读取时不用再逐个比较名称
+ *
+ * @author tonwu.net
+ */
+public enum KnownHeader {
+    HOST("host"),
+    CONNECTION("connection"),
+    CONTENT_LENGTH("content-length"),
+    CONTENT_TYPE("content-type"),
+    TRANSFER_ENCODING("transfer-encoding"),
+    COOKIE("cookie"),
+    EXPECT("expect"),
+    ACCEPT_ENCODING("accept-encoding"),
+    IF_MATCH("if-match"),
+    IF_NONE_MATCH("if-none-match"),
+    IF_MODIFIED_SINCE("if-modified-since"),
+    IF_UNMODIFIED_SINCE("if-unmodified-since"),
+    RANGE("range");
+
+    /** 小写的名称 */
+    private final String lowerName;
+
+    private KnownHeader(String lowerName) {
+        this.lowerName = lowerName;
+    }
+
+    public String getName() {
+        return lowerName;
+    }
+
+    /** values() 每次都会拷贝数组 */
+    static final KnownHeader[] VALUES = values();
+
+    /** 按名称长度分组，查找时只比较长度相同的 */
+    private static final KnownHeader[][] BY_LENGTH;
+    static {
+        int max = 0;
+        for (KnownHeader h : VALUES) {
+            max = Math.max(max, h.lowerName.length());
+        }
+        BY_LENGTH = new KnownHeader[max + 1][0];
+        for (KnownHeader h : VALUES) {
+            KnownHeader[] group = BY_LENGTH[h.lowerName.length()];
+            KnownHeader[] grown = new KnownHeader[group.length + 1];
+            System.arraycopy(group, 0, grown, 0, group.length);
+            grown[group.length] = h;
+            BY_LENGTH[h.lowerName.length()] = grown;
+        }
+    }
+
+    /**
+     * 查找解析出的头域名称对应的常用头域
+     *
+     * @return 不是常用头域时返回 null
+     */
+    static KnownHeader lookup(MessageBytes name) {
+        int len = name.getLength();
+        if (len >= BY_LENGTH.length) {
+            return null;
+        }
+        for (KnownHeader h : BY_LENGTH[len]) {
+            if (name.equalsIgnoreCase(h.lowerName)) {
+                return h;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 根据名称查找常用头域，不区分大小写
+     *
+     * @return 不是常用头域时返回 null
+     */
+    public static KnownHeader lookup(String name) {
+        int len = name.length();
+        if (len >= BY_LENGTH.length) {
+            return null;
+        }
+        for (KnownHeader h : BY_LENGTH[len]) {
+            if (h.lowerName.equalsIgnoreCase(name)) {
+                return h;
+            }
+        }
+        return null;
+    }
+}
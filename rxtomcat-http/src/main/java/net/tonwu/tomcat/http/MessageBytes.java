@@ -0,0 +1,178 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 请求行或头域中的一段字节，参考 Tomcat 的 MessageBytes。
+ * <p>
+ * 解析时只记录数据在读缓冲区中的起止位置，不拷贝也不创建字符串，真正使用时才按
+ * ISO-8859-1 转换为 String 并缓存。对象随请求回收后重复使用，所以缓冲区中的数据
+ * 只在当前请求处理期间有效
+ *
+ * @author tonwu.net
+ */
+public final class MessageBytes implements Recyclable {
+    /** 引用的读缓冲区，可能是直接缓冲区，只使用绝对位置访问 */
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+
+    /** 转换后的字符串，或者直接设置的字符串 */
+    private String strValue;
+
+    /**
+     * 引用缓冲区中的一段字节
+     *
+     * @param buffer 读缓冲区
+     * @param start 起始位置
+     * @param end 结束位置（不包含）
+     */
+    public void setBytes(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        strValue = null;
+    }
+
+    /** 直接设置字符串，比如请求方法的常量 */
+    public void setString(String s) {
+        buffer = null;
+        start = end = 0;
+        strValue = s;
+    }
+
+    public boolean isNull() {
+        return buffer == null && strValue == null;
+    }
+
+    public int getLength() {
+        if (buffer != null) {
+            return end - start;
+        }
+        return strValue == null ? 0 : strValue.length();
+    }
+
+    @Override
+    public String toString() {
+        if (strValue == null && buffer != null) {
+            char[] chars = new char[end - start];
+            for (int i = start; i < end; i++) {
+                chars[i - start] = (char) (buffer.get(i) & 0xFF);
+            }
+            strValue = new String(chars);
+        }
+        return strValue;
+    }
+
+    /** 与字符串比较，区分大小写，不会创建字符串 */
+    public boolean equals(String s) {
+        if (buffer == null) {
+            return strValue != null && strValue.equals(s);
+        }
+        int len = end - start;
+        if (s == null || s.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if ((char) (buffer.get(start + i) & 0xFF) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** 与字符串比较，忽略 ASCII 字母的大小写，不会创建字符串 */
+    public boolean equalsIgnoreCase(String s) {
+        if (buffer == null) {
+            return strValue != null && strValue.equalsIgnoreCase(s);
+        }
+        int len = end - start;
+        if (s == null || s.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (toLower(buffer.get(start + i) & 0xFF) != toLower(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** 是否等于给定的字节，区分大小写 */
+    boolean equals(byte[] b) {
+        if (buffer == null || b.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < b.length; i++) {
+            if (buffer.get(start + i) != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把十进制数字转换为 long，不会创建字符串
+     *
+     * @throws NumberFormatException 为空、含有非数字字符或者溢出
+     */
+    public long getLong() {
+        if (buffer == null) {
+            return Long.parseLong(strValue);
+        }
+        if (end <= start) {
+            throw new NumberFormatException("空的数字");
+        }
+        long v = 0;
+        for (int i = start; i < end; i++) {
+            int d = buffer.get(i) - '0';
+            if (d < 0 || d > 9 || v > (Long.MAX_VALUE - d) / 10) {
+                throw new NumberFormatException(toString());
+            }
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    /**
+     * 把十进制数字转换为 int，不会创建字符串
+     *
+     * @throws NumberFormatException 为空、含有非数字字符或者超出 int 的范围
+     */
+    public int getInt() {
+        if (buffer == null) {
+            return Integer.parseInt(strValue);
+        }
+        long v = getLong();
+        if (v > Integer.MAX_VALUE) {
+            throw new NumberFormatException(toString());
+        }
+        return (int) v;
+    }
+
+    private static int toLower(int c) {
+        return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+    }
+
+    @Override
+    public void recycle() {
+        buffer = null;
+        start = end = 0;
+        strValue = null;
+    }
+}
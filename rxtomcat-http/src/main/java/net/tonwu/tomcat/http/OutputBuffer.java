@@ -16,13 +16,21 @@
 package net.tonwu.tomcat.http;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.Map.Entry;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.tonwu.tomcat.http.ActionHook.ActionCode;
+import net.tonwu.tomcat.http.codecs.GzipCodec;
+import net.tonwu.tomcat.http.codecs.IdentityCodec;
 import net.tonwu.tomcat.net.NioChannel;
 
 /**
@@ -35,9 +43,22 @@ public class OutputBuffer implements Recyclable {
     
     public static final byte[] HTTP_1_1 = "HTTP/1.1 ".getBytes();
     public static final byte[] CRLF_BYTES = "\r\n".getBytes();
+    public static final byte[] ACK_BYTES = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
     
+    /** 小于此大小的数据直接拷贝到写缓冲区，合并后一起发送；否则引用原缓冲区，聚集写出 */
+    public static final int GATHER_THRESHOLD = 1024;
+    
+    /** byteBuffer 引用的是 NioChannel 内部的 writebuff，在提交响应头时才借用 */
     private ByteBuffer byteBuffer;
-    private BodyCodec codec;
+    /**
+     * 待聚集写出的缓冲区，segments[0] 固定是 byteBuffer，之后是引用的响应体数据；
+     * 引用的是调用方的缓冲区，所以在 writeBody 返回前必须写出
+     */
+    private final ByteBuffer[] segments = new ByteBuffer[8];
+    private int segmentCount = 1;
+    private BodyEncoder codec;
+    /** 响应是否已经结束，CLOSE 动作和请求处理结束时都会调用 end() */
+    private boolean finished = false;
     
     private NioChannel socket;
     private RawResponse resp;
@@ -47,57 +68,192 @@ public class OutputBuffer implements Recyclable {
     }
     public void setSocket(NioChannel socket) {
         this.socket = socket;
-        byteBuffer = socket.getWriteBufffer();
-        byteBuffer.clear();
     }
     /**
-     * 将响应头写入到缓冲区
+     * 将响应头写入到缓冲区。
+     * <p>
+     * 状态行、常用头域名称都是预先编码好的字节，Date 头每秒只生成一次，其他的字符串直接按
+     * ISO-8859-1 编码到缓冲区，整个过程不产生临时对象
      * 
      * @throws IOException
      */
     public void commit() throws IOException {
         resp.setCommitted(true);
+        if (byteBuffer == null) {
+            byteBuffer = socket.getWriteBufffer();
+        }
         int pos = byteBuffer.position();
+        try {
+            writeHeaders();
+        } catch (BufferOverflowException e) {
+            if (pos == 0) {
+                throw e;
+            }
+            // 写缓冲区中还有之前流水线请求的响应，先发送出去
+            byteBuffer.position(pos);
+            socket.flush();
+            pos = 0;
+            writeHeaders();
+        }
         
+        log.debug("将响应头部 [{}B] 数据写入提交到底层缓冲区", (byteBuffer.position() - pos + 1));
+    }
+    
+    private void writeHeaders() {
         // 1. 将状态行写入缓冲区
-        byteBuffer.put(HttpToken.HTTP_1_1);
         int status = resp.getStatus();
-        byteBuffer.put(String.valueOf(status).getBytes());
-        
-        byte[] msg = null;
-        if (resp.getMessage() != null) {
-            msg = resp.getMessage().getBytes(resp.getCharacterEncoding());
+        String message = resp.getMessage();
+        byte[] statusLine = HttpToken.statusLine(status);
+        if (statusLine != null && (message == null || message.isEmpty())) {
+            byteBuffer.put(statusLine);
         } else {
-            msg = HttpToken.msg(status).getBytes();
+            byteBuffer.put(HttpToken.HTTP_1_1);
+            putInt(status);
+            if (message != null && !message.isEmpty()) {
+                byteBuffer.put(HttpToken.SP);
+                putString(message);
+            }
+            byteBuffer.put(HttpToken.CRLF);
         }
         
-        byteBuffer.put(msg);
-        byteBuffer.put(HttpToken.CRLF);
-        
-        // 2. 将响应头域写入缓冲区
-        for (Entry<String, String> header : resp.headers().entrySet()) {
-            byte[] name = header.getKey().getBytes();
-            if ("Set-Cookie".equalsIgnoreCase(header.getKey())) {
-                for (String cookie : header.getValue().split(";")) {
-                    writeHeader(name, cookie.getBytes());
+        // 2. 实体相关的头域，没有响应体时不发送
+        if (codec != null) {
+            String contentType = resp.getRawContentType();
+            if (contentType != null) {
+                byteBuffer.put(CONTENT_TYPE);
+                putString(contentType);
+                String encoding = resp.getCharacterEncoding();
+                if (encoding != null) {
+                    byteBuffer.put(CHARSET);
+                    putString(encoding);
                 }
+                byteBuffer.put(HttpToken.CRLF);
+            }
+            String contentLanguage = resp.getContentLanguage();
+            if (contentLanguage != null) {
+                writeHeader(CONTENT_LANGUAGE, contentLanguage);
+            }
+            if (codec instanceof IdentityCodec) {
+                byteBuffer.put(CONTENT_LENGTH);
+                putInt(resp.getContentLength());
+                byteBuffer.put(HttpToken.CRLF);
             } else {
-                writeHeader(name, header.getValue().getBytes());
+                // chunked，或者压缩后再 chunked
+                byteBuffer.put(TRANSFER_ENCODING_CHUNKED);
             }
         }
-        byteBuffer.put(HttpToken.CRLF);
         
-        log.debug("将响应头部 [{}B] 数据写入提交到底层缓冲区", (byteBuffer.position() - pos + 1));
+        // 3. 将响应头域写入缓冲区
+        int count = resp.getHeaderCount();
+        for (int i = 0; i < count; i++) {
+            String name = resp.getHeaderName(i);
+            writeHeader(HEADER_NAMES.get(name), name, resp.getHeaderValue(i));
+        }
+        // 应用已经设置了的不再重复发送
+        if (!resp.containsHeader("Server")) {
+            byteBuffer.put(SERVER);
+        }
+        if (!resp.containsHeader("Date")) {
+            byteBuffer.put(dateLine());
+        }
+        byteBuffer.put(HttpToken.CRLF);
     }
     
-    private void writeHeader(byte[] name, byte[] value) {
-        byteBuffer.put(name);
-        byteBuffer.put(HttpToken.COLON);
-        byteBuffer.put(HttpToken.SP);
-        byteBuffer.put(value);
+    /* 预先编码的头域名称，包括冒号和空格 */
+    private static final byte[] CONTENT_TYPE = headerName("Content-Type");
+    private static final byte[] CONTENT_LANGUAGE = headerName("Content-Language");
+    private static final byte[] CONTENT_LENGTH = headerName("Content-Length");
+    private static final byte[] CHARSET = ";charset=".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SERVER = "Server: RxTomcat/1.0\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    
+    /** 其他常用的头域名称，按名称查找，只有大小写完全一致时才使用 */
+    private static final HashMap<String, byte[]> HEADER_NAMES = new HashMap<>();
+    static {
+        String[] names = { "Cache-Control", "Connection", "Content-Disposition", "Content-Encoding",
+                "Content-Range", "Accept-Ranges", "ETag", "Expires", "Keep-Alive", "Last-Modified",
+                "Location", "Set-Cookie", "Vary", "WWW-Authenticate" };
+        for (String name : names) {
+            HEADER_NAMES.put(name, headerName(name));
+        }
+    }
+    private static byte[] headerName(String name) {
+        return (name + ": ").getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    /** 缓存的 Date 头，每秒更新一次 */
+    private static volatile CachedDate cachedDate;
+    private static final class CachedDate {
+        final long second;
+        final byte[] line;
+        CachedDate(long second, byte[] line) {
+            this.second = second;
+            this.line = line;
+        }
+    }
+    private static byte[] dateLine() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate date = cachedDate;
+        if (date == null || date.second != second) {
+            // 多个线程同时更新也没有关系，结果是一样的
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            String line = "Date: " + format.format(new Date(second * 1000)) + "\r\n";
+            date = new CachedDate(second, line.getBytes(StandardCharsets.ISO_8859_1));
+            cachedDate = date;
+        }
+        return date.line;
+    }
+    
+    private void writeHeader(byte[] encodedName, String name, String value) {
+        if (encodedName != null) {
+            byteBuffer.put(encodedName);
+        } else {
+            putString(name);
+            byteBuffer.put(HttpToken.COLON);
+            byteBuffer.put(HttpToken.SP);
+        }
+        putString(value);
+        byteBuffer.put(HttpToken.CRLF);
+    }
+    private void writeHeader(byte[] encodedName, String value) {
+        byteBuffer.put(encodedName);
+        putString(value);
         byteBuffer.put(HttpToken.CRLF);
     }
     
+    /** 编码时使用的临时数组，批量放入缓冲区 */
+    private final byte[] scratch = new byte[256];
+    
+    /** 按 ISO-8859-1 编码字符串，其他字符使用 '?' 代替 */
+    private void putString(String s) {
+        int len = s.length();
+        int off = 0;
+        while (off < len) {
+            int n = Math.min(len - off, scratch.length);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(off + i);
+                scratch[i] = c > 0xFF ? (byte) '?' : (byte) c;
+            }
+            byteBuffer.put(scratch, 0, n);
+            off += n;
+        }
+    }
+    
+    /** 写入十进制数字 */
+    private void putInt(int v) {
+        if (v < 0) {
+            byteBuffer.put((byte) '-');
+            v = -v;
+        }
+        int i = scratch.length;
+        do {
+            scratch[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        byteBuffer.put(scratch, i, scratch.length - i);
+    }
+    
     /**
      * 写入响应体数据前，响应头确认已写入缓冲区
      * 
@@ -112,10 +268,65 @@ public class OutputBuffer implements Recyclable {
         if (src.remaining() > 0) {
             log.debug("写入响应体数据 [{}B]", src.remaining());
             codec.doWrite(this, src);
+            if (segmentCount > 1) {
+                flushSegments(); // 调用方会复用 src
+            }
         }
     }
     
+    /**
+     * 非阻塞写入响应体数据，用于响应式流。调用前之前写入的数据必须已经全部发送，
+     * 所以小数据拷贝到写缓冲区时不会阻塞
+     * 
+     * @param src 待写入的数据，返回 false 时被引用，直到 flushNonBlocking 返回 true
+     * @return true 已经全部发送，false 通道暂时不可写，要在可写时调用 flushNonBlocking
+     * @throws IOException
+     */
+    public boolean writeBodyNonBlocking(ByteBuffer src) throws IOException {
+        if (!resp.isCommitted()) {
+            resp.action(ActionCode.COMMIT, null);
+        }
+        if (codec != null && src.remaining() > 0) {
+            log.debug("非阻塞写入响应体数据 [{}B]", src.remaining());
+            codec.doWrite(this, src);
+        }
+        return flushNonBlocking();
+    }
+    
+    /**
+     * 非阻塞发送写缓冲区和引用的数据，没有发送完的数据保持原样，留到下次调用
+     * 
+     * @return true 已经全部发送，false 还有剩余数据
+     * @throws IOException
+     */
+    public boolean flushNonBlocking() throws IOException {
+        if (segmentCount == 1) {
+            return socket.flushNonBlocking();
+        }
+        byteBuffer.flip();
+        segments[0] = byteBuffer;
+        socket.writeNonBlocking(segments, 0, segmentCount);
+        byteBuffer.compact();
+        if (byteBuffer.position() > 0 || segments[segmentCount - 1].hasRemaining()) {
+            return false;
+        }
+        clearSegments();
+        return true;
+    }
+    
+    /**
+     * 放弃还没有发送的响应，end() 不再写入结束标记，客户端通过连接关闭得知响应不完整
+     */
+    public void abort() {
+        finished = true;
+        clearSegments();
+    }
+    
     public void end() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
         if (!resp.isCommitted()) {
             resp.action(ActionCode.COMMIT, null);
         }
@@ -123,7 +334,22 @@ public class OutputBuffer implements Recyclable {
         if (codec != null) {
             codec.endWrite(this);
         }
-        flush();
+        if (segmentCount > 1) {
+            flushSegments();
+        }
+        // 最后的数据留在通道的写缓冲区中，由 HttpProcessor 决定立即发送，还是和后面流水线请求的响应合并发送
+    }
+    
+    /**
+     * 发送 100 Continue 中间响应，客户端收到后才开始发送请求体。
+     * 最终响应已经提交时不能再发送
+     */
+    public void sendAck() throws IOException {
+        if (resp.isCommitted()) {
+            return;
+        }
+        write(ACK_BYTES);
+        socket.flush();
     }
     
     public void write(byte[] b) throws IOException {
@@ -132,24 +358,98 @@ public class OutputBuffer implements Recyclable {
     public void write(ByteBuffer b) throws IOException {
     	write(b, false);
     }
-    // 写入通道待发送缓冲区
+    /**
+     * 写入一段响应数据。小数据拷贝到通道的写缓冲区；大数据或者前面已经有引用的数据时，
+     * 只记录它的引用，在 flush 时和写缓冲区一起聚集写出，保证数据的顺序
+     */
     public void write(ByteBuffer src, boolean flip) throws IOException {
     	if (flip) src.flip();
-    	while (src.hasRemaining()) {
-    	    // 无空间可供写入
-    		if (byteBuffer.remaining() == 0) {
-    		    socket.flush(); // 把数据发送到客户端
-    		}
-    		byteBuffer.put(src);
+    	if (byteBuffer == null) {
+    	    byteBuffer = socket.getWriteBufffer();
+    	}
+    	if (segmentCount == 1 && src.remaining() < GATHER_THRESHOLD) {
+    	    if (src.remaining() > byteBuffer.remaining()) {
+    	        socket.flush(); // 把数据发送到客户端
+    	    }
+    	    byteBuffer.put(src);
+    	    src.clear();
+    	} else if (src.hasRemaining()) {
+    	    if (segmentCount == segments.length) {
+    	        flush();
+    	    }
+    	    segments[segmentCount++] = src;
     	}
-    	src.clear();
     	// 以防超时
     	socket.access();
     }
+    /**
+     * 发送引用的数据。先非阻塞写一次，剩余的数据能放进写缓冲区时拷贝进去，留给后续的写入
+     * 或者 Poller 发送，不必阻塞等待慢速的客户端；否则阻塞发送。
+     * <p>
+     * 编码器要复用写入的数据所在的数组时，必须先调用此方法
+     */
+    public void flushSegments() throws IOException {
+        if (segmentCount == 1) {
+            return;
+        }
+        byteBuffer.flip();
+        segments[0] = byteBuffer;
+        try {
+            socket.writeNonBlocking(segments, 0, segmentCount);
+            byteBuffer.compact();
+            int left = 0;
+            for (int i = 1; i < segmentCount; i++) {
+                left += segments[i].remaining();
+            }
+            if (left <= byteBuffer.remaining()) {
+                for (int i = 1; i < segmentCount; i++) {
+                    byteBuffer.put(segments[i]);
+                }
+            } else {
+                byteBuffer.flip();
+                if (log.isDebugEnabled()) {
+                    log.debug("聚集写入 [{}] 个缓冲区", segmentCount);
+                }
+                socket.write(segments, 0, segmentCount);
+                byteBuffer.clear();
+            }
+        } finally {
+            clearSegments();
+        }
+    }
+    
+    /**
+     * 阻塞发送写缓冲区和引用的数据
+     */
     public void flush() throws IOException {
-        socket.flush();
+        if (codec instanceof GzipCodec) {
+            // 压缩器内部缓存的数据也要输出
+            ((GzipCodec) codec).flush(this);
+        }
+        if (segmentCount == 1) {
+            socket.flush();
+            return;
+        }
+        byteBuffer.flip();
+        segments[0] = byteBuffer;
+        if (log.isDebugEnabled()) {
+            log.debug("聚集写入 [{}] 个缓冲区", segmentCount);
+        }
+        try {
+            socket.write(segments, 0, segmentCount);
+        } finally {
+            byteBuffer.clear();
+            clearSegments();
+        }
+    }
+    
+    private void clearSegments() {
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = null;
+        }
+        segmentCount = 1;
     }
-    public void setBodyCodec(BodyCodec body) {
+    public void setBodyCodec(BodyEncoder body) {
         this.codec = body;
     }
 
@@ -160,7 +460,13 @@ public class OutputBuffer implements Recyclable {
     public void recycle() {
         resp.recycle();
         
-        byteBuffer.clear();
+        // 写缓冲区属于通道，可能还有等待 Poller 发送的数据，不能清空
+        byteBuffer = null;
+        clearSegments();
+        if (codec instanceof Recyclable) {
+            ((Recyclable) codec).recycle();
+        }
         codec = null;
+        finished = false;
     }
 }
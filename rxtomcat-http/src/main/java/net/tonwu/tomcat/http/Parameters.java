@@ -0,0 +1,283 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 请求参数，同一个名称可以有多个值，按出现的顺序保存。
+ * <p>
+ * 同时也是 application/x-www-form-urlencoded 格式的增量解码器：数据可以分多次传入，
+ * 比如请求体解码器每次返回的一块数据，不用先把整个请求体拼接起来。名称和值各自解码，
+ * 所以编码过的 '&amp;'、'=' 不会被当作分隔符；'%xy' 被拆分到两块数据中也能正确处理。
+ * 解码时只使用一个按需增长的小数组保存当前的名称或值
+ *
+ * @author tonwu.net
+ */
+public final class Parameters implements Recyclable {
+    final static Logger log = LoggerFactory.getLogger(Parameters.class);
+
+    /** 最多解析的参数个数，防止大量参数的哈希碰撞攻击，-1 表示不限制 */
+    private int maxParameterCount = 10000;
+    private int parameterCount = 0;
+    /** 是否因为超过最大参数个数丢弃了参数 */
+    private boolean limitExceeded = false;
+
+    private final LinkedHashMap<String, ArrayList<String>> params = new LinkedHashMap<>();
+
+    /* 解码状态 */
+    private static final int TEXT = 0;
+    private static final int PERCENT = 1; // 遇到了 '%'
+    private static final int PERCENT_HEX = 2; // 遇到了 '%' 和一个十六进制字符
+
+    private int state = TEXT;
+    /** '%' 后面的第一个十六进制字符 */
+    private byte hex1;
+    /** 正在解码的名称或值，已经还原了 '%xy' 和 '+' */
+    private byte[] token = new byte[64];
+    private int tokenLength = 0;
+    /** 已解码的名称，为 null 表示当前正在解码名称 */
+    private String pendingName;
+    /** 解码字节使用的字符集 */
+    private Charset charset;
+
+    /**
+     * 开始解码新的一段参数数据，比如查询字符串或者请求体
+     *
+     * @param charset 名称和值的字符集
+     */
+    public void startDecode(Charset charset) {
+        this.charset = charset;
+        state = TEXT;
+        tokenLength = 0;
+        pendingName = null;
+    }
+
+    /**
+     * 解码一块数据，不要求是完整的参数，剩余部分在下次调用或 endDecode 时处理
+     *
+     * @param chunk 数据，只使用绝对位置读取，不会改变它的位置
+     */
+    public void decode(ByteBuffer chunk) {
+        int limit = chunk.limit();
+        for (int i = chunk.position(); i < limit; i++) {
+            byte b = chunk.get(i);
+            switch (state) {
+            case PERCENT:
+                if (hexValue(b) < 0) {
+                    // 无效的转义，按原样保留
+                    append((byte) '%');
+                    state = TEXT;
+                    text(b);
+                } else {
+                    hex1 = b;
+                    state = PERCENT_HEX;
+                }
+                break;
+            case PERCENT_HEX:
+                state = TEXT;
+                if (hexValue(b) < 0) {
+                    append((byte) '%');
+                    append(hex1);
+                    text(b);
+                } else {
+                    append((byte) ((hexValue(hex1) << 4) | hexValue(b)));
+                }
+                break;
+            default:
+                text(b);
+            }
+        }
+    }
+
+    private void text(byte b) {
+        switch (b) {
+        case '&':
+            endParameter();
+            break;
+        case '=':
+            if (pendingName == null) {
+                pendingName = new String(token, 0, tokenLength, charset);
+                tokenLength = 0;
+            } else {
+                append(b); // 值中的 '='
+            }
+            break;
+        case '+':
+            append((byte) ' ');
+            break;
+        case '%':
+            state = PERCENT;
+            break;
+        default:
+            append(b);
+        }
+    }
+
+    /**
+     * 解码结束，处理最后一个参数
+     */
+    public void endDecode() {
+        if (state == PERCENT) {
+            append((byte) '%');
+        } else if (state == PERCENT_HEX) {
+            append((byte) '%');
+            append(hex1);
+        }
+        state = TEXT;
+        endParameter();
+    }
+
+    /** 一个参数结束，没有 '=' 的作为值为空字符串的参数，没有名称的忽略 */
+    private void endParameter() {
+        String name, value;
+        if (pendingName == null) {
+            name = new String(token, 0, tokenLength, charset);
+            value = "";
+        } else {
+            name = pendingName;
+            value = new String(token, 0, tokenLength, charset);
+        }
+        tokenLength = 0;
+        pendingName = null;
+        if (!name.isEmpty()) {
+            addParameter(name, value);
+        }
+    }
+
+    private void append(byte b) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, tokenLength * 2);
+        }
+        token[tokenLength++] = b;
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        }
+        if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        }
+        if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * 添加一个参数值，已有同名的不会覆盖
+     *
+     * @return false 超过了最大参数个数，没有添加
+     */
+    public boolean addParameter(String name, String value) {
+        if (maxParameterCount >= 0 && parameterCount >= maxParameterCount) {
+            if (!limitExceeded) {
+                limitExceeded = true;
+                log.info("请求参数超过了最大个数 {}，忽略之后的参数", maxParameterCount);
+            }
+            return false;
+        }
+        parameterCount++;
+        ArrayList<String> values = params.get(name);
+        if (values == null) {
+            values = new ArrayList<>(1);
+            params.put(name, values);
+        }
+        values.add(value);
+        return true;
+    }
+
+    /** 第一个值，没有时返回 null */
+    public String getParameter(String name) {
+        ArrayList<String> values = params.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /** 所有值，没有时返回 null */
+    public String[] getParameterValues(String name) {
+        ArrayList<String> values = params.get(name);
+        return values == null ? null : values.toArray(new String[values.size()]);
+    }
+
+    public Set<String> getParameterNames() {
+        return Collections.unmodifiableSet(params.keySet());
+    }
+
+    /** 名称到所有值的映射，每次创建新的 Map */
+    public Map<String, String[]> getParameterMap() {
+        LinkedHashMap<String, String[]> map = new LinkedHashMap<>();
+        for (Entry<String, ArrayList<String>> entry : params.entrySet()) {
+            ArrayList<String> values = entry.getValue();
+            map.put(entry.getKey(), values.toArray(new String[values.size()]));
+        }
+        return map;
+    }
+
+    /** 是否因为超过最大参数个数丢弃了参数，此时应该认为参数解析失败 */
+    public boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+
+    public int size() {
+        return parameterCount;
+    }
+
+    public int getMaxParameterCount() {
+        return maxParameterCount;
+    }
+
+    public void setMaxParameterCount(int maxParameterCount) {
+        this.maxParameterCount = maxParameterCount;
+    }
+
+    @Override
+    public void recycle() {
+        params.clear();
+        parameterCount = 0;
+        limitExceeded = false;
+        state = TEXT;
+        tokenLength = 0;
+        pendingName = null;
+        charset = null;
+        // 偶尔的超长参数不要一直占用内存
+        if (token.length > 1024) {
+            token = new byte[64];
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Entry<String, ArrayList<String>> entry : params.entrySet()) {
+            for (String value : entry.getValue()) {
+                builder.append(entry.getKey()).append("=").append(value).append("\r\n");
+            }
+        }
+        return builder.toString();
+    }
+}
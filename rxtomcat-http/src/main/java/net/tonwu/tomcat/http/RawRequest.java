@@ -18,10 +18,13 @@ package net.tonwu.tomcat.http;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map.Entry;
+import java.util.List;
 
 import net.tonwu.tomcat.http.ActionHook.ActionCode;
+import net.tonwu.tomcat.http.multipart.Part;
 
 /**
  * 原始的 Http 请求对象，包含请求方法、请求参数、uri、请求头域
@@ -29,32 +32,188 @@ import net.tonwu.tomcat.http.ActionHook.ActionCode;
  * @author tonwu.net
  */
 public class RawRequest implements Recyclable {
-	private String method; // GET POST ..
-	private String uri; // /xxx.jsp
+    /** 连接器支持零拷贝发送文件时，请求中有这个属性，值为 Boolean.TRUE */
+    public static final String SENDFILE_SUPPORTED_ATTR = "net.tonwu.tomcat.sendfile.support";
+    /* 要零拷贝发送的文件路径、起始位置和长度，由 Servlet 设置 */
+    public static final String SENDFILE_FILENAME_ATTR = "net.tonwu.tomcat.sendfile.filename";
+    public static final String SENDFILE_FILE_START_ATTR = "net.tonwu.tomcat.sendfile.start";
+    public static final String SENDFILE_FILE_LENGTH_ATTR = "net.tonwu.tomcat.sendfile.length";
+    
+	/* 请求行和头域都只记录在读缓冲区中的位置，使用时才转换为字符串 */
+	private final MessageBytes method = new MessageBytes(); // GET POST ..
+	private final MessageBytes uri = new MessageBytes(); // /xxx.jsp
 	
 	private ByteBuffer query; // 存储原始字节，对特殊的参数处理
 	private int queryStartPos = -1;
 	
-	private String protocol; // HTTP/1.1
+	private final MessageBytes protocol = new MessageBytes(); // HTTP/1.1
 
 	private String contentType;
 	private int contentLength = -1;
 	
 	private boolean parametersParsed = false;
 	private boolean parseParamFail = false;
-	private HashMap<String, String> parameters = new HashMap<>();
-	private HashMap<String, String> headers = new HashMap<>();
+	private final Parameters parameters = new Parameters();
+	/** multipart/form-data 请求的各个部分 */
+	private final ArrayList<Part> parts = new ArrayList<>();
+	
+	/** 头域名称和值，按接收顺序存放，对象回收后重复使用 */
+	private MessageBytes[] headerNames = new MessageBytes[0];
+	private MessageBytes[] headerValues = new MessageBytes[0];
+	private int headerCount = 0;
+	/** 常用头域第一次出现的位置，按 KnownHeader 的序号索引，-1 表示没有 */
+	private final int[] knownHeaders = new int[KnownHeader.VALUES.length];
+	{
+		Arrays.fill(knownHeaders, -1);
+	}
 
 	private HashMap<String, Object> attributes = new HashMap<>();
+	/** 容器关联的对象，异步处理期间由 Adapter 保存容器的请求对象，应用不可见 */
+	private Object note;
 	
+	/**
+	 * 获取头域的值
+	 * 
+	 * @param name 头域名称，不区分大小写
+	 * @return 第一个同名头域的值，没有时返回 null
+	 */
 	public String getHeader(String name) {
-		return headers.get(name);
+		MessageBytes value = getHeaderValue(name);
+		return value == null ? null : value.toString();
+	}
+	
+	/**
+	 * 获取头域值的字节视图，用于不创建字符串的比较
+	 * 
+	 * @param name 头域名称，不区分大小写
+	 * @return 第一个同名头域的值，没有时返回 null
+	 */
+	public MessageBytes getHeaderValue(String name) {
+		KnownHeader known = KnownHeader.lookup(name);
+		if (known != null) {
+			return getHeaderValue(known);
+		}
+		for (int i = 0; i < headerCount; i++) {
+			if (headerNames[i].equalsIgnoreCase(name)) {
+				return headerValues[i];
+			}
+		}
+		return null;
+	}
+	
+	/** 获取常用头域的值，没有时返回 null */
+	public MessageBytes getHeaderValue(KnownHeader header) {
+		int index = knownHeaders[header.ordinal()];
+		return index < 0 ? null : headerValues[index];
+	}
+	public String getHeader(KnownHeader header) {
+		MessageBytes value = getHeaderValue(header);
+		return value == null ? null : value.toString();
+	}
+	
+	/**
+	 * 获取所有同名头域的值
+	 * 
+	 * @param name 头域名称，不区分大小写
+	 * @return 按接收顺序排列，没有时返回空列表
+	 */
+	public List<String> getHeaders(String name) {
+		List<String> result = new ArrayList<>(2);
+		for (int i = 0; i < headerCount; i++) {
+			if (headerNames[i].equalsIgnoreCase(name)) {
+				result.add(headerValues[i].toString());
+			}
+		}
+		return result;
+	}
+	
+	/** 所有头域的名称，同名的只出现一次 */
+	public List<String> getHeaderNames() {
+		List<String> result = new ArrayList<>(headerCount);
+		outer:
+		for (int i = 0; i < headerCount; i++) {
+			for (int j = 0; j < i; j++) {
+				if (headerNames[j].equalsIgnoreCase(headerNames[i].toString())) {
+					continue outer;
+				}
+			}
+			result.add(headerNames[i].toString());
+		}
+		return result;
+	}
+	
+	/**
+	 * 添加一个头域，名称引用缓冲区中的字节
+	 * 
+	 * @return 头域值，由调用者设置
+	 */
+	public MessageBytes addHeader(ByteBuffer buffer, int nameStart, int nameEnd) {
+		MessageBytes value = nextHeader();
+		headerNames[headerCount - 1].setBytes(buffer, nameStart, nameEnd);
+		indexHeader(headerCount - 1);
+		return value;
 	}
 	public void addHeader(String name, String value) {
-		headers.put(name, value);
+		nextHeader().setString(value);
+		headerNames[headerCount - 1].setString(name);
+		indexHeader(headerCount - 1);
+	}
+	/** 常用头域记录第一次出现的位置 */
+	private void indexHeader(int index) {
+		KnownHeader known = KnownHeader.lookup(headerNames[index]);
+		if (known != null && knownHeaders[known.ordinal()] < 0) {
+			knownHeaders[known.ordinal()] = index;
+		}
+	}
+	private MessageBytes nextHeader() {
+		if (headerCount == headerNames.length) {
+			int size = Math.max(16, headerCount * 2);
+			MessageBytes[] names = new MessageBytes[size];
+			MessageBytes[] values = new MessageBytes[size];
+			System.arraycopy(headerNames, 0, names, 0, headerCount);
+			System.arraycopy(headerValues, 0, values, 0, headerCount);
+			for (int i = headerCount; i < size; i++) {
+				names[i] = new MessageBytes();
+				values[i] = new MessageBytes();
+			}
+			headerNames = names;
+			headerValues = values;
+		}
+		return headerValues[headerCount++];
+	}
+	
+	/** 移除所有同名的头域 */
+	public void removeHeader(String name) {
+		for (int i = 0; i < headerCount; i++) {
+			if (headerNames[i].equalsIgnoreCase(name)) {
+				// 把被移除的对象交换到末尾，以便重复使用
+				MessageBytes n = headerNames[i];
+				MessageBytes v = headerValues[i];
+				System.arraycopy(headerNames, i + 1, headerNames, i, headerCount - i - 1);
+				System.arraycopy(headerValues, i + 1, headerValues, i, headerCount - i - 1);
+				headerCount--;
+				n.recycle();
+				v.recycle();
+				headerNames[headerCount] = n;
+				headerValues[headerCount] = v;
+				i--;
+			}
+		}
+		// 移除后位置变了，重新建立索引
+		Arrays.fill(knownHeaders, -1);
+		for (int i = 0; i < headerCount; i++) {
+			indexHeader(i);
+		}
 	}
-	public String removeHeader(String name) {
-		return headers.remove(name);
+	
+	public int getHeaderCount() {
+		return headerCount;
+	}
+	public MessageBytes getHeaderName(int index) {
+		return headerNames[index];
+	}
+	public MessageBytes getHeaderValue(int index) {
+		return headerValues[index];
 	}
 	
 	private ActionHook hook;
@@ -75,17 +234,40 @@ public class RawRequest implements Recyclable {
     public void setParseParamFail(boolean parseParamFail) {
         this.parseParamFail = parseParamFail;
     }
-    public HashMap<String, String> getParameters() {
+    /**
+     * 获取请求参数，第一次调用时才读取并解析查询字符串和表单请求体
+     */
+    public Parameters getParameters() {
         if (!parametersParsed) {
             action(ActionCode.PARSE_PARAMS, null);
         }
 		return parameters;
 	}
     
+    /**
+     * 获取 multipart/form-data 请求的各个部分，第一次调用时才读取并解析请求体
+     */
+    public List<Part> getParts() {
+        if (!parametersParsed) {
+            action(ActionCode.PARSE_PARAMS, null);
+        }
+        return parts;
+    }
+    
+    /** 指定名称的第一个部分，没有时返回 null */
+    public Part getPart(String name) {
+        for (Part part : getParts()) {
+            if (part.getName().equals(name)) {
+                return part;
+            }
+        }
+        return null;
+    }
+    
 	public String getContentType() {
 		if (contentType == null) {
 		    // 有可能含有 ; charset=utf-8
-			contentType = headers.get("content-type");
+			contentType = getHeader(KnownHeader.CONTENT_TYPE);
 		}
 		return contentType;
 	}
@@ -97,9 +279,23 @@ public class RawRequest implements Recyclable {
         
         parametersParsed = false;
         parseParamFail = false;
-        parameters.clear();
-        headers.clear();
+        parameters.recycle();
+        // 删除上传文件的临时文件
+        for (Part part : parts) {
+            part.delete();
+        }
+        parts.clear();
+        for (int i = 0; i < headerCount; i++) {
+            headerNames[i].recycle();
+            headerValues[i].recycle();
+        }
+        headerCount = 0;
+        Arrays.fill(knownHeaders, -1);
+        method.recycle();
+        uri.recycle();
+        protocol.recycle();
         attributes.clear();
+        note = null;
         queryStartPos = -1;
         if (query != null) {
             query.clear();
@@ -122,25 +318,35 @@ public class RawRequest implements Recyclable {
 	public int getContentLength() {
 		if (contentLength > 0) return contentLength;
 		
-		String v = getHeader("content-length");
+		MessageBytes v = getHeaderValue(KnownHeader.CONTENT_LENGTH);
 		if (v != null) {
-			return Integer.valueOf(v);
+			long n = v.getLong();
+			if (n > Integer.MAX_VALUE) {
+				throw new NumberFormatException("content-length 太大: " + v);
+			}
+			return (int) n;
 		}
 		return -1;
 	}
 	
 	// Getter&Setter
 	public String getMethod() {
-		return method;
+		return method.toString();
 	}
 	public void setMethod(String method) {
-		this.method = method;
+		this.method.setString(method);
+	}
+	public MessageBytes method() {
+		return method;
 	}
 	public String getUri() {
-		return uri;
+		return uri.toString();
 	}
 	public void setUri(String uri) {
-		this.uri = uri;
+		this.uri.setString(uri);
+	}
+	public MessageBytes uri() {
+		return uri;
 	}
 	public ByteBuffer getQuery() {
 		return query;
@@ -155,10 +361,13 @@ public class RawRequest implements Recyclable {
         this.query = query;
     }
     public String getProtocol() {
-		return protocol;
+		return protocol.toString();
 	}
 	public void setProtocol(String protocol) {
-		this.protocol = protocol;
+		this.protocol.setString(protocol);
+	}
+	public MessageBytes protocol() {
+		return protocol;
 	}
 	public void setContentType(String contentType) {
 		this.contentType = contentType;
@@ -179,6 +388,12 @@ public class RawRequest implements Recyclable {
     public HashMap<String, Object> getAttributes() {
         return attributes;
     }
+    public Object getNote() {
+        return note;
+    }
+    public void setNote(Object note) {
+        this.note = note;
+    }
     
     @Override
     public String toString() {
@@ -187,17 +402,19 @@ public class RawRequest implements Recyclable {
         builder.append(method).append(" ");
         builder.append(uri);
         if (query != null) {
-            query.reset();
-            builder.append(new String(query.array(),0, query.remaining()));
+            // query 可能是直接缓冲区的视图，不能使用 array()
+            ByteBuffer q = query.duplicate();
+            q.reset();
+            byte[] bytes = new byte[q.remaining()];
+            q.get(bytes);
+            builder.append("?").append(new String(bytes, StandardCharsets.ISO_8859_1).trim());
         }
         builder.append(" ").append(protocol).append("\r\n");
-        for (Entry<String, String> header : headers.entrySet()) {
-            builder.append(header.getKey()).append(":").append(header.getValue()).append("\r\n");
+        for (int i = 0; i < headerCount; i++) {
+            builder.append(headerNames[i]).append(":").append(headerValues[i]).append("\r\n");
         }
         builder.append("\r\n");
-        for (Entry<String, String> param : parameters.entrySet()) {
-            builder.append(param.getKey()).append("=").append(param.getValue()).append("\r\n");
-        }
+        builder.append(parameters);
         
         return builder.toString();
     }
@@ -17,7 +17,8 @@ package net.tonwu.tomcat.http;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Locale;
 
 import net.tonwu.tomcat.http.ActionHook.ActionCode;
 
@@ -28,6 +29,9 @@ import net.tonwu.tomcat.http.ActionHook.ActionCode;
  */
 public class RawResponse  implements Recyclable {
     
+	/** 没有设置字符编码时使用的默认编码 */
+	private static final String DEFAULT_CHARACTER_ENCODING = "utf-8";
+	
 	/** 状态行和响应头域是否已经写入到发送缓冲区中 */
 	private boolean committed = false;
 	
@@ -35,9 +39,13 @@ public class RawResponse  implements Recyclable {
 	private String message;
 	private String contentType = null;
 	private String contentLanguage = null;
-	private String characterEncoding = "utf-8";
+	private String characterEncoding = DEFAULT_CHARACTER_ENCODING;
 	private int contentLength = -1;
-	private HashMap<String, String> headers = new HashMap<>();
+	
+	/** 响应头域，按添加顺序存放，同名的可以有多个，比如 Set-Cookie；数组回收后重复使用 */
+	private String[] headerNames = new String[8];
+	private String[] headerValues = new String[8];
+	private int headerCount = 0;
 
 	private ActionHook hook;
     public void hook(ActionHook hook) {
@@ -62,14 +70,118 @@ public class RawResponse  implements Recyclable {
     }
     
 	/**
-	 * 没有对相同 header名称（如 Set-Cookie）进行处理
+	 * 添加一个头域，已有同名的也不会覆盖
 	 */
 	public void addHeader(String name, String value) {
-		headers.put(name, value);
+		if (checkSpecialHeader(name, value)) {
+			return;
+		}
+		if (headerCount == headerNames.length) {
+			headerNames = Arrays.copyOf(headerNames, headerCount * 2);
+			headerValues = Arrays.copyOf(headerValues, headerCount * 2);
+		}
+		headerNames[headerCount] = name;
+		headerValues[headerCount] = value;
+		headerCount++;
 	}
 	
+	/**
+	 * 设置头域，替换第一个同名的并移除其余的，没有时添加
+	 */
+	public void setHeader(String name, String value) {
+		if (checkSpecialHeader(name, value)) {
+			return;
+		}
+		int i = indexOf(name, 0);
+		if (i < 0) {
+			addHeader(name, value);
+			return;
+		}
+		headerValues[i] = value;
+		int next;
+		while ((next = indexOf(name, i + 1)) >= 0) {
+			remove(next);
+		}
+	}
+	
+	/** 移除所有同名的头域 */
+	public void removeHeader(String name) {
+		int i;
+		while ((i = indexOf(name, 0)) >= 0) {
+			remove(i);
+		}
+	}
+	
+	public boolean containsHeader(String name) {
+		if (name.equalsIgnoreCase("Content-Type")) {
+			return contentType != null;
+		}
+		if (name.equalsIgnoreCase("Content-Length")) {
+			return contentLength != -1;
+		}
+		return indexOf(name, 0) >= 0;
+	}
+	
+	private int indexOf(String name, int from) {
+		for (int i = from; i < headerCount; i++) {
+			if (headerNames[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	private void remove(int index) {
+		headerCount--;
+		System.arraycopy(headerNames, index + 1, headerNames, index, headerCount - index);
+		System.arraycopy(headerValues, index + 1, headerValues, index, headerCount - index);
+		headerNames[headerCount] = null;
+		headerValues[headerCount] = null;
+	}
+	
+	/**
+	 * Content-Type 和 Content-Length 保存在字段中，提交时由 OutputBuffer 编码，不会重复发送
+	 * 
+	 * @return true 已经处理
+	 */
+	private boolean checkSpecialHeader(String name, String value) {
+		if (name.equalsIgnoreCase("Content-Type")) {
+			int idx = value.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+			if (idx >= 0) {
+				setCharacterEncoding(value.substring(idx + 8).trim());
+				value = value.substring(0, idx).trim();
+				if (value.endsWith(";")) {
+					value = value.substring(0, value.length() - 1).trim();
+				}
+			}
+			setContentType(value);
+			return true;
+		}
+		if (name.equalsIgnoreCase("Content-Length")) {
+			try {
+				setContentLength(Integer.parseInt(value.trim()));
+				return true;
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	/** 第一个同名头域的值，名称不区分大小写 */
 	public String getHeader(String name) {
-		return headers.get(name);
+		int i = indexOf(name, 0);
+		return i < 0 ? null : headerValues[i];
+	}
+	
+	public int getHeaderCount() {
+		return headerCount;
+	}
+	public String getHeaderName(int index) {
+		return headerNames[index];
+	}
+	public String getHeaderValue(int index) {
+		return headerValues[index];
 	}
 
 	/**
@@ -82,9 +194,6 @@ public class RawResponse  implements Recyclable {
 		this.committed = committed;
 	}
 	
-	public HashMap<String, String> headers() {
-		return headers;
-	}
 
 	public int getStatus() {
 		return status;
@@ -108,6 +217,10 @@ public class RawResponse  implements Recyclable {
 		return retv;
 	}
 	
+	/** 不带 charset 的内容类型 */
+	public String getRawContentType() {
+		return contentType;
+	}
 	public void setContentType(String contentType) {
 		this.contentType = contentType;
 	}
@@ -137,8 +250,16 @@ public class RawResponse  implements Recyclable {
     public void recycle() {
         committed = false;
         contentType = null;
+        // Content-Type 头可能设置了字符编码，不能带到下一个响应
+        contentLanguage = null;
+        characterEncoding = DEFAULT_CHARACTER_ENCODING;
         contentLength = -1;
-        headers.clear();
+        // 只清除引用，数组保留
+        for (int i = 0; i < headerCount; i++) {
+            headerNames[i] = null;
+            headerValues[i] = null;
+        }
+        headerCount = 0;
         status = 200;
         message = "";
     }
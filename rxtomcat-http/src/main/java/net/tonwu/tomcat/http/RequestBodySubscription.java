@@ -0,0 +1,283 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.tonwu.tomcat.http.reactive.Subscriber;
+import net.tonwu.tomcat.http.reactive.Subscription;
+import net.tonwu.tomcat.net.NioChannel;
+
+/**
+ * 把请求体以响应式流的方式发送给订阅者，只在订阅者请求时读取。
+ * <p>
+ * 读缓冲区中没有数据时非阻塞读取一次，仍然没有时通道在 Poller 上等待可读，由容器线程继续读取，
+ * 所以慢速的上传不会占用线程。订阅者可能在任意线程中请求数据，和 Handler 一样使用通道作为锁，
+ * 串行读取。
+ * <p>
+ * 调用订阅者的 onNext、onComplete 和 onError 时不持有通道锁：订阅者可能持有自己的锁调用
+ * request，而 request 要获取通道锁，两个线程按相反的顺序加锁会死锁。容器线程由 Handler
+ * 持有通道锁，它读到的数据交给线程池发送。onSubscribe 在订阅的线程中调用，在 Servlet
+ * 中订阅时仍持有通道锁；超时的 onError 也在持有通道锁的容器线程中调用。订阅者在这两个方法中
+ * 不能等待其他线程
+ *
+ * @author tonwu.net
+ */
+class RequestBodySubscription implements Subscription, BufferHolder {
+    final static Logger log = LoggerFactory.getLogger(RequestBodySubscription.class);
+
+    private final HttpProcessor processor;
+    private final NioChannel socket;
+    private final InputBuffer inBuffer;
+    private final Subscriber<? super ByteBuffer> subscriber;
+
+    /* 以下状态都由通道锁保护 */
+    /** 已经请求但还没有发送的数据个数 */
+    private long demand = 0;
+    /** 没有数据可读，等待通道可读 */
+    private boolean readPending = false;
+    /** 请求体已经结束、出错或者被取消，不再读取 */
+    private boolean done = false;
+    /** 还没有通知订阅者的错误 */
+    private Throwable failure;
+    /** 有线程正在通知订阅者，其他线程的信号只设置 again，由它继续处理 */
+    private boolean draining = false;
+    private boolean again = false;
+    /** 解码器返回的请求体数据视图 */
+    private ByteBuffer view;
+
+    RequestBodySubscription(HttpProcessor processor, NioChannel socket, InputBuffer inBuffer,
+            Subscriber<? super ByteBuffer> subscriber) {
+        this.processor = processor;
+        this.socket = socket;
+        this.inBuffer = inBuffer;
+        this.subscriber = subscriber;
+    }
+
+    /**
+     * 通知订阅者订阅成功，onSubscribe 中的 request 等它返回后再处理
+     */
+    void start() {
+        synchronized (socket) {
+            draining = true;
+        }
+        try {
+            subscriber.onSubscribe(this);
+        } catch (RuntimeException e) {
+            log.error("请求体订阅者异常", e);
+            synchronized (socket) {
+                done = true;
+            }
+        }
+        drainLoop();
+    }
+
+    @Override
+    public void request(long n) {
+        synchronized (socket) {
+            if (done) {
+                return;
+            }
+            if (n <= 0) {
+                failure = new IllegalArgumentException("request 的数量必须大于 0");
+            } else {
+                demand += n;
+                if (demand < 0) {
+                    demand = Long.MAX_VALUE; // 溢出，相当于不限制
+                }
+            }
+        }
+        signal();
+    }
+
+    @Override
+    public void cancel() {
+        synchronized (socket) {
+            done = true;
+        }
+    }
+
+    /**
+     * 通道可读，在容器线程中继续读取
+     */
+    void onReadable() {
+        synchronized (socket) {
+            readPending = false;
+        }
+        signal();
+    }
+
+    /**
+     * 异步处理超时，通知订阅者读取失败。容器随后就结束请求，所以在当前的容器线程中直接调用
+     * onError，订阅者还可以写出错误响应；其他线程正在通知订阅者时由它发送
+     */
+    void timeout() {
+        Throwable t = new IOException("读取请求体超时");
+        synchronized (socket) {
+            if (done || failure != null) {
+                return;
+            }
+            if (draining) {
+                failure = t;
+                again = true;
+                return;
+            }
+            draining = true;
+            done = true;
+        }
+        deliver(t);
+        synchronized (socket) {
+            draining = false;
+        }
+    }
+
+    /** 是否在等待通道可读 */
+    boolean isReadPending() {
+        synchronized (socket) {
+            return !done && readPending;
+        }
+    }
+
+    /**
+     * 有新的信号，没有其他线程在通知订阅者时由当前线程处理
+     */
+    private void signal() {
+        synchronized (socket) {
+            if (draining) {
+                again = true;
+                return;
+            }
+            draining = true;
+        }
+        drainLoop();
+    }
+
+    /**
+     * 反复读取并通知订阅者，直到没有需求、没有数据可读或者请求体结束。调用前当前线程已经设置了
+     * draining。订阅者在 onNext 中同步调用的 request 只设置 again，由这里的循环处理，不会递归
+     */
+    private void drainLoop() {
+        for (;;) {
+            final Object signal;
+            synchronized (socket) {
+                signal = next();
+                if (signal == null) {
+                    if (!again) {
+                        draining = false;
+                        return;
+                    }
+                    again = false;
+                    continue;
+                }
+            }
+            if (Thread.holdsLock(socket)) {
+                // 容器线程持有 Handler 的通道锁，在线程池中通知订阅者并继续读取，draining 随之转交
+                try {
+                    socket.getPoller().getEndpoint().getExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(signal);
+                            drainLoop();
+                        }
+                    });
+                    return;
+                } catch (RejectedExecutionException e) {
+                    log.debug("线程池已经关闭，直接通知请求体订阅者", e);
+                }
+            }
+            deliver(signal);
+        }
+    }
+
+    /**
+     * 在通道锁中读取下一个要通知订阅者的信号
+     *
+     * @return 数据的拷贝、异常，COMPLETE 表示请求体结束，null 表示暂时没有信号
+     */
+    private Object next() {
+        if (failure != null) {
+            // 即使已经被取消，错误仍要通知订阅者
+            Throwable t = failure;
+            failure = null;
+            done = true;
+            return t;
+        }
+        if (done || demand <= 0 || readPending) {
+            return null;
+        }
+        int n;
+        try {
+            n = inBuffer.readBodyNonBlocking(this);
+        } catch (IOException e) {
+            log.debug("通道 [" + socket + "] 读取请求体失败", e);
+            done = true;
+            return e;
+        }
+        if (n == 0) {
+            log.debug("通道 [{}] 暂时没有请求体数据，等待可读后继续读取", socket);
+            readPending = true;
+            processor.awaitIo();
+            return null;
+        }
+        if (n < 0) {
+            done = true;
+            return COMPLETE;
+        }
+        // 视图引用的是读缓冲区，下次读取时会被覆盖，拷贝一份交给订阅者
+        ByteBuffer item = ByteBuffer.allocate(n);
+        item.put(view).flip();
+        view = null;
+        demand--;
+        return item;
+    }
+
+    private void deliver(Object signal) {
+        try {
+            if (signal instanceof ByteBuffer) {
+                subscriber.onNext((ByteBuffer) signal);
+            } else if (signal == COMPLETE) {
+                subscriber.onComplete();
+            } else {
+                subscriber.onError((Throwable) signal);
+            }
+        } catch (RuntimeException e) {
+            // 订阅者违反约定抛出了异常，当作取消订阅
+            log.error("请求体订阅者异常", e);
+            synchronized (socket) {
+                done = true;
+            }
+        }
+    }
+
+    /** 请求体结束的信号 */
+    private static final Object COMPLETE = new Object();
+
+    // BufferHolder Method
+    @Override
+    public void setByteBuffer(ByteBuffer buffer) {
+        view = buffer;
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return view;
+    }
+}
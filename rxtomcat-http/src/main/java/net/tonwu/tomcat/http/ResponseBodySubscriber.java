@@ -0,0 +1,309 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.tonwu.tomcat.http.reactive.Publisher;
+import net.tonwu.tomcat.http.reactive.Subscriber;
+import net.tonwu.tomcat.http.reactive.Subscription;
+import net.tonwu.tomcat.net.NioChannel;
+
+/**
+ * 订阅 Servlet 提供的响应体发布者，把数据非阻塞写入通道。
+ * <p>
+ * 每次只请求一个数据，它全部发送到通道后才请求下一个；通道不可写时不再请求，通道在 Poller
+ * 上等待可写，由容器线程继续发送。所以内存中最多只有一个数据，也没有线程阻塞等待慢速的客户端。
+ * 发布者的信号可能来自任意线程，和 Handler 一样使用通道作为锁，串行处理。
+ * <p>
+ * 调用发布者的 request 时不持有通道锁：发布者可能持有自己的锁调用 onNext，而 onNext 要获取
+ * 通道锁，两个线程按相反的顺序加锁会死锁。容器线程由 Handler 持有通道锁，它要请求数据时交给
+ * 线程池执行。subscribe 和 cancel 可能在持有通道锁时调用，发布者在这两个方法中不能等待
+ * 其他线程的 onNext
+ *
+ * @author tonwu.net
+ */
+class ResponseBodySubscriber implements Subscriber<ByteBuffer> {
+    final static Logger log = LoggerFactory.getLogger(ResponseBodySubscriber.class);
+
+    private final HttpProcessor processor;
+    private final NioChannel socket;
+    private final OutputBuffer outBuffer;
+
+    /* 以下状态都由通道锁保护 */
+    private Subscription subscription;
+    /** 收到但还没有写入的数据，遵守约定的发布者最多只有一个 */
+    private final ArrayDeque<ByteBuffer> items = new ArrayDeque<>(2);
+    /** 已经请求但还没有收到的数据个数 */
+    private long demand = 0;
+    /** 写出的数据没有发送完，等待通道可写；开始时响应头还在写缓冲区中 */
+    private boolean writePending = true;
+    private boolean completed = false;
+    private Throwable failure;
+    /** 响应体已经结束或者被取消，忽略之后的信号 */
+    private boolean done = false;
+    /** 有线程正在发送，其他线程的信号只设置 again，由它继续处理 */
+    private boolean draining = false;
+    private boolean again = false;
+    /** 出错后要取消的订阅，释放通道锁后再调用 */
+    private Subscription cancelling;
+
+    ResponseBodySubscriber(HttpProcessor processor, NioChannel socket, OutputBuffer outBuffer) {
+        this.processor = processor;
+        this.socket = socket;
+        this.outBuffer = outBuffer;
+    }
+
+    /**
+     * 订阅发布者，并尝试发送已经提交的响应头
+     */
+    void subscribe(Publisher<ByteBuffer> publisher) {
+        publisher.subscribe(this);
+        signal();
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        boolean reject;
+        synchronized (socket) {
+            reject = subscription != null || done;
+            if (!reject) {
+                subscription = s;
+            }
+        }
+        if (reject) {
+            s.cancel();
+            return;
+        }
+        signal();
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        if (item == null) {
+            throw new NullPointerException("onNext 的数据不能为 null");
+        }
+        synchronized (socket) {
+            if (done) {
+                return;
+            }
+            demand--;
+            items.offer(item);
+        }
+        signal();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        synchronized (socket) {
+            if (done) {
+                return;
+            }
+            failure = t != null ? t : new NullPointerException("onError 的异常不能为 null");
+        }
+        signal();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (socket) {
+            if (done) {
+                return;
+            }
+            completed = true;
+        }
+        signal();
+    }
+
+    /**
+     * 通道可写，在容器线程中继续发送
+     */
+    void onWritable() {
+        signal();
+    }
+
+    /**
+     * 取消订阅，比如响应超时或者请求提前结束
+     */
+    void cancel() {
+        Subscription s;
+        synchronized (socket) {
+            if (done) {
+                return;
+            }
+            done = true;
+            items.clear();
+            s = subscription;
+        }
+        cancelQuietly(s);
+    }
+
+    /** 是否在等待通道可写 */
+    boolean isWritePending() {
+        synchronized (socket) {
+            return !done && writePending;
+        }
+    }
+
+    /**
+     * 有新的信号，没有其他线程在发送时由当前线程发送
+     */
+    private void signal() {
+        synchronized (socket) {
+            if (draining) {
+                again = true;
+                return;
+            }
+            draining = true;
+        }
+        drainLoop();
+    }
+
+    /**
+     * 反复发送和请求数据，直到需要等待发布者或者通道可写。调用前当前线程已经设置了 draining。
+     * 发布者在 request 中同步调用的 onNext 只设置 again，由这里的循环处理，不会递归
+     */
+    private void drainLoop() {
+        for (;;) {
+            final Subscription s;
+            Subscription c;
+            synchronized (socket) {
+                s = drain();
+                c = cancelling;
+                cancelling = null;
+                if (s == null && c == null) {
+                    if (!again) {
+                        draining = false;
+                        return;
+                    }
+                    again = false;
+                    continue;
+                }
+            }
+            if (c != null) {
+                cancelQuietly(c);
+                continue;
+            }
+            if (Thread.holdsLock(socket)) {
+                // 容器线程持有 Handler 的通道锁，在线程池中请求并继续发送，draining 随之转交
+                try {
+                    socket.getPoller().getEndpoint().getExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            request(s);
+                            drainLoop();
+                        }
+                    });
+                    return;
+                } catch (RejectedExecutionException e) {
+                    log.debug("线程池已经关闭，直接请求响应体数据", e);
+                }
+            }
+            request(s);
+        }
+    }
+
+    private void request(Subscription s) {
+        try {
+            s.request(1);
+        } catch (Throwable t) {
+            log.error("响应体发布者异常", t);
+            synchronized (socket) {
+                if (!done) {
+                    finish(t, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * 发送数据直到通道不可写，或者需要等待发布者的数据；发送完毕或出错时结束响应
+     *
+     * @return 需要再请求一个数据时返回订阅，由调用方在释放通道锁后请求
+     */
+    private Subscription drain() {
+        try {
+            while (!done) {
+                if (failure != null) {
+                    // 发布者出错，不用再等待已经写出的数据发送完，直接放弃响应并关闭连接
+                    finish(failure, false);
+                    return null;
+                }
+                if (writePending) {
+                    if (!outBuffer.flushNonBlocking()) {
+                        log.debug("通道 [{}] 暂时不可写，等待可写后继续发送响应体", socket);
+                        processor.awaitIo();
+                        return null;
+                    }
+                    writePending = false;
+                }
+                ByteBuffer item = items.poll();
+                if (item != null) {
+                    writePending = !outBuffer.writeBodyNonBlocking(item);
+                    continue;
+                }
+                if (completed) {
+                    finish(null, false);
+                    return null;
+                }
+                if (subscription == null || demand > 0) {
+                    return null; // 等待发布者
+                }
+                // 之前的数据都已经发送，再请求一个
+                demand = 1;
+                return subscription;
+            }
+        } catch (IOException e) {
+            log.debug("通道 [" + socket + "] 写入响应体失败", e);
+            finish(e, true);
+        } catch (Throwable t) {
+            log.error("响应体发布者异常", t);
+            finish(t, true);
+        }
+        return null;
+    }
+
+    /**
+     * 结束响应，出错时放弃写缓冲区中的数据
+     *
+     * @param t 为 null 表示正常结束
+     * @param cancel 是否要取消订阅，发布者自己出错时不用取消
+     */
+    private void finish(Throwable t, boolean cancel) {
+        done = true;
+        items.clear();
+        if (cancel) {
+            cancelling = subscription;
+        }
+        processor.publishEnd(t);
+    }
+
+    private static void cancelQuietly(Subscription s) {
+        if (s != null) {
+            try {
+                s.cancel();
+            } catch (Throwable t) {
+                log.debug("取消订阅失败", t);
+            }
+        }
+    }
+}
@@ -34,90 +34,137 @@ public class ChunkedCodec implements BodyCodec, BufferHolder {
     /** 整个 chunk 块缓冲区视图 */
     private ByteBuffer chunkView;
     
-    /** chunk 数据块长度 */
+    /* 
+     * 解析状态，chunk header、数据之后的 \r\n 和 trailer 都可能被拆分到多次读取中，
+     * 非阻塞读取时没有数据就返回 0，下次从断开的地方继续解析
+     */
+    private static final int HEADER = 0;
+    private static final int DATA = 1;
+    private static final int CRLF = 2;
+    private static final int TRAILER = 3;
+    private static final int END = 4;
+    private int state = HEADER;
+    
+    /** chunk 数据块长度，解析 header 时是已经读到的部分 */
     private int chunkDataLength = 0;
     
-    /** 是否是最后一个 chunk 块 */
-    private boolean endChunk = false;
+    /** 解析 header 时是否遇到了扩展选项 */
+    private boolean extension = false;
+    
+    /** 解析 header 时读到的十六进制字符个数 */
+    private int digits = 0;
+    
+    /** 解析 trailer 时当前行是否为空行 */
+    private boolean emptyLine = true;
+    
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
     
-    /** 解析 chunk header 前是否要跳过前面的 \r\n */
-    private boolean skipCrlfLazy = false;
+    /** 写入时的 chunk header，最长 8 个十六进制字符加 \r\n */
+    private final byte[] chunkHeader = new byte[10];
     
     @Override
     public int doRead(InputBuffer input, BufferHolder buffHolder) throws IOException {
-        if (endChunk) return -1;
-        
-        // 是否需要跳过 \r\n
-        if (skipCrlfLazy) {
-            skipCrlfLazy = false;
-            skipCrlf(input);
-        }
-        
-        // 1. 解析 chunk header 获取 chunk-data 长度
-        if (chunkDataLength <= 0) {
-            if((chunkDataLength = parseChunkHeader(input)) < 0) {
-                throw new IOException("Invalid chunk header");
+        for (;;) {
+            switch (state) {
+            case CRLF:
+                // 跳过上一个 chunk 数据之后的 \r\n
+                if (!skipCrlf(input)) return 0;
+                state = HEADER;
+                break;
+            case HEADER:
+                // 1. 解析 chunk header 获取 chunk-data 长度
+                if (!parseChunkHeader(input)) return 0;
+                // 长度为 0 是最后一个块
+                state = chunkDataLength == 0 ? TRAILER : DATA;
+                break;
+            case TRAILER:
+                // 跳过 trailer，之后的数据属于下一个流水线请求
+                if (!parseTrailer(input)) return 0;
+                input.setBodyEnd(chunkView.position());
+                state = END;
+                return -1;
+            case DATA:
+                // 2. 读取实际数据，长度是 chunkDataLength
+                if (readIfNeed(input) == 0) return 0;
+                return readData(buffHolder);
+            default:
+                return -1;
             }
-            // 是否是最后一个块
-            if (endChunk) return -1;
         }
-        // 2. 读取实际数据，长度是 chunkDataLength
-        if (readIfNeed(input) <= 0) {
-            throw new IOException("Unexpected end of stream while reading request body");
-        }
-        
-        int retv = 0;
-        int remaining = chunkView.remaining();
-        if (remaining < chunkDataLength) {
-            // 记录实际请求数据
-            buffHolder.setByteBuffer(chunkView.duplicate());
-            
-            // chunkView 跳过已读的 chunk data
-            chunkView.position(chunkView.position() + remaining);
-            retv = remaining;
-            chunkDataLength -= remaining;
-        } else {
-            // 记录实际请求数据
+    }
+    
+    private int readData(BufferHolder buffHolder) {
+        int retv = Math.min(chunkView.remaining(), chunkDataLength);
+        // 记录实际请求数据
+        if (buffHolder != null) {
             buffHolder.setByteBuffer(chunkView.duplicate());
-            buffHolder.getByteBuffer().limit(chunkView.position() + chunkDataLength);
-            
-            // chunkView 跳过已读的 chunk data
-            chunkView.position(chunkView.position() + chunkDataLength);
-            retv = chunkDataLength;
-            chunkDataLength = 0;
-            
-            // 3. 读取 \r\n 为下一个 chunk 块的解析最准备，如果缓冲区有足够的数据可读，就立即解析，否则延迟解析，把这个操作
-            //    放到此方法的开头，这样做主要是因为阻塞
-            if (chunkView.position() + 1 >= chunkView.limit()) {
-                skipCrlfLazy = true;
-            } else {
-                skipCrlf(input);
-            }
+            buffHolder.getByteBuffer().limit(chunkView.position() + retv);
+        }
+        // chunkView 跳过已读的 chunk data
+        chunkView.position(chunkView.position() + retv);
+        chunkDataLength -= retv;
+        if (chunkDataLength == 0) {
+            // 3. 之后的 \r\n 下次读取时再跳过，已经读到的数据不用等待它
+            state = CRLF;
         }
         return retv;
     }
     
     /**
      * 移动缓冲区指针，跳过 \r\n
+     * 
+     * @return false 非阻塞读取时数据不完整
      */
-    private void skipCrlf(InputBuffer input) throws IOException {
-        boolean eol = false;
-        while (!eol) {
-            if (readIfNeed(input) <= 0) {
-                throw new IOException("Unexpected end of stream while reading CRLF");
+    private boolean skipCrlf(InputBuffer input) throws IOException {
+        while (true) {
+            if (readIfNeed(input) == 0) {
+                return false;
             }
             byte chr = chunkView.get();
             if (chr == HttpToken.CR) {
             } else if (chr == HttpToken.LF) {
-                eol = true;
+                return true;
             }
         }
     }
     
+    /**
+     * 跳过最后一个块之后的 trailer 头域，直到遇到一个空行
+     * 
+     * @return false 非阻塞读取时数据不完整
+     */
+    private boolean parseTrailer(InputBuffer input) throws IOException {
+        while (true) {
+            if (readIfNeed(input) == 0) {
+                return false;
+            }
+            byte chr = chunkView.get();
+            if (chr == HttpToken.CR) {
+            } else if (chr == HttpToken.LF) {
+                if (emptyLine) {
+                    return true;
+                }
+                emptyLine = true;
+            } else {
+                emptyLine = false;
+            }
+        }
+    }
+    
+    /**
+     * chunkView 中没有数据时从 InputBuffer 读取
+     * 
+     * @return chunkView 中可读的字节数，0 表示非阻塞读取时暂时没有数据
+     * @throws IOException 连接被关闭
+     */
     private int readIfNeed(InputBuffer input) throws IOException {
         if (chunkView == null || chunkView.position() >= chunkView.limit()) {
-            if (input.realReadBytes(this) <= 0) {
-                return -1; // 无效的块
+            int n = input.realReadBytes(this);
+            if (n < 0) {
+                throw new IOException("Unexpected end of stream while reading chunked body");
+            }
+            if (n == 0) {
+                return 0;
             }
         }
         return chunkView.remaining();
@@ -127,20 +174,25 @@ public class ChunkedCodec implements BodyCodec, BufferHolder {
      * 解析 chunk header, 忽略 chunk 扩展选项，格式如下：
      * A10\r\n
      * F23;chunk-extension\r\n
+     * 
+     * @return false 非阻塞读取时数据不完整，已经解析的部分保留在 chunkDataLength 中
+     * @throws IOException chunk header 格式错误
      */
-    private int parseChunkHeader(InputBuffer input) throws IOException {
-        int result = 0;
-        boolean eol = false,
-                extension = false; // 遇到了扩展选项
-        while (!eol) {
+    private boolean parseChunkHeader(InputBuffer input) throws IOException {
+        while (true) {
             // 读取必要的数据
-            if (readIfNeed(input) <= 0) {
-                return -1; // 无效的块
+            if (readIfNeed(input) == 0) {
+                return false;
             }
             byte chr = chunkView.get();
             if (chr == HttpToken.CR) {
             } else if (chr == HttpToken.LF) {
-                eol = true;
+                if (digits == 0) {
+                    throw new IOException("Invalid chunk header");
+                }
+                digits = 0;
+                extension = false;
+                return true;
             } else if (chr == HttpToken.SEMI_COLON && !extension) {
                 extension = true; // 遇到了冒号，后面数据就是扩展选项，这里忽略处理
             } else if (!extension) {
@@ -150,23 +202,18 @@ public class ChunkedCodec implements BodyCodec, BufferHolder {
                 // 比如 15 -> f -> ['f'] -> [0x66]
                 // 比如 489 -> 1e9 -> ['1','e','9'] -> [0x31,0x65,0x39]
                 // 比如 4204 -> 106C -> ['1','0','6','c'] -> [0x31,0x30,0x36,0x63]
-                // don't read data after the trailer
                 // 获取字符对应的十进制数，比如 f 对应数字是 15
-                int charValue = DEC[chr - '0'];
-                if (charValue != -1) {
-                    // 一个16进制数 4bit，左移4位合并低4位
-                    // 相当于 result = result * 16 + charValue;
-                    result = (result << 4) | charValue;
-                } else {
-                    // 非法字符
-                    return -1;
+                int charValue = chr < '0' || chr - '0' >= DEC.length ? -1 : DEC[chr - '0'];
+                // 超过 int 的范围也是非法的
+                if (charValue == -1 || chunkDataLength > (Integer.MAX_VALUE >> 4)) {
+                    throw new IOException("Invalid chunk header");
                 }
+                // 一个16进制数 4bit，左移4位合并低4位
+                // 相当于 result = result * 16 + charValue;
+                chunkDataLength = (chunkDataLength << 4) | charValue;
+                digits++;
             }
         }
-        
-        if (result == 0) endChunk = true;
-        
-        return result;
     }
     
     @Override
@@ -191,6 +238,15 @@ public class ChunkedCodec implements BodyCodec, BufferHolder {
         -1, 10, 11, 12, 13, 14, 15,
     };
     
+    @Override
+    public int available() {
+        if (state == END) {
+            return -1;
+        }
+        // 读缓冲区中的数据都已经交给 chunkView，InputBuffer 不能再覆盖
+        return chunkView == null ? 0 : chunkView.remaining();
+    }
+    
     @Override
     public void doWrite(OutputBuffer output, ByteBuffer src) throws IOException {
         // 写入 chunk 块
@@ -198,11 +254,18 @@ public class ChunkedCodec implements BodyCodec, BufferHolder {
         if (chunkLength <= 0) return;
         
         // chunk length 是 16 进制字符串 比如 489 -> 1e9 -> [0x31,0x65,0x39]
-        String hex = Integer.toHexString(chunkLength).toLowerCase();
+        // 从后往前写入 chunk 长度和 \r\n
+        int pos = chunkHeader.length;
+        chunkHeader[--pos] = '\n';
+        chunkHeader[--pos] = '\r';
+        do {
+            chunkHeader[--pos] = HEX[chunkLength & 0xf];
+            chunkLength >>>= 4;
+        } while (chunkLength != 0);
         
+        // 分成三段提交，大的 chunk data 不会被拷贝，三段数据聚集写出
         // 1. 写入 chunk 长度
-        output.write(hex.getBytes());
-        output.write(HttpToken.CRLF);
+        output.write(ByteBuffer.wrap(chunkHeader, pos, chunkHeader.length - pos));
         // 2. 写入 chunk data
         output.write(src);
         // 3. 写入 \r\n
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http.codecs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import net.tonwu.tomcat.http.BodyEncoder;
+import net.tonwu.tomcat.http.Compression;
+import net.tonwu.tomcat.http.OutputBuffer;
+import net.tonwu.tomcat.http.Recyclable;
+
+/**
+ * gzip 或 deflate 压缩响应体，压缩后的数据交给后面的传输编码器（chunked）写出。
+ * <p>
+ * 对象属于 HttpProcessor，压缩缓冲区随处理器重复使用，Deflater 只在发送响应体期间
+ * 从 Compression 的对象池中借用
+ *
+ * @author tonwu.net
+ */
+public class GzipCodec implements BodyEncoder, Recyclable {
+
+    /** gzip 头：魔数、deflate 算法、没有标志、修改时间为 0、没有额外标志、操作系统未知 */
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final Compression compression;
+
+    /** 压缩后的数据，写出后才能重复使用 */
+    private final byte[] buf = new byte[8192];
+    /** 响应体数据在直接缓冲区中时，先拷贝到这里 */
+    private byte[] inBuf;
+    private final CRC32 crc = new CRC32();
+
+    /** 传输编码器 */
+    private BodyEncoder next;
+    /** true 使用 gzip 格式，false 使用 zlib 格式（Content-Encoding: deflate） */
+    private boolean gzip;
+    private Deflater deflater;
+    private boolean headerWritten;
+
+    public GzipCodec(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * 开始压缩一个新的响应体
+     *
+     * @param next 传输编码器，压缩后长度未知，通常是 ChunkedCodec
+     * @param gzip true 使用 gzip 格式，false 使用 deflate
+     */
+    public void start(BodyEncoder next, boolean gzip) {
+        this.next = next;
+        this.gzip = gzip;
+        deflater = compression.borrowDeflater(gzip);
+        crc.reset();
+        headerWritten = !gzip;
+    }
+
+    @Override
+    public void doWrite(OutputBuffer output, ByteBuffer src) throws IOException {
+        if (src.hasArray()) {
+            setInput(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.limit());
+            deflate(output);
+        } else {
+            if (inBuf == null) {
+                inBuf = new byte[buf.length];
+            }
+            while (src.hasRemaining()) {
+                int n = Math.min(src.remaining(), inBuf.length);
+                src.get(inBuf, 0, n);
+                setInput(inBuf, 0, n);
+                deflate(output);
+            }
+        }
+    }
+
+    private void setInput(byte[] b, int off, int len) {
+        deflater.setInput(b, off, len);
+        if (gzip) {
+            crc.update(b, off, len);
+        }
+    }
+
+    /** 压缩直到输入的数据全部被 Deflater 消费，调用方之后可以复用它的数组 */
+    private void deflate(OutputBuffer output) throws IOException {
+        while (!deflater.needsInput()) {
+            int off = header();
+            int n = deflater.deflate(buf, off, buf.length - off, Deflater.NO_FLUSH);
+            if (off + n > 0) {
+                emit(output, off + n);
+            }
+        }
+    }
+
+    /**
+     * 把 Deflater 内部缓存的数据全部输出，客户端收到后就能解压出目前写入的内容，
+     * 用于 Servlet 主动 flush 的场景，会降低一点压缩率
+     */
+    public void flush(OutputBuffer output) throws IOException {
+        if (deflater == null) {
+            return;
+        }
+        int len;
+        do {
+            int off = header();
+            len = off + deflater.deflate(buf, off, buf.length - off, Deflater.SYNC_FLUSH);
+            if (len > 0) {
+                emit(output, len);
+            }
+        } while (len == buf.length); // 没有填满 buf 说明已经全部输出
+    }
+
+    /** gzip 头放在第一块压缩数据的前面，返回压缩数据在 buf 中的起始位置 */
+    private int header() {
+        if (headerWritten) {
+            return 0;
+        }
+        headerWritten = true;
+        System.arraycopy(GZIP_HEADER, 0, buf, 0, GZIP_HEADER.length);
+        return GZIP_HEADER.length;
+    }
+
+    /** buf 马上会被复用，交给传输编码器后立即写出引用的数据 */
+    private void emit(OutputBuffer output, int len) throws IOException {
+        next.doWrite(output, ByteBuffer.wrap(buf, 0, len));
+        output.flushSegments();
+    }
+
+    @Override
+    public void endWrite(OutputBuffer output) throws IOException {
+        if (deflater == null) {
+            return;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            int off = header();
+            int n = deflater.deflate(buf, off, buf.length - off);
+            if (off + n > 0) {
+                emit(output, off + n);
+            }
+        }
+        if (gzip) {
+            // gzip 尾：CRC32 和原始数据长度，都是小端序
+            writeIntLE((int) crc.getValue(), 0);
+            writeIntLE(deflater.getTotalIn(), 4);
+            emit(output, 8);
+        }
+        next.endWrite(output);
+        recycle();
+    }
+
+    private void writeIntLE(int v, int off) {
+        buf[off] = (byte) v;
+        buf[off + 1] = (byte) (v >> 8);
+        buf[off + 2] = (byte) (v >> 16);
+        buf[off + 3] = (byte) (v >> 24);
+    }
+
+    /**
+     * 归还 Deflater，响应异常结束没有调用 endWrite 时由 OutputBuffer 回收
+     */
+    @Override
+    public void recycle() {
+        if (deflater != null) {
+            compression.releaseDeflater(deflater, gzip);
+            deflater = null;
+        }
+        next = null;
+    }
+}
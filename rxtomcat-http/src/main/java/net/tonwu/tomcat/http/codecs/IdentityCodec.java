@@ -42,15 +42,10 @@ public class IdentityCodec implements BodyCodec {
     public int doRead(InputBuffer input, BufferHolder buffHolder) throws IOException {
         int result = -1;
         if (contentLength > 0 && remaining > 0) {
-            int n = input.realReadBytes(buffHolder);
-            ByteBuffer view = buffHolder.getByteBuffer();
-            if (n > remaining) {
-                // 客户端发送的请求体数据太多了，为什么会这样？
-                // 这里应该出现的几率不大，除非客户端发送的数据与请求头声明的不一致
-                // 在超过最大限制时，chunked 传输时可能会多发送
-                view.limit(view.position() + remaining);
-                result = remaining;
-            } else {
+            // 最多读取剩余的长度，之后的数据属于下一个流水线请求
+            int n = input.realReadBytes(buffHolder, remaining);
+            // 非阻塞读取时 0 表示暂时没有数据
+            if (n >= 0) {
                 result = n;
                 remaining -= n;
             }
@@ -62,10 +57,10 @@ public class IdentityCodec implements BodyCodec {
     public void endRead(InputBuffer input) throws IOException {
         int swallowed = 0;
         while (remaining > 0) {
+            // doRead 已经减去了读取的字节数
             int n = input.readBody(null);
             if (n > 0) {
                 swallowed += n;
-                remaining -= n;
                 if (swallowed > maxSwallowSize) {
                     throw new IOException("maxSwallowSize exceeded");
                 }
@@ -75,6 +70,12 @@ public class IdentityCodec implements BodyCodec {
         }
     }
 
+    @Override
+    public int available() {
+        // 没有自己的缓冲区，数据都在 InputBuffer 中
+        return remaining <= 0 ? -1 : 0;
+    }
+
     @Override
     public void doWrite(OutputBuffer output, ByteBuffer src) throws IOException {
         // 定长写入比较简单，直接写就行
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http.multipart;
+
+import java.io.File;
+
+/**
+ * multipart/form-data 请求的解析配置，由连接器创建，所有 HttpProcessor 共享
+ *
+ * @author tonwu.net
+ */
+public class MultipartConfig {
+    /** 临时文件目录 */
+    private File location = new File(System.getProperty("java.io.tmpdir"));
+    /** Part 超过此大小时写入临时文件，否则保存在内存中 */
+    private int fileSizeThreshold = 64 * 1024;
+    /** 单个 Part 的最大字节数，-1 表示不限制 */
+    private long maxFileSize = -1;
+    /** 整个请求体的最大字节数，-1 表示不限制 */
+    private long maxRequestSize = -1;
+    /** 每个 Part 的头域最大字节数 */
+    private int maxHeaderSize = 8192;
+
+    public File getLocation() {
+        return location;
+    }
+    public void setLocation(File location) {
+        this.location = location;
+    }
+    public int getFileSizeThreshold() {
+        return fileSizeThreshold;
+    }
+    public void setFileSizeThreshold(int fileSizeThreshold) {
+        this.fileSizeThreshold = fileSizeThreshold;
+    }
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+    public long getMaxRequestSize() {
+        return maxRequestSize;
+    }
+    public void setMaxRequestSize(long maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+    }
+    public int getMaxHeaderSize() {
+        return maxHeaderSize;
+    }
+    public void setMaxHeaderSize(int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+    }
+}
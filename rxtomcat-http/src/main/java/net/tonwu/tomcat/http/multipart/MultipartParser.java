@@ -0,0 +1,325 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 流式解析 multipart/form-data 请求体（RFC 7578）。
+ * <p>
+ * 请求体数据分块传入，每块数据都立即写入当前的 Part，不会缓存整个请求体。分隔符
+ * "\r\n--boundary" 使用 Boyer-Moore-Horspool 算法查找，大部分字节不用比较；
+ * 块末尾可能是分隔符前缀的几个字节保留到下一块一起查找，所以分隔符被拆分到
+ * 两块数据中也能找到
+ *
+ * @author tonwu.net
+ */
+public class MultipartParser {
+
+    private enum State {
+        PREAMBLE, // 第一个分隔符之前的数据，忽略
+        DELIMITER, // 分隔符之后，"--" 表示结束，"\r\n" 表示后面是头域
+        HEADERS, // Part 的头域
+        BODY, // Part 的数据
+        EPILOGUE // 结束分隔符之后的数据，忽略
+    }
+
+    private final MultipartConfig config;
+    /** 解析出的 Part 放到这里，解析失败时已经创建的 Part 也能被清理 */
+    private final List<Part> parts;
+
+    /** 完整的分隔符 "\r\n--" + boundary */
+    private final byte[] delimiter;
+    /** Horspool 坏字符表：字节在分隔符中（不含最后一个字节）最后出现位置到末尾的距离 */
+    private final int[] shift = new int[256];
+
+    private State state = State.PREAMBLE;
+    /** DELIMITER 状态下已读的第一个字符 */
+    private byte delimiterChar;
+
+    /** 待解析的数据，开头是上一块数据保留的字节，只在需要时增长 */
+    private byte[] work;
+    private int carry;
+
+    /** 当前 Part 的头域 */
+    private byte[] header = new byte[256];
+    private int headerLength;
+
+    private Part part;
+
+    /** 所有普通表单字段（没有文件名的 Part）的最大总字节数，-1 表示不限制 */
+    private long maxFieldSize = -1;
+    /** 已经接收的表单字段字节数 */
+    private long fieldSize = 0;
+
+    /**
+     * @param boundary Content-Type 中的 boundary 参数
+     * @param config 解析配置
+     * @param parts 保存解析出的 Part
+     */
+    public MultipartParser(byte[] boundary, MultipartConfig config, List<Part> parts) {
+        this.config = config;
+        this.parts = parts;
+        delimiter = new byte[boundary.length + 4];
+        delimiter[0] = '\r';
+        delimiter[1] = '\n';
+        delimiter[2] = '-';
+        delimiter[3] = '-';
+        System.arraycopy(boundary, 0, delimiter, 4, boundary.length);
+
+        int m = delimiter.length;
+        Arrays.fill(shift, m);
+        for (int i = 0; i < m - 1; i++) {
+            shift[delimiter[i] & 0xFF] = m - 1 - i;
+        }
+        // 请求体以 "--boundary" 开始，前面没有 "\r\n"，当作前一块数据保留的字节
+        work = new byte[64];
+        work[0] = '\r';
+        work[1] = '\n';
+        carry = 2;
+    }
+
+    /**
+     * 限制普通表单字段的总大小。表单字段最终会转为字符串作为请求参数，全部在内存中，
+     * 所以不能像上传的文件一样不限制大小
+     *
+     * @param maxFieldSize 最大字节数，-1 表示不限制
+     */
+    public void setMaxFieldSize(long maxFieldSize) {
+        this.maxFieldSize = maxFieldSize;
+    }
+
+    /**
+     * 从 Content-Type 中获取 boundary 参数
+     *
+     * @return 没有 boundary 参数或者参数无效时返回 null
+     */
+    public static byte[] getBoundary(String contentType) {
+        int idx = contentType.toLowerCase(Locale.ENGLISH).indexOf("boundary=");
+        if (idx < 0) {
+            return null;
+        }
+        String boundary = contentType.substring(idx + 9);
+        int semi = boundary.indexOf(';');
+        if (semi >= 0) {
+            boundary = boundary.substring(0, semi);
+        }
+        boundary = boundary.trim();
+        if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        // RFC 2046 规定 boundary 是 1 到 70 个字符
+        if (boundary.isEmpty() || boundary.length() > 70) {
+            return null;
+        }
+        return boundary.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 解析一块请求体数据，会读取它的全部剩余字节
+     *
+     * @throws IOException 格式错误，或者写入 Part 失败
+     */
+    public void parse(ByteBuffer chunk) throws IOException {
+        int len = chunk.remaining();
+        if (state == State.EPILOGUE || len == 0) {
+            chunk.position(chunk.limit());
+            return;
+        }
+        if (work.length < carry + len) {
+            work = Arrays.copyOf(work, carry + len);
+        }
+        chunk.get(work, carry, len);
+        int end = carry + len;
+        int i = 0;
+        carry = 0;
+        while (i < end) {
+            switch (state) {
+            case PREAMBLE:
+            case BODY: {
+                int idx = indexOf(work, i, end);
+                if (idx < 0) {
+                    // 末尾的字节可能是分隔符的开头，保留到下一块
+                    int keep = Math.min(delimiter.length - 1, end - i);
+                    if (state == State.BODY) {
+                        write(work, i, end - i - keep);
+                    }
+                    System.arraycopy(work, end - keep, work, 0, keep);
+                    carry = keep;
+                    return;
+                }
+                if (state == State.BODY) {
+                    write(work, i, idx - i);
+                    part.finish();
+                    part = null;
+                }
+                i = idx + delimiter.length;
+                delimiterChar = 0;
+                state = State.DELIMITER;
+                break;
+            }
+            case DELIMITER: {
+                byte b = work[i++];
+                if (delimiterChar == 0) {
+                    if (b == '-' || b == '\r') {
+                        delimiterChar = b;
+                    } else if (b != ' ' && b != '\t') {
+                        throw new IOException("multipart 分隔符之后的字符无效");
+                    }
+                } else if (delimiterChar == '-' && b == '-') {
+                    state = State.EPILOGUE;
+                    return;
+                } else if (delimiterChar == '\r' && b == '\n') {
+                    headerLength = 0;
+                    state = State.HEADERS;
+                } else {
+                    throw new IOException("multipart 分隔符之后的字符无效");
+                }
+                break;
+            }
+            case HEADERS: {
+                if (headerLength == config.getMaxHeaderSize()) {
+                    throw new IOException("multipart 头域太大");
+                }
+                if (headerLength == header.length) {
+                    header = Arrays.copyOf(header, Math.min(header.length * 2, config.getMaxHeaderSize()));
+                }
+                header[headerLength++] = work[i++];
+                // 头域以空行结束，没有头域时只有一个 "\r\n"
+                if ((headerLength == 2 && header[0] == '\r' && header[1] == '\n')
+                        || (headerLength >= 4 && header[headerLength - 4] == '\r' && header[headerLength - 3] == '\n'
+                                && header[headerLength - 2] == '\r' && header[headerLength - 1] == '\n')) {
+                    startPart();
+                    state = State.BODY;
+                }
+                break;
+            }
+            default:
+                return;
+            }
+        }
+    }
+
+    /** 写入当前 Part，检查表单字段的总大小 */
+    private void write(byte[] b, int off, int len) throws IOException {
+        if (part.getSubmittedFileName() == null && maxFieldSize >= 0) {
+            fieldSize += len;
+            if (fieldSize > maxFieldSize) {
+                throw new IOException("multipart 表单字段的总大小超过了 " + maxFieldSize);
+            }
+        }
+        part.write(b, off, len);
+    }
+
+    /**
+     * 请求体结束
+     *
+     * @throws IOException 没有遇到结束分隔符，请求体不完整
+     */
+    public void end() throws IOException {
+        if (state != State.EPILOGUE) {
+            throw new IOException("multipart 请求体不完整");
+        }
+    }
+
+    /** Boyer-Moore-Horspool 查找分隔符，从右往左比较，不匹配时按窗口最后一个字节跳过 */
+    private int indexOf(byte[] buf, int from, int end) {
+        int m = delimiter.length;
+        int i = from;
+        while (i + m <= end) {
+            int j = m - 1;
+            while (buf[i + j] == delimiter[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += shift[buf[i + m - 1] & 0xFF];
+        }
+        return -1;
+    }
+
+    /** 解析头域，创建新的 Part */
+    private void startPart() throws IOException {
+        part = new Part(config);
+        parts.add(part);
+        // 浏览器直接使用 UTF-8 发送文件名
+        String headers = new String(header, 0, headerLength, StandardCharsets.UTF_8);
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            part.addHeader(name, value);
+            if (name.equalsIgnoreCase("Content-Disposition")) {
+                part.setName(dispositionParam(value, "name"));
+                part.setFileName(dispositionParam(value, "filename"));
+            }
+        }
+        if (part.getName() == null) {
+            throw new IOException("multipart 缺少 Content-Disposition 的 name 参数");
+        }
+    }
+
+    /**
+     * 获取 Content-Disposition 的参数，比如 form-data; name="file"; filename="a.txt"
+     *
+     * @return 没有时返回 null
+     */
+    static String dispositionParam(String disposition, String param) {
+        int i = disposition.indexOf(';');
+        int len = disposition.length();
+        while (i >= 0 && i < len) {
+            i++;
+            while (i < len && disposition.charAt(i) == ' ') {
+                i++;
+            }
+            int eq = disposition.indexOf('=', i);
+            if (eq < 0) {
+                return null;
+            }
+            String key = disposition.substring(i, eq).trim();
+            StringBuilder value = new StringBuilder();
+            i = eq + 1;
+            if (i < len && disposition.charAt(i) == '"') {
+                // 带引号的值，反斜杠转义
+                for (i++; i < len && disposition.charAt(i) != '"'; i++) {
+                    char c = disposition.charAt(i);
+                    if (c == '\\' && i + 1 < len) {
+                        c = disposition.charAt(++i);
+                    }
+                    value.append(c);
+                }
+                i = disposition.indexOf(';', i);
+            } else {
+                int semi = disposition.indexOf(';', i);
+                value.append(disposition, i, semi < 0 ? len : semi);
+                i = semi;
+            }
+            if (key.equalsIgnoreCase(param)) {
+                return value.toString().trim();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http.multipart;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * multipart/form-data 请求中的一个部分，普通的表单字段或者上传的文件。
+ * <p>
+ * 数据不超过阈值时保存在内存中，超过后转存到临时文件，所以上传大文件不会占用堆内存。
+ * 临时文件在请求结束时删除，需要保留时调用 write 移动到其他位置
+ *
+ * @author tonwu.net
+ */
+public class Part {
+    private final MultipartConfig config;
+
+    /** 头域，名称为小写 */
+    private final LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+    private String name;
+    private String fileName;
+
+    private long size = 0;
+    /** 内存中的数据，转存到文件后为 null */
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream(256);
+    private File file;
+    /** file 是否是临时文件，被移动走后不能再删除 */
+    private boolean temporary;
+    private OutputStream fileOut;
+
+    Part(MultipartConfig config) {
+        this.config = config;
+    }
+
+    void addHeader(String name, String value) {
+        headers.put(name.toLowerCase(Locale.ENGLISH), value);
+    }
+
+    void setName(String name) {
+        this.name = name;
+    }
+
+    void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * 追加数据，超过阈值时转存到临时文件
+     *
+     * @throws IOException 写入临时文件失败，或者超过了单个 Part 的最大大小
+     */
+    void write(byte[] b, int off, int len) throws IOException {
+        if (len <= 0) {
+            return;
+        }
+        size += len;
+        if (config.getMaxFileSize() >= 0 && size > config.getMaxFileSize()) {
+            throw new IOException("Part [" + name + "] 超过了最大大小 " + config.getMaxFileSize());
+        }
+        if (memory != null && size > config.getFileSizeThreshold()) {
+            file = File.createTempFile("rxtomcat-upload-", ".tmp", config.getLocation());
+            temporary = true;
+            fileOut = new FileOutputStream(file);
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+        if (memory != null) {
+            memory.write(b, off, len);
+        } else {
+            fileOut.write(b, off, len);
+        }
+    }
+
+    /** 数据接收完毕 */
+    void finish() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+            fileOut = null;
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        if (memory != null) {
+            return new ByteArrayInputStream(memory.toByteArray());
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * 以字符串形式获取内容，用于普通的表单字段
+     */
+    public String getString(Charset charset) throws IOException {
+        if (memory != null) {
+            return new String(memory.toByteArray(), charset);
+        }
+        return new String(Files.readAllBytes(file.toPath()), charset);
+    }
+
+    /**
+     * 把内容保存到指定的文件，临时文件会被移动过去，不用再拷贝一次
+     *
+     * @param dest 目标文件，已存在的会被覆盖
+     */
+    public void write(File dest) throws IOException {
+        if (memory != null) {
+            try (OutputStream out = new FileOutputStream(dest)) {
+                memory.writeTo(out);
+            }
+            return;
+        }
+        try {
+            Files.move(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            file = dest;
+            temporary = false;
+        } catch (IOException e) {
+            // 不在同一个文件系统时可能不能移动，改为拷贝
+            Files.copy(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 释放内存并删除临时文件，请求结束时调用
+     */
+    public void delete() {
+        memory = null;
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException ignore) {
+            }
+            fileOut = null;
+        }
+        if (file != null && temporary) {
+            file.delete();
+        }
+        file = null;
+    }
+
+    /** 表单字段的名称 */
+    public String getName() {
+        return name;
+    }
+
+    /** 上传文件的原始文件名，不是文件时返回 null */
+    public String getSubmittedFileName() {
+        return fileName;
+    }
+
+    public String getContentType() {
+        return headers.get("content-type");
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /** 数据是否还在内存中 */
+    public boolean isInMemory() {
+        return memory != null;
+    }
+
+    /** 名称不区分大小写 */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    public Collection<String> getHeaderNames() {
+        return headers.keySet();
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http.reactive;
+
+/**
+ * 数据的发布者，与 Reactive Streams 和 Java 9 的 java.util.concurrent.Flow.Publisher 相同，
+ * 项目以 Java 7 为基线，所以单独定义。
+ * <p>
+ * 订阅者通过 Subscription.request 声明需要多少个数据，发布者发送的数据不能超过这个数量，
+ * 生产快的发布者因此会被消费慢的订阅者限速，这就是背压
+ *
+ * @author tonwu.net
+ */
+public interface Publisher<T> {
+
+    /**
+     * 添加一个订阅者，发布者随后调用它的 onSubscribe
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+}
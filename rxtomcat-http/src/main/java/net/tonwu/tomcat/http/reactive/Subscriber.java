@@ -0,0 +1,47 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http.reactive;
+
+/**
+ * 数据的订阅者，接收发布者的信号。
+ * <p>
+ * 信号按 onSubscribe、onNext*、(onError | onComplete) 的顺序串行发送，可以来自不同的线程，
+ * onNext 的次数不会超过 request 的总数
+ *
+ * @author tonwu.net
+ */
+public interface Subscriber<T> {
+
+    /**
+     * 订阅成功，调用 subscription.request 之前不会收到数据
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * 收到一个数据，之后数据归订阅者所有
+     */
+    void onNext(T item);
+
+    /**
+     * 发布者出错，不会再有其他信号
+     */
+    void onError(Throwable throwable);
+
+    /**
+     * 数据发送完毕，不会再有其他信号
+     */
+    void onComplete();
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.http.reactive;
+
+/**
+ * 发布者和订阅者之间的一次订阅，订阅者用它请求数据或者取消订阅
+ *
+ * @author tonwu.net
+ */
+public interface Subscription {
+
+    /**
+     * 请求 n 个数据，多次请求的数量会累加
+     *
+     * @param n 必须大于 0
+     */
+    void request(long n);
+
+    /**
+     * 取消订阅，发布者随后停止发送数据
+     */
+    void cancel();
+}
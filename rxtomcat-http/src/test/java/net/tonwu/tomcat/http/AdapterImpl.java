@@ -37,7 +37,7 @@ public class AdapterImpl implements Adapter {
     	rawResp = response;
     	
     	// 触发请求体的读取和解析
-    	rawReq.getParameters().get("none");
+    	rawReq.getParameters().getParameter("none");
     	
         StringBuilder content = new StringBuilder();
         content.append("Server version: " + "RxTomcat/1.1" + "\r\n");
@@ -57,4 +57,9 @@ public class AdapterImpl implements Adapter {
         
         rawResp.action(ActionCode.CLOSE, null);
     }
+
+    @Override
+    public void asyncDispatch(RawRequest request, RawResponse response, AsyncEvent event) {
+        // 不使用异步处理
+    }
 }
@@ -0,0 +1,53 @@
+package net.tonwu.tomcat.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestParameters {
+
+    private static void decode(Parameters params, String... chunks) {
+        params.startDecode(StandardCharsets.UTF_8);
+        for (String chunk : chunks) {
+            params.decode(ByteBuffer.wrap(chunk.getBytes(StandardCharsets.ISO_8859_1)));
+        }
+        params.endDecode();
+    }
+
+    @Test
+    public void escapeSplitAcrossChunks() {
+        Parameters params = new Parameters();
+        // "创" 是 %E5%88%9B，'%' 和两个十六进制字符分别在不同的块中
+        decode(params, "user=a%", "E5%8", "8%9B", "&x=1");
+        Assert.assertEquals("a创", params.getParameter("user"));
+        Assert.assertEquals("1", params.getParameter("x"));
+    }
+
+    @Test
+    public void encodedSeparators() {
+        Parameters params = new Parameters();
+        decode(params, "a%26b=c%3Dd&e=f+g=h&empty&=noname&bad=%zz%4");
+        Assert.assertEquals("c=d", params.getParameter("a&b"));
+        Assert.assertEquals("f g=h", params.getParameter("e"));
+        Assert.assertEquals("", params.getParameter("empty"));
+        Assert.assertEquals("%zz%4", params.getParameter("bad"));
+        Assert.assertEquals(4, params.size());
+        Assert.assertFalse(params.isLimitExceeded());
+    }
+
+    @Test
+    public void maxParameterCount() {
+        Parameters params = new Parameters();
+        params.setMaxParameterCount(2);
+        decode(params, "a=1&b=2&c=3");
+        Assert.assertEquals(2, params.size());
+        Assert.assertNull(params.getParameter("c"));
+        Assert.assertTrue(params.isLimitExceeded());
+
+        params.recycle();
+        Assert.assertFalse(params.isLimitExceeded());
+        Assert.assertEquals(0, params.size());
+    }
+}
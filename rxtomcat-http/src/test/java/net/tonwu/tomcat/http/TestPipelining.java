@@ -0,0 +1,183 @@
+package net.tonwu.tomcat.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.tonwu.tomcat.http.ActionHook.ActionCode;
+import net.tonwu.tomcat.net.Handler.SocketEvent;
+import net.tonwu.tomcat.net.Handler.SocketState;
+import net.tonwu.tomcat.net.NioChannel;
+
+public class TestPipelining {
+
+    private static final String REQUEST = "GET /a HTTP/1.1\r\nHost: localhost\r\n\r\n";
+
+    /**
+     * 客户端发送了流水线请求和下一个请求的一部分，但是不读取响应：通道一直不可写，
+     * 任何阻塞写都会让线程停在这里，直到写超时
+     */
+    static class StalledChannel extends NioChannel {
+        private final ByteBuffer input;
+        private final boolean eof;
+        /** 阻塞读写的次数 */
+        int blocked = 0;
+        /** 通道是否可写，可写时非阻塞发送的数据记录在这里 */
+        boolean writable = false;
+        final StringBuilder sent = new StringBuilder();
+
+        StalledChannel(String data, boolean eof) {
+            super(null);
+            this.input = ByteBuffer.wrap(data.getBytes(StandardCharsets.ISO_8859_1));
+            this.eof = eof;
+        }
+
+        @Override
+        public int read(ByteBuffer dst, boolean block) throws IOException {
+            if (!input.hasRemaining()) {
+                if (eof) {
+                    return -1;
+                }
+                if (block) {
+                    blocked++;
+                    throw new IOException("不应该阻塞读取");
+                }
+                return 0;
+            }
+            int n = Math.min(dst.remaining(), input.remaining());
+            ByteBuffer slice = input.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            input.position(input.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean flushNonBlocking() {
+            if (writable && hasPendingWrite()) {
+                sent.append(written(this));
+                getWriteBufffer().clear();
+            }
+            return !hasPendingWrite();
+        }
+
+        @Override
+        public long writeNonBlocking(ByteBuffer[] srcs, int offset, int length) {
+            return 0;
+        }
+
+        @Override
+        public void drain() throws IOException {
+            blocked++;
+            throw new IOException("不应该阻塞等待通道可写");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            blocked++;
+            throw new IOException("不应该阻塞等待通道可写");
+        }
+
+        @Override
+        public String toString() {
+            return "stalled";
+        }
+    }
+
+    private static HttpProcessor processor() {
+        HttpProcessor processor = new HttpProcessor();
+        processor.setAdaptor(new Adapter() {
+            @Override
+            public void service(RawRequest request, RawResponse response) throws Exception {
+                if (request.getUri().startsWith("/async")) {
+                    // 等待应用线程完成，这里不生成响应
+                    request.action(ActionCode.ASYNC_START, null);
+                    return;
+                }
+                byte[] body = "hello".getBytes(StandardCharsets.ISO_8859_1);
+                response.setContentType("text/plain");
+                response.setContentLength(body.length);
+                response.doWrite(ByteBuffer.wrap(body));
+                response.action(ActionCode.CLOSE, null);
+            }
+
+            @Override
+            public void asyncDispatch(RawRequest request, RawResponse response, AsyncEvent event) {
+            }
+        });
+        return processor;
+    }
+
+    @Test
+    public void partialRequestWithSlowReader() {
+        StalledChannel channel = new StalledChannel(REQUEST + REQUEST + "GET /c HTTP/1.1\r\nHo", false);
+        SocketState state = processor().process(channel, SocketEvent.OPEN);
+
+        // 等待剩余的请求头，响应留给 Poller 发送，线程已经返回
+        Assert.assertEquals(SocketState.LONG, state);
+        Assert.assertEquals(0, channel.blocked);
+        Assert.assertTrue(channel.hasPendingWrite());
+        String written = written(channel);
+        Assert.assertEquals(2, written.split("HTTP/1.1 200").length - 1);
+    }
+
+    @Test
+    public void eofWithSlowReader() {
+        StalledChannel channel = new StalledChannel(REQUEST + REQUEST + "GET /c HTTP/1.1\r\nHo", true);
+        SocketState state = processor().process(channel, SocketEvent.OPEN);
+
+        // 客户端关闭了输出，响应由 Poller 发送完后关闭连接
+        Assert.assertEquals(SocketState.WRITE, state);
+        Assert.assertTrue(channel.isCloseAfterWrite());
+        Assert.assertEquals(0, channel.blocked);
+        Assert.assertTrue(channel.hasPendingWrite());
+    }
+
+    @Test
+    public void eofWithoutPendingWrite() {
+        StalledChannel channel = new StalledChannel("", true);
+        Assert.assertEquals(SocketState.CLOSED, processor().process(channel, SocketEvent.OPEN));
+    }
+
+    @Test
+    public void asyncRequestFlushesEarlierResponses() {
+        StalledChannel channel = new StalledChannel(REQUEST + "GET /async HTTP/1.1\r\nHost: localhost\r\n\r\n", false);
+        channel.writable = true;
+        HttpProcessor processor = processor();
+
+        // 之前的响应不用等到异步请求结束才发送
+        Assert.assertEquals(SocketState.ASYNC, processor.process(channel, SocketEvent.OPEN));
+        Assert.assertTrue(channel.sent.toString().startsWith("HTTP/1.1 200"));
+        Assert.assertFalse(channel.hasPendingWrite());
+        Assert.assertEquals(0, processor.getAsyncInterestOps() & SelectionKey.OP_WRITE);
+    }
+
+    @Test
+    public void asyncRequestWithSlowReader() {
+        StalledChannel channel = new StalledChannel(REQUEST + "GET /async HTTP/1.1\r\nHost: localhost\r\n\r\n", false);
+        HttpProcessor processor = processor();
+
+        // 没有发送完的响应由 Poller 在通道可写时继续发送
+        Assert.assertEquals(SocketState.ASYNC, processor.process(channel, SocketEvent.OPEN));
+        Assert.assertEquals(0, channel.blocked);
+        Assert.assertTrue(channel.hasPendingWrite());
+        Assert.assertTrue((processor.getAsyncInterestOps() & SelectionKey.OP_WRITE) != 0);
+
+        channel.writable = true;
+        Assert.assertEquals(SocketState.ASYNC, processor.process(channel, SocketEvent.WRITE));
+        Assert.assertTrue(channel.sent.toString().startsWith("HTTP/1.1 200"));
+        Assert.assertEquals(0, processor.getAsyncInterestOps() & SelectionKey.OP_WRITE);
+    }
+
+    private static String written(NioChannel channel) {
+        ByteBuffer buf = channel.getWriteBufffer().duplicate();
+        buf.flip();
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,30 @@
+package net.tonwu.tomcat.http;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRawResponse {
+
+    @Test
+    public void contentTypeCharset() {
+        RawResponse response = new RawResponse();
+        response.setHeader("Content-Type", "text/plain;charset=iso-8859-1");
+        Assert.assertEquals("text/plain", response.getRawContentType());
+        Assert.assertEquals("text/plain;charset=iso-8859-1", response.getContentType());
+        Assert.assertNull(response.getHeader("Content-Type"));
+    }
+
+    /** 处理器放回对象池后，上一个响应的字符编码不能带到下一个响应 */
+    @Test
+    public void recycleResetsCharset() {
+        RawResponse response = new RawResponse();
+        response.setHeader("Content-Type", "text/plain;charset=iso-8859-1");
+        response.setContentLanguage("fr");
+        response.recycle();
+
+        Assert.assertEquals("utf-8", response.getCharacterEncoding());
+        Assert.assertNull(response.getContentLanguage());
+        response.setContentType("text/html");
+        Assert.assertEquals("text/html;charset=utf-8", response.getContentType());
+    }
+}
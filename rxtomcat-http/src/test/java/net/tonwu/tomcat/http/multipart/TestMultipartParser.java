@@ -0,0 +1,112 @@
+package net.tonwu.tomcat.http.multipart;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestMultipartParser {
+
+    private static final String BODY = "--XyZ\r\n"
+            + "Content-Disposition: form-data; name=\"user\"\r\n\r\n"
+            + "tonwu\r\n"
+            + "--XyZ\r\n"
+            + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+            + "Content-Type: text/plain\r\n\r\n"
+            + "line1\r\n--XyYnot-a-boundary\r\n"
+            + "\r\n--XyZ--\r\n";
+
+    private final List<Part> parts = new ArrayList<>();
+
+    @After
+    public void cleanup() {
+        for (Part part : parts) {
+            part.delete();
+        }
+    }
+
+    private MultipartParser parser() {
+        return new MultipartParser("XyZ".getBytes(StandardCharsets.ISO_8859_1), new MultipartConfig(), parts);
+    }
+
+    private static ByteBuffer bytes(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void boundarySplitAcrossReads() throws IOException {
+        // 每个位置拆成两块，分隔符和头域的任何一部分都可能在块的边界上
+        for (int split = 1; split < BODY.length(); split++) {
+            cleanup();
+            parts.clear();
+            MultipartParser parser = parser();
+            parser.parse(bytes(BODY.substring(0, split)));
+            parser.parse(bytes(BODY.substring(split)));
+            parser.end();
+
+            Assert.assertEquals(2, parts.size());
+            Assert.assertEquals("user", parts.get(0).getName());
+            Assert.assertEquals("tonwu", parts.get(0).getString(StandardCharsets.UTF_8));
+            Assert.assertEquals("a.txt", parts.get(1).getSubmittedFileName());
+            Assert.assertEquals("text/plain", parts.get(1).getContentType());
+            Assert.assertEquals("line1\r\n--XyYnot-a-boundary\r\n", parts.get(1).getString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void byteAtATime() throws IOException {
+        MultipartParser parser = parser();
+        for (int i = 0; i < BODY.length(); i++) {
+            parser.parse(bytes(BODY.substring(i, i + 1)));
+        }
+        parser.end();
+        Assert.assertEquals(2, parts.size());
+        Assert.assertEquals("tonwu", parts.get(0).getString(StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingName() throws IOException {
+        MultipartParser parser = parser();
+        parser.parse(bytes("--XyZ\r\nContent-Disposition: form-data; filename=\"a.txt\"\r\n\r\nabc\r\n--XyZ--\r\n"));
+    }
+
+    @Test(expected = IOException.class)
+    public void incompleteBody() throws IOException {
+        MultipartParser parser = parser();
+        parser.parse(bytes("--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\nabc"));
+        parser.end();
+    }
+
+    @Test
+    public void oversizedField() throws IOException {
+        MultipartParser parser = parser();
+        parser.setMaxFieldSize(10);
+        try {
+            parser.parse(bytes("--XyZ\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\n"));
+            for (int i = 0; i < 100; i++) {
+                parser.parse(bytes("0123456789"));
+            }
+            Assert.fail("表单字段超过限制时应该解析失败");
+        } catch (IOException expected) {
+            Assert.assertTrue(parts.get(0).getSize() <= 10);
+        }
+    }
+
+    @Test
+    public void fileNotLimitedByFieldSize() throws IOException {
+        MultipartParser parser = parser();
+        parser.setMaxFieldSize(10);
+        parser.parse(bytes("--XyZ\r\nContent-Disposition: form-data; name=\"f\"; filename=\"b.bin\"\r\n\r\n"));
+        for (int i = 0; i < 100; i++) {
+            parser.parse(bytes("0123456789"));
+        }
+        parser.parse(bytes("\r\n--XyZ--"));
+        parser.end();
+        Assert.assertEquals(1000, parts.get(0).getSize());
+    }
+}
@@ -52,9 +52,9 @@ public class Acceptor implements Runnable {
                     socket.configureBlocking(false);
                     socket.socket().setTcpNoDelay(true);
                     socket.socket().setSoTimeout(endpoint.getSoTimeout());
-                    // 封装成 NioChannel 对象
-                    NioChannel channel = new NioChannel(socket);
-                    // 将 NioChannel 对象插入 poller 的队列中，并指定关注的事件
+                    // 封装成 NioChannel 对象，读写缓冲区在使用时才从对象池借用
+                    NioChannel channel = new NioChannel(socket, endpoint.getBufferPool());
+                    // 轮询选择一个 Poller，将 NioChannel 对象插入它的队列中，并指定关注的事件
                     endpoint.getPoller().register(channel, OP_REGISTER);
                     log.debug("接收通道 [{}] 连接", channel);
                 } catch (Throwable t) {
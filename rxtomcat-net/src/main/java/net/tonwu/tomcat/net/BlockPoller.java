@@ -0,0 +1,181 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 模拟阻塞专用的多路复用器，参考 Tomcat 的 NioSelectorPool。
+ * <p>
+ * 线程池中的线程在读取请求体或发送响应时，如果通道暂时不可读或不可写，就在这个 Poller
+ * 上等待，不再经过主 Poller 的事件队列和时间轮。通道同时注册在主 Selector 和这里的
+ * Selector 上，处理请求期间主 Poller 上关注的事件为空，两者互不干扰。
+ * <p>
+ * 等待的线程使用 LockSupport 挂起，就绪时由 BlockPoller 线程唤醒，每次等待不需要分配新的对象
+ *
+ * @author tonwu.net
+ */
+public class BlockPoller implements Runnable {
+    final static Logger log = LoggerFactory.getLogger(BlockPoller.class);
+
+    private Selector selector;
+
+    private volatile boolean close = false;
+
+    /** 等待注册或取消关注事件的通道 */
+    private ConcurrentLinkedQueue<NioChannel> events = new ConcurrentLinkedQueue<>();
+
+    public BlockPoller() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * 阻塞当前线程，直到通道就绪、超时或者被中断
+     *
+     * @param channel 通道
+     * @param interestOps 等待的事件，OP_READ 或 OP_WRITE
+     * @param timeout 超时时间，单位毫秒，小于等于 0 表示不超时
+     * @return true 通道已就绪（或已被关闭，再次读写时会抛出异常），false 超时
+     */
+    public boolean await(NioChannel channel, int interestOps, long timeout) {
+        channel.blockReady = false;
+        channel.blockThread = Thread.currentThread();
+        channel.blockOps = interestOps;
+        add(channel);
+
+        long deadline = timeout > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+        while (!channel.blockReady && !Thread.currentThread().isInterrupted()) {
+            if (timeout > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        boolean ready = channel.blockReady;
+        if (!ready) {
+            // 超时或者被中断，不再关注事件
+            channel.blockOps = 0;
+            add(channel);
+        }
+        channel.blockThread = null;
+        return ready;
+    }
+
+    private void add(NioChannel channel) {
+        events.offer(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (!close) {
+            try {
+                events();
+                int keyCount = selector.select(1000);
+                if (keyCount == 0) {
+                    continue;
+                }
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    NioChannel channel = (NioChannel) key.attachment();
+                    try {
+                        // 就绪后不再关注，下次等待时重新声明
+                        key.interestOps(0);
+                    } catch (CancelledKeyException ignore) {
+                    }
+                    if (log.isDebugEnabled()) {
+                        log.debug("模拟阻塞 - 通道 [{}] 已 [可{}]", channel, key.isReadable() ? "读" : "写");
+                    }
+                    wakeup(channel);
+                }
+            } catch (Throwable e) {
+                log.error("", e);
+            }
+        }
+        // 唤醒所有还在等待的线程
+        events();
+        for (SelectionKey key : selector.keys()) {
+            wakeup((NioChannel) key.attachment());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.debug("Selector close failed", e);
+        }
+    }
+
+    /** 处理通道关注事件的声明和取消 */
+    private void events() {
+        NioChannel channel = null;
+        while ((channel = events.poll()) != null) {
+            SocketChannel sc = channel.ioChannel();
+            int ops = channel.blockOps;
+            SelectionKey key = sc.keyFor(selector);
+            try {
+                if (ops == 0) {
+                    // 保留 key，下次等待时不用重新注册，通道关闭时会自动取消
+                    if (key != null && key.isValid()) {
+                        key.interestOps(0);
+                    }
+                } else if (key == null) {
+                    sc.register(selector, ops, channel);
+                } else {
+                    key.interestOps(ops);
+                }
+            } catch (ClosedChannelException | CancelledKeyException e) {
+                // 通道已经关闭，唤醒等待的线程，读写时会抛出异常
+                wakeup(channel);
+            }
+        }
+    }
+
+    private void wakeup(NioChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        channel.blockReady = true;
+        Thread thread = channel.blockThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * 停止 BlockPoller 线程
+     */
+    protected void destroy() {
+        close = true;
+        selector.wakeup();
+    }
+}
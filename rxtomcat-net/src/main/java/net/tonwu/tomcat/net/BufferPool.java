@@ -0,0 +1,88 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 通道读写缓冲区对象池，NioChannel 只在读取或发送请求时才借用缓冲区，
+ * 连接空闲时归还，这样大量的 keep-alive 连接不会一直占用内存。
+ * <p>
+ * 默认使用直接缓冲区，SocketChannel 读写时 JDK 不用再通过临时的直接缓冲区拷贝一次
+ *
+ * @author tonwu.net
+ */
+public class BufferPool {
+
+    /** 缓冲区大小 */
+    private final int bufferSize;
+    /** 是否使用直接缓冲区 */
+    private final boolean direct;
+    /** 池中最多保留的缓冲区个数，-1 表示不限制 */
+    private final int maxPooled;
+
+    private final ConcurrentLinkedDeque<ByteBuffer> pool = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    public BufferPool(int bufferSize, boolean direct, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * 借用一个缓冲区，池为空时新分配一个
+     *
+     * @return 已清空的缓冲区，处于写入模式
+     */
+    public ByteBuffer allocate() {
+        ByteBuffer buffer = pool.pollFirst();
+        if (buffer != null) {
+            size.decrementAndGet();
+            return buffer;
+        }
+        return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * 归还缓冲区，池满时丢弃
+     *
+     * @param buffer 借用的缓冲区
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        int n = size.incrementAndGet();
+        if (maxPooled != -1 && n > maxPooled) {
+            size.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pool.offerFirst(buffer);
+    }
+
+    /** 池中当前可用的缓冲区个数 */
+    public int size() {
+        return size.get();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -18,6 +18,9 @@ package net.tonwu.tomcat.net;
 import java.nio.channels.SelectionKey;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +35,13 @@ public abstract class Handler {
     
     /** 连接和处理器的映射，主要是非阻塞读或写不完整时，再次处理时关联旧的处理器 */
     private final Map<NioChannel, Processor> connections = new ConcurrentHashMap<>();
+    
+    /** 回收的 Processor 对象池 */
+    private final RecycledProcessors recycledProcessors = new RecycledProcessors();
+    
+    /** 对象池命中和未命中的次数 */
+    private final AtomicLong poolHits = new AtomicLong();
+    private final AtomicLong poolMisses = new AtomicLong();
 
     /** 连接处理过程中 socket 可能的状态 */
     public enum SocketState {
@@ -39,47 +49,108 @@ public abstract class Handler {
         OPEN,
         /** 继续读取 */
         LONG,
-        /** 发送 */
+        /** 响应数据没有发送完，由 Poller 异步发送 */
         WRITE,
+        /** 请求进入异步处理，释放线程，由 dispatch、complete 或超时事件恢复处理 */
+        ASYNC,
         /** 断开连接 */
         CLOSED
     }
-    /** 处理连接、通道 */
-    public SocketState handle(NioChannel socket) {
+    
+    /** 交给 Processor 处理的事件 */
+    public enum SocketEvent {
+        /** 通道发生了读写事件 */
+        OPEN,
+        /** 异步处理的请求调用了 dispatch 或 complete */
+        ASYNC,
+        /** 异步处理的请求超时 */
+        TIMEOUT,
+        /** 异步处理的请求等待的通道可读 */
+        READ,
+        /** 异步处理的请求等待的通道可写 */
+        WRITE
+    }
+    
+    /**
+     * 处理连接、通道。异步请求的恢复事件可能和 Poller 的超时事件同时发生，
+     * 所以同一个通道的处理是串行的
+     */
+    public SocketState handle(NioChannel socket, SocketEvent event) {
+        synchronized (socket) {
+            return doHandle(socket, event);
+        }
+    }
+    
+    private SocketState doHandle(NioChannel socket, SocketEvent event) {
         // 是否存在关联的 processor
         Processor processor = connections.get(socket);
+        if (event != SocketEvent.OPEN && (processor == null || !processor.isAsync())) {
+            // 请求已经被先到的事件恢复并处理完毕，通道由后续的流程负责，忽略过期的事件
+            log.debug("通道 [{}] 没有异步处理的请求，忽略 [{}] 事件", socket, event);
+            return SocketState.ASYNC;
+        }
         if (processor == null) {
-            // 创建一个 Processor 对象，并与此 socket 关联
-            processor = createProcessor();
+            // 先从对象池中获取一个回收的 Processor
+            processor = recycledProcessors.pop();
+            if (processor != null) {
+                poolHits.incrementAndGet();
+                log.debug("为通道 [{}] 复用回收的 Processor [{}]", socket, processor);
+            } else {
+                poolMisses.incrementAndGet();
+                // 创建一个 Processor 对象
+                processor = createProcessor();
+                log.debug("为通道 [{}] 创建新的 Processor [{}]", socket, processor);
+            }
+            // 与此 socket 关联
             connections.put(socket, processor);
-            log.debug("为通道 [{}] 创建新的 Processor [{}]", socket, processor);
         } else {
             log.debug("获取通道 [{}] 已创建关联的 Processor [{}]", socket, processor);
         }
 
         SocketState state = SocketState.CLOSED;
         // 调用 Processor 处理
-        state = processor.process(socket);
+        state = processor.process(socket, event);
         // 检查处理结果
         if (state == SocketState.LONG) {
-            log.debug("[请求头数据不完整]，通道 [{}] 重新声明关注 [读取] 事件", socket);
-            // 处理期间发现读取的数据不完整，要再次读取，此时通道要再次在 Poller 上声明关注读取事件
-            socket.getPoller().register(socket, SelectionKey.OP_READ);
             // 不会移除通道和处理器的映射关系
+            if (socket.hasPendingWrite()) {
+                log.debug("[请求头数据不完整]，通道 [{}] 先声明关注 [写入] 事件，发送流水线请求的响应", socket);
+                // 之前的流水线请求的响应没有发送完，由 Poller 发送，发送完后再关注读取事件；
+                // 不在这里阻塞等待读得慢的客户端
+                socket.setReadAfterWrite(true);
+                socket.getPoller().register(socket, SelectionKey.OP_WRITE);
+            } else {
+                log.debug("[请求头数据不完整]，通道 [{}] 重新声明关注 [读取] 事件", socket);
+                // 处理期间发现读取的数据不完整，要再次读取，此时通道要再次在 Poller 上声明关注读取事件
+                socket.getPoller().register(socket, SelectionKey.OP_READ);
+            }
         } else if (state == SocketState.OPEN) {
             log.debug("[保持连接]，通道 [{}] 重新声明关注 [读取] 事件", socket);
-            // 长连接，要保持连接，因为不知道下次请求的时间，所以可以回收利用此通道关联的 Processor
-            // 这里主要是模拟实现，并没有真正实现 Processor 对象池
+            // 长连接，要保持连接，因为不知道下次请求的时间，所以回收此通道关联的 Processor
             connections.remove(socket);
-            // 再次声明关注读取事件
-            socket.getPoller().register(socket, SelectionKey.OP_READ);
+            recycleProcessor(processor);
+            // 连接空闲时归还读写缓冲区，必须在 Processor 回收之后
+            socket.releaseBuffers();
+            // 再次声明关注读取事件，使用 keep-alive 超时时间
+            Poller poller = socket.getPoller();
+            poller.register(socket, SelectionKey.OP_READ, poller.getEndpoint().getKeepAliveTimeout());
         } else if (state == SocketState.WRITE) {
             log.debug("[写入响应数据]，通道 [{}] 声明关注 [写入] 事件", socket);
-            // 简单起见，这个 Poller 也处理写入事件
+            // 响应已经生成完毕，剩余的数据在通道的写缓冲区中，回收 Processor，但不能归还缓冲区
+            connections.remove(socket);
+            recycleProcessor(processor);
+            // 简单起见，这个 Poller 也处理写入事件，写完后再回到 keep-alive 或者关闭连接
             socket.getPoller().register(socket, SelectionKey.OP_WRITE);
+        } else if (state == SocketState.ASYNC) {
+            log.debug("[异步处理]，通道 [{}] 等待 dispatch 或 complete", socket);
+            // 保留通道和处理器的映射，等待恢复处理；除了响应式流等待的读写事件，Poller 只检查异步超时
+            int ops = Poller.OP_ASYNC | processor.getAsyncInterestOps();
+            socket.getPoller().register(socket, ops, processor.getAsyncTimeout());
         } else { // Connection closed
             // 关闭连接
             connections.remove(socket);
+            recycleProcessor(processor);
+            socket.releaseBuffers();
         }
         return state;
     }
@@ -88,11 +159,85 @@ public abstract class Handler {
      * 通道超时或关闭时移除对应的 Processor，防止内存泄露
      * 
      * @param socket NioChannel
+     * @return true 通道关联着 Processor，它可能仍在使用通道的缓冲区
      */
-    public void release(NioChannel socket) {
+    public boolean release(NioChannel socket) {
         Processor p = connections.remove(socket);
         if (p != null) {
+            // 这个 Processor 可能仍在线程池中执行，不能放回对象池
             log.debug("释放通道 [{}] 关联的 Processor [{}]", socket, p);
+            return true;
+        }
+        return false;
+    }
+    
+    /** 回收 Processor 并放回对象池，池满时丢弃 */
+    private void recycleProcessor(Processor processor) {
+        processor.recycle();
+        recycledProcessors.push(processor);
+    }
+    
+    /** 对象池的最大容量 */
+    public int getProcessorCache() {
+        return recycledProcessors.limit;
+    }
+
+    /**
+     * 设置对象池的最大容量
+     * 
+     * @param processorCache -1 表示不限制大小，0 表示不回收
+     */
+    public void setProcessorCache(int processorCache) {
+        recycledProcessors.limit = processorCache;
+    }
+
+    /** 对象池中当前可用的 Processor 个数 */
+    public int getPoolSize() {
+        return recycledProcessors.size.get();
+    }
+
+    public long getPoolHits() {
+        return poolHits.get();
+    }
+
+    public long getPoolMisses() {
+        return poolMisses.get();
+    }
+
+    /** 对象池命中率，还没有处理过连接时返回 0 */
+    public double getPoolHitRate() {
+        long hits = poolHits.get();
+        long total = hits + poolMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+    
+    /**
+     * 有界、无锁的 Processor 对象池，后进先出，最近使用的 Processor 更可能还在 CPU 缓存中
+     */
+    static class RecycledProcessors {
+        private final ConcurrentLinkedDeque<Processor> stack = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger size = new AtomicInteger();
+        /** 最大容量，-1 表示不限制大小，0 表示不回收 */
+        private volatile int limit = 200;
+
+        boolean push(Processor processor) {
+            int max = limit;
+            // 先占用一个名额，超出限制时归还
+            int n = size.incrementAndGet();
+            if (max != -1 && n > max) {
+                size.decrementAndGet();
+                return false;
+            }
+            stack.offerFirst(processor);
+            return true;
+        }
+
+        Processor pop() {
+            Processor processor = stack.pollFirst();
+            if (processor != null) {
+                size.decrementAndGet();
+            }
+            return processor;
         }
     }
     
@@ -21,38 +21,62 @@ import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * 对 SocketChannel 的封装，主要包含两个 ByteBuffer 用于读和写；
- * 使用两个 CountDownLatch 实现模拟阻塞，并且提供阻塞读和写的方法
+ * 对 SocketChannel 的封装，主要包含两个 ByteBuffer 用于读和写，它们在使用时才从
+ * BufferPool 借用，连接空闲时归还；提供模拟阻塞读和写的方法，通道暂时不可读或不可写时
+ * 在 BlockPoller 上等待，并且遵守端点配置的读写超时
  * 
  * @author tonwu.net
  */
 public class NioChannel {
     final static Logger log = LoggerFactory.getLogger(NioChannel.class);
     
+    /** 默认缓冲区大小 */
+    public static final int DEFAULT_BUFFER_SIZE = 2 * 8192;
+    /** 没有关联 Poller 时，模拟阻塞读写的超时时间 */
+    private static final long DEFAULT_TIMEOUT = 60000;
+    
     private SocketChannel socket;
+    private BufferPool bufferPool;
     private ByteBuffer readbuff;
     private ByteBuffer writebuff;
 
     private Poller poller;
     private int interestOps = 0;
+    /** 异步写完成后是否关闭连接，否则回到 keep-alive 状态等待下一个请求 */
+    private volatile boolean closeAfterWrite = false;
+    /** 异步写完成后继续读取不完整的流水线请求，读缓冲区中还有部分请求头，不能归还缓冲区 */
+    private volatile boolean readAfterWrite = false;
+    /** 写缓冲区中的数据发送完后，要零拷贝发送的文件 */
+    private SendfileData sendfileData;
 
-    private long timeout = 100000;
-    private long lastAccess = -1;
+    private volatile long lastAccess = -1;
+    
+    /** 在 Poller 上等待事件的超时时间，根据等待的是 keep-alive、读或写选择 */
+    private volatile long pollTimeout = -1;
+    /** 在 Poller 时间轮中的节点 */
+    private TimingWheel.Timeout timer;
 
-    private CountDownLatch writeLatch;
-    private CountDownLatch readLatch;
+    /* 在 BlockPoller 上模拟阻塞时的状态，由 BlockPoller 访问 */
+    volatile Thread blockThread;
+    volatile int blockOps;
+    volatile boolean blockReady;
 
     public NioChannel(SocketChannel socket) {
+        this(socket, null);
+    }
+
+    /**
+     * @param socket 底层通道
+     * @param bufferPool 读写缓冲区对象池，为 null 时直接分配堆内缓冲区
+     */
+    public NioChannel(SocketChannel socket, BufferPool bufferPool) {
         this.socket = socket;
-        readbuff = ByteBuffer.allocate(2 * 8192);
-        writebuff = ByteBuffer.allocate(2 * 8192);
+        this.bufferPool = bufferPool;
         lastAccess = System.currentTimeMillis();
     }
 
@@ -65,97 +89,234 @@ public class NioChannel {
      * @throws IOException
      */
     public int read(ByteBuffer dst, boolean block) throws IOException {
-        int n = 0;
-        if (block) {// 模拟阻塞
+        int n = socket.read(dst);
+        if (!block) {
+            log.debug("从通道 [{}] 非阻塞读取 [{}B] 字节", this, n);
+            return n;
+        }
+        if (n == 0) {// 模拟阻塞
             log.debug("模拟阻塞读取 - 从通道 [{}] 读取", this);
-            boolean timedout = false; // 是否超时
-            int keyCount = 1; // 假设通道有数据可读
-            long startTime = System.currentTimeMillis();
-            while (!timedout) {
-                if (keyCount > 0) {
-                    n = socket.read(dst);
-                    if (n != 0) {
-                        log.debug("  阻塞读取 [{}B] 字节", n);
-                        break; // -1 或者已经读到了数据
-                    }
-                }
-                // 等待读锁
-                readLatch = new CountDownLatch(1);
-                // 注册 Pooler 读事件，这里是重新声明关注读
-                poller.register(this, SelectionKey.OP_READ);
-                try {
-                    log.debug("  阻塞等待通道 [{}] 发生 [可读] 事件", this);
-                    // 阻塞等待可写
-                    readLatch.await(timeout, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException ignore) {
-                }
-
-                if (readLatch.getCount() == 0) {
-                    keyCount = 1;
-                    readLatch = null;
-                } else {// Interrupted 无数据可读，检查超时
-                    keyCount = 0;
-                    timedout = (System.currentTimeMillis() - startTime) >= timeout;
+            long timeout = getReadTimeout();
+            while (n == 0) {
+                log.debug("  阻塞等待通道 [{}] 发生 [可读] 事件", this);
+                if (!getBlockPoller().await(this, SelectionKey.OP_READ, timeout)) {
+                    throw new SocketTimeoutException();
                 }
+                n = socket.read(dst);
             }
-            if (timedout) {// 超时异常
-                throw new SocketTimeoutException();
-            }
-        } else {
-            n = socket.read(readbuff);
-            log.debug("从通道 [{}] 非阻塞读取 [{}B] 字节", this, n);
         }
-        return n;
+        log.debug("  阻塞读取 [{}B] 字节", n);
+        return n; // -1 或者已经读到了数据
     }
     /**
-     * 阻塞把响应体数据发送到客户端，重置缓冲区，以供写入
+     * 阻塞把响应体数据发送到客户端，重置缓冲区，以供写入。每次等待可写的时间不超过写超时，
+     * 只要有数据写出就重新计时
      * 
      * @throws IOException
      */
     public void flush() throws IOException {
+        if (writebuff == null) {
+            return; // 没有写入过数据
+        }
         writebuff.flip();
         if (writebuff.remaining() > 0) {
             log.debug("模拟阻塞写入 - 将响应体 [{}B] 数据写入通道 [{}]", writebuff.remaining(), this);
         }
-        while (writebuff.hasRemaining()) { // TODO 超时处理
+        long timeout = getWriteTimeout();
+        while (writebuff.hasRemaining()) {
             int n = socket.write(writebuff);
             if (n == -1) throw new EOFException();
             if (n > 0) { // write success
                 log.debug("  阻塞写入 [{}B] 字节", n);
                 continue;
             }
-            
-          writeLatch = new CountDownLatch(1);
-            // 注册 Pooler 写事件
-            poller.register(this, SelectionKey.OP_WRITE);
-            try {
-                log.debug("  阻塞等待通道 [{}] 发生 [可写] 事件", this);
-                // 阻塞等待可写
-                writeLatch.await();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            writeLatch = null;
+            awaitWritable(timeout);
         }
         writebuff.clear();
     }
-    
-    public CountDownLatch getWriteLatch() {
-        return writeLatch;
+
+    /**
+     * 非阻塞把写缓冲区中的数据发送到客户端，没有发送完的数据移动到缓冲区开头，
+     * 留在写缓冲区中等待通道可写时再次发送
+     * 
+     * @return true 已经全部发送，false 还有剩余数据
+     * @throws IOException
+     */
+    public boolean flushNonBlocking() throws IOException {
+        if (writebuff != null) {
+            writebuff.flip();
+            if (writebuff.hasRemaining()) {
+                int n = socket.write(writebuff);
+                log.debug("非阻塞写入通道 [{}] [{}B] 字节，剩余 [{}B]", this, n, writebuff.remaining());
+            }
+            writebuff.compact();
+            if (writebuff.position() > 0) {
+                return false;
+            }
+        }
+        if (sendfileData != null) {
+            // 响应头已经发送，接着发送文件
+            if (!sendfileData.transfer(socket)) {
+                log.debug("零拷贝发送文件 [{}] 到通道 [{}]，剩余 [{}B]", sendfileData.getFileName(), this, sendfileData.getRemaining());
+                return false;
+            }
+            log.debug("零拷贝发送文件 [{}] 完成", sendfileData.getFileName());
+            closeSendfile();
+        }
+        return true;
     }
 
-    public CountDownLatch getReadLatch() {
-        return readLatch;
+    /**
+     * 阻塞发送写缓冲区中的数据和要零拷贝发送的文件，直到全部发送
+     * 
+     * @throws IOException
+     */
+    public void drain() throws IOException {
+        long timeout = getWriteTimeout();
+        while (!flushNonBlocking()) {
+            awaitWritable(timeout);
+        }
     }
 
+    /** 写缓冲区中是否有未发送的数据，或者还有文件要发送 */
+    public boolean hasPendingWrite() {
+        return (writebuff != null && writebuff.position() > 0) || sendfileData != null;
+    }
+
+    /**
+     * 设置要零拷贝发送的文件，它在写缓冲区中的数据之后，由 flushNonBlocking 发送
+     */
+    public void setSendfileData(SendfileData sendfileData) {
+        closeSendfile();
+        this.sendfileData = sendfileData;
+    }
+
+    public SendfileData getSendfileData() {
+        return sendfileData;
+    }
+
+    /** 关闭并移除还没有发送完的文件 */
+    void closeSendfile() {
+        if (sendfileData != null) {
+            sendfileData.close();
+            sendfileData = null;
+        }
+    }
+
+    /**
+     * 模拟阻塞聚集写，一次系统调用把多个缓冲区的数据写入通道，直到全部写完。
+     * 响应头和响应体可以分别放在不同的缓冲区中，不用再拷贝到写缓冲区
+     * 
+     * @param srcs 待写入的缓冲区，都处于读取模式
+     * @param offset 第一个缓冲区的下标
+     * @param length 缓冲区个数
+     * @throws IOException
+     */
+    public void write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        int end = offset + length;
+        long timeout = getWriteTimeout();
+        while (offset < end) {
+            long n = socket.write(srcs, offset, end - offset);
+            // 跳过已经写完的缓冲区
+            while (offset < end && !srcs[offset].hasRemaining()) {
+                offset++;
+            }
+            if (n > 0) {
+                log.debug("  阻塞聚集写入 [{}B] 字节", n);
+                continue;
+            }
+            if (offset < end) {
+                awaitWritable(timeout);
+            }
+        }
+    }
+
+    /**
+     * 非阻塞聚集写，只调用一次 SocketChannel.write
+     * 
+     * @return 写入的字节数
+     * @throws IOException
+     */
+    public long writeNonBlocking(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        return socket.write(srcs, offset, length);
+    }
+
+    private void awaitWritable(long timeout) throws IOException {
+        log.debug("  阻塞等待通道 [{}] 发生 [可写] 事件", this);
+        if (!getBlockPoller().await(this, SelectionKey.OP_WRITE, timeout)) {
+            throw new SocketTimeoutException();
+        }
+    }
+
+    /**
+     * @throws IOException 通道还没有关联 Poller，比如测试中单独创建的通道，没有 BlockPoller 可以等待
+     */
+    private BlockPoller getBlockPoller() throws IOException {
+        if (poller == null) {
+            throw new IOException("通道 [" + this + "] 没有关联 Poller，不能阻塞等待读写");
+        }
+        return poller.getEndpoint().getBlockPoller();
+    }
+
+    private long getReadTimeout() {
+        return poller != null ? poller.getEndpoint().getReadTimeout() : DEFAULT_TIMEOUT;
+    }
+
+    private long getWriteTimeout() {
+        return poller != null ? poller.getEndpoint().getWriteTimeout() : DEFAULT_TIMEOUT;
+    }
+
+    /** 获取读缓冲区，首次使用时才借用 */
     public ByteBuffer getReadBuffer() {
+        if (readbuff == null) {
+            readbuff = allocate();
+        }
         return readbuff;
     }
 
+    /** 获取写缓冲区，首次使用时才借用 */
     public ByteBuffer getWriteBufffer() {
+        if (writebuff == null) {
+            writebuff = allocate();
+        }
         return writebuff;
     }
 
+    /**
+     * 归还读写缓冲区，连接空闲或关闭时由处理连接的线程调用，之后不能再使用之前获取的缓冲区
+     */
+    public void releaseBuffers() {
+        if (bufferPool != null) {
+            bufferPool.release(readbuff);
+            bufferPool.release(writebuff);
+        }
+        readbuff = null;
+        writebuff = null;
+    }
+
+    private ByteBuffer allocate() {
+        if (bufferPool != null) {
+            return bufferPool.allocate();
+        }
+        return ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+    }
+
+    public boolean isCloseAfterWrite() {
+        return closeAfterWrite;
+    }
+
+    public void setCloseAfterWrite(boolean closeAfterWrite) {
+        this.closeAfterWrite = closeAfterWrite;
+    }
+
+    public boolean isReadAfterWrite() {
+        return readAfterWrite;
+    }
+
+    public void setReadAfterWrite(boolean readAfterWrite) {
+        this.readAfterWrite = readAfterWrite;
+    }
+
     public int interestOps() {
         return interestOps;
     }
@@ -165,14 +326,34 @@ public class NioChannel {
         return ops;
     }
 
+    /**
+     * 更新最后访问时间，使用 Poller 的缓存时钟，不会直接修改时间轮，
+     * 通道到期时 Poller 会根据最后访问时间重新调度它
+     */
     public void access() {
-        lastAccess = System.currentTimeMillis();
+        Poller p = poller;
+        lastAccess = p != null ? p.now() : System.currentTimeMillis();
     }
 
     public long getLastAccess() {
         return lastAccess;
     }
 
+    public long getPollTimeout() {
+        return pollTimeout;
+    }
+
+    public void setPollTimeout(long pollTimeout) {
+        this.pollTimeout = pollTimeout;
+    }
+
+    TimingWheel.Timeout timer() {
+        if (timer == null) {
+            timer = new TimingWheel.Timeout(this);
+        }
+        return timer;
+    }
+
     public Poller getPoller() {
         return poller;
     }
@@ -42,6 +42,13 @@ public class NioEndpoint {
     private int port = 10393;
     private int soTimeout = 60000; // 60s
     
+    /** 长连接等待下一个请求的超时时间 */
+    private int keepAliveTimeout = 60000;
+    /** 读取不完整的请求时，等待通道可读的超时时间 */
+    private int readTimeout = 60000;
+    /** 发送响应时，等待通道可写的超时时间 */
+    private int writeTimeout = 60000;
+    
     /** 已完成 3 次握手，还没有被应用层接收的连接队列大小 */
     private int acceptCount = 100;// backlog
     
@@ -51,13 +58,31 @@ public class NioEndpoint {
 
     /* 控制总连接数的信号量 */
     private Semaphore connectionLimit;
-    private int maxConnections = 2;
+    /** 最大连接数，异步处理的请求不占用线程，但仍占用连接，-1 表示不限制 */
+    private int maxConnections = 10000;
 
-    private Poller poller;
+    /** Poller 线程数，每个 Poller 拥有自己的 Selector 和事件队列 */
+    private int pollerThreadCount = Math.min(2, Runtime.getRuntime().availableProcessors());
+    private Poller[] pollers;
+    /** 轮询分配新连接到 Poller */
+    private final AtomicInteger pollerRotater = new AtomicInteger(0);
+    
     private Acceptor acceptor;
+    /** 模拟阻塞读写专用的 Poller */
+    private BlockPoller blockPoller;
     
     private Handler handler;
     
+    /* 通道读写缓冲区对象池 */
+    private BufferPool bufferPool;
+    private int socketBufferSize = NioChannel.DEFAULT_BUFFER_SIZE;
+    private boolean useDirectBuffers = true;
+    /** 对象池中最多保留的缓冲区个数，-1 表示不限制 */
+    private int bufferPoolSize = 500;
+    
+    /** 是否支持使用 FileChannel.transferTo 零拷贝发送静态文件 */
+    private boolean useSendfile = true;
+    
     public void init() throws IOException {
         serverSock = ServerSocketChannel.open();
         serverSock.socket().bind(new InetSocketAddress(port), acceptCount);
@@ -65,6 +90,8 @@ public class NioEndpoint {
         serverSock.socket().setSoTimeout(soTimeout);
 
         connectionLimit = new Semaphore(maxConnections);
+        
+        bufferPool = new BufferPool(socketBufferSize, useDirectBuffers, bufferPoolSize);
     }
 
     public void start() throws IOException {
@@ -81,9 +108,16 @@ public class NioEndpoint {
         });
 
         // 初始化并启动 Poller 和 Acceptor 线程
-        poller = new Poller(this);
-        Thread pollerThread = new Thread(poller, "poller");
-        pollerThread.start();
+        pollers = new Poller[pollerThreadCount];
+        for (int i = 0; i < pollers.length; i++) {
+            pollers[i] = new Poller(this);
+            Thread pollerThread = new Thread(pollers[i], "poller-" + i);
+            pollerThread.start();
+        }
+
+        blockPoller = new BlockPoller();
+        Thread blockPollerThread = new Thread(blockPoller, "block-poller");
+        blockPollerThread.start();
 
         acceptor = new Acceptor(this);
         Thread acceptorThread = new Thread(acceptor, "acceptor");
@@ -94,7 +128,10 @@ public class NioEndpoint {
 
     public void stop() {
         running = false;
-        poller.destroy();
+        for (Poller poller : pollers) {
+            poller.destroy();
+        }
+        blockPoller.destroy();
         executor.shutdownNow();
     }
 
@@ -120,14 +157,47 @@ public class NioEndpoint {
         return running;
     }
 
+    /**
+     * 轮询选择一个 Poller，新连接会均匀的分配到各个 Poller 上；连接注册后，
+     * 再次声明关注事件要使用 NioChannel.getPoller()，保证在同一个 Selector 上
+     */
     public Poller getPoller() {
-        return poller;
+        int idx = Math.abs(pollerRotater.incrementAndGet() % pollers.length);
+        return pollers[idx];
+    }
+
+    public BlockPoller getBlockPoller() {
+        return blockPoller;
     }
 
     public ServerSocketChannel getServerSock() {
         return serverSock;
     }
 
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public void setSocketBufferSize(int socketBufferSize) {
+        this.socketBufferSize = socketBufferSize;
+    }
+
+    public void setUseDirectBuffers(boolean useDirectBuffers) {
+        this.useDirectBuffers = useDirectBuffers;
+    }
+
+    public void setBufferPoolSize(int bufferPoolSize) {
+        this.bufferPoolSize = bufferPoolSize;
+    }
+
+    public boolean getUseSendfile() {
+        return useSendfile;
+    }
+
+    public void setUseSendfile(boolean useSendfile) {
+        this.useSendfile = useSendfile;
+    }
+
     public ExecutorService getExecutor() {
         return executor;
     }
@@ -142,6 +212,50 @@ public class NioEndpoint {
         return soTimeout;
     }
 
+    public int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    public void setKeepAliveTimeout(int keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public int getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    public void setWriteTimeout(int writeTimeout) {
+        this.writeTimeout = writeTimeout;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /** 在 init 之前设置 */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getPollerThreadCount() {
+        return pollerThreadCount;
+    }
+
+    public void setPollerThreadCount(int pollerThreadCount) {
+        if (pollerThreadCount < 1) {
+            throw new IllegalArgumentException("pollerThreadCount must be greater than 0");
+        }
+        this.pollerThreadCount = pollerThreadCount;
+    }
+
     public void setPort(int port) {
         this.port = port;
     }
@@ -27,16 +27,23 @@ import java.util.concurrent.RejectedExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.tonwu.tomcat.net.Handler.SocketEvent;
 import net.tonwu.tomcat.net.Handler.SocketState;
 
 /**
- * 事件多路复用器，负责处理读写事件的通知，包括非阻塞和模拟阻塞，同时处理超时的通道
+ * 事件多路复用器，负责处理读写事件的通知，同时处理超时的通道；模拟阻塞由 BlockPoller 处理
  * 
  * @author tonwu.net
  */
 public class Poller implements Runnable {
     final static Logger log = LoggerFactory.getLogger(Poller.class);
 
+    /**
+     * 请求在异步处理中，通道不关注读写事件，只检查异步超时；可以和 OP_READ、OP_WRITE 组合，
+     * 等待响应式流的请求体数据或者响应体数据发送完，就绪时交给线程池继续读写
+     */
+    public static final int OP_ASYNC = 0x200;
+
     private NioEndpoint endpoint;
 
     /** 多路复用器 */
@@ -44,8 +51,56 @@ public class Poller implements Runnable {
 
     private volatile boolean close = false;
 
-    /** 检查超时的最短时间间隔 */
-    private long nextExpiration = 0;
+    /** 时间轮每格的时间跨度，也是 select 的最长阻塞时间 */
+    private static final long TICK_DURATION = 1000;
+
+    /** 管理通道超时的时间轮，只在 Poller 线程中访问 */
+    private final TimingWheel timingWheel = new TimingWheel(TICK_DURATION, 128);
+
+    /** 时间轮中的通道到期时，检查它是否真的超时 */
+    private final TimingWheel.ExpiredHandler expiredHandler = new TimingWheel.ExpiredHandler() {
+        @Override
+        public void expired(NioChannel channel) {
+            SelectionKey key = channel.ioChannel().keyFor(selector);
+            if (key == null || !key.isValid()) {
+                return; // 已经关闭
+            }
+            try {
+                if ((channel.interestOps() & OP_ASYNC) == OP_ASYNC) {
+                    // 异步请求在超时时间内没有读写数据，也没有 dispatch 或 complete
+                    long deadline = channel.getLastAccess() + channel.getPollTimeout();
+                    if (deadline > timingWheel.now()) {
+                        timingWheel.schedule(channel, deadline);
+                    } else {
+                        log.debug("通道 [{}] 异步处理超时", channel);
+                        // 可能还在等待读写，不能再由 Poller 发送写缓冲区中的数据
+                        key.interestOps(0);
+                        channel.interestOps(0);
+                        processSocket(channel, SocketEvent.TIMEOUT);
+                    }
+                } else if ((channel.interestOps() & SelectionKey.OP_READ) == SelectionKey.OP_READ
+                        || (channel.interestOps() & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
+                    // 仅仅检测当前关注读或写的通道，通道在到期前可能被访问过，此时按最后访问时间重新调度
+                    long deadline = channel.getLastAccess() + channel.getPollTimeout();
+                    if (deadline > timingWheel.now()) {
+                        timingWheel.schedule(channel, deadline);
+                    } else {
+                        log.debug("通道 [{}] 读或写超时", channel);
+                        // 超时关闭连接
+                        key.interestOps(0);
+                        channel.interestOps(0);// 移除所有关注的事件，避免重复调用？
+                        // 通道在 Poller 上等待读写，没有线程在处理它，可以直接归还缓冲区
+                        channel.releaseBuffers();
+                        cancelledKey(key);
+                    }
+                }
+                // 否则正在被线程池处理，再次声明关注事件时会重新调度
+            } catch (CancelledKeyException ckx) {
+                log.debug("", ckx);
+                cancelledKey(key);
+            }
+        }
+    };
 
     /**
      * 使用并发队列与 Acceptor 线程协作完成通道的注册，主要是因为 Acceptor 不能直 接注册到 Selector 上，可能会导致死锁
@@ -68,11 +123,11 @@ public class Poller implements Runnable {
                     // 处理通道事件队列
                     hasEvents = events();
                     // 检查是否有通道发生读或写事件
-                    keyCount = selector.select(5000);
+                    keyCount = selector.select(TICK_DURATION);
                 }
 
                 if (close) { // 处理关闭
-                    timeout(0, false);
+                    closeAll();
                     selector.close();
                     break;
                 }
@@ -95,96 +150,126 @@ public class Poller implements Runnable {
                     if (log.isDebugEnabled()) {
                         log.debug("通道 [{}] 发生 [可{}] I/O 事件，从其关注的事件中 [移除已就绪] 的事件", channel, key.isReadable() ? "读" : "写");
                     }
+                    if ((channel.interestOps() & OP_ASYNC) == OP_ASYNC) {
+                        // 异步请求等待的通道就绪，交给线程池继续读写，处理完后由 Handler 重新声明；
+                        // 同时可读写时另一个事件在重新声明后会再次就绪
+                        key.interestOps(0);
+                        channel.interestOps(0);
+                        timingWheel.cancel(channel);
+                        dispatch(key, channel, key.isReadable() ? SocketEvent.READ : SocketEvent.WRITE);
+                        iterator.remove();
+                        continue;
+                    }
                     // 在当前 Poller 上移除已就绪的事件
                     int interestOps = key.interestOps() & (~key.readyOps());
                     key.interestOps(interestOps);
                     channel.interestOps(interestOps);
-
-                    // 处理模拟阻塞
-                    if (channel.getWriteLatch() != null) {
-                        log.debug("模拟阻塞'写' - 通道 [{}] 已 [可写]", channel);
-                        channel.getWriteLatch().countDown();
-                        continue;
+                    if (interestOps == 0) {
+                        // 不再等待任何事件，移出时间轮
+                        timingWheel.cancel(channel);
                     }
-                    if (channel.getReadLatch() != null) {
-                        log.debug("模拟阻塞'读' - 通道 [{}] 已 [可读]", channel);
-                        channel.getReadLatch().countDown();
-                        continue;
-                    }
-                    
-                    if (log.isDebugEnabled()) {
-                        log.debug("提交通道 [{}] 到线程池，处理发生的 [{}] 事件", channel, key.isReadable() ? "读取" : "写入");
-                    }
-                    
-                    // 交给线程池
-                    try {
-                        endpoint.getExecutor().execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                SocketState state = endpoint.getHandler().handle(channel);
-                                if (state == SocketState.CLOSED) {
-                                    log.debug("关闭通道 [{}] 连接", channel);
-                                    cancelledKey(key);
-                                }
-                            }
-                        });
-                    } catch (RejectedExecutionException t) {
-                        log.error("提交失败，关闭通道", t);
-                        // 提交失败，关闭通道
-                        cancelledKey(key);
-                    } catch (Throwable t) {
-                        
+
+                    if (key.isWritable() && channel.hasPendingWrite()) {
+                        // 异步写，直接在 Poller 线程中非阻塞发送剩余的响应数据
+                        writePending(key, channel);
+                    } else {
+                        // 交给线程池
+                        dispatch(key, channel, SocketEvent.OPEN);
                     }
                 }
                 iterator.remove();
             }
             // 处理超时
-            timeout(keyCount, hasEvents);
+            timeout();
         }
     }
 
     /**
-     * 当满足以下条件时，才执行处理超时：<br>
-     * - select() 调用超时（表示负载不大）<br>
-     * - nextExpiration 时间已过<br>
-     * - server socket 正在关闭
-     * 
-     * @param keyCount
-     *            大于0，有 I/O 事件发生，否则没有
-     * @param hasEvents
-     *            true events队列有事件处理；false 事件队列为空
+     * 把通道提交到线程池处理指定的事件，异步处理的请求调用 dispatch 或 complete 时，
+     * 由应用线程调用，在容器线程中恢复处理
      */
-    private void timeout(int keyCount, boolean hasEvents) {
-        long now = System.currentTimeMillis();
-        if (nextExpiration > 0 && (keyCount > 0 || hasEvents) && (now < nextExpiration) && !close) {
-            // 如果处理了事件，或者小于最小间隔就不检查超时，只在空闲的时候检查
+    public void processSocket(NioChannel channel, SocketEvent event) {
+        SelectionKey key = channel.ioChannel().keyFor(selector);
+        if (key == null || !key.isValid()) {
+            log.debug("通道 [{}] 已经关闭，忽略 [{}] 事件", channel, event);
             return;
         }
-        for (SelectionKey key : selector.keys()) {
-            try {
-                NioChannel channel = (NioChannel) key.attachment();
-                if (channel == null) { // 没有附加对象，关闭连接
-                    cancelledKey(key);
-                } else if ((channel.interestOps() & SelectionKey.OP_READ) == SelectionKey.OP_READ
-                        || (channel.interestOps() & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE) {
-                    // 仅仅检测当前关注读或写的通道
-                    long delta = now - channel.getLastAccess();
-                    boolean isTimedOut = delta > endpoint.getSoTimeout();
-                    if (isTimedOut) {
-                        log.debug("通道 [{}] 读或写超时", channel);
-                        // 超时关闭连接
-                        key.interestOps(0);
-                        channel.interestOps(0);// 移除所有关注的事件，避免重复调用？
+        dispatch(key, channel, event);
+    }
+
+    /** 把发生事件的通道提交到线程池处理 */
+    private void dispatch(final SelectionKey key, final NioChannel channel, final SocketEvent event) {
+        if (log.isDebugEnabled()) {
+            if (event == SocketEvent.OPEN) {
+                log.debug("提交通道 [{}] 到线程池，处理发生的 [{}] 事件", channel, key.isReadable() ? "读取" : "写入");
+            } else {
+                log.debug("提交通道 [{}] 到线程池，处理异步请求的 [{}] 事件", channel, event);
+            }
+        }
+        
+        try {
+            endpoint.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    SocketState state = endpoint.getHandler().handle(channel, event);
+                    if (state == SocketState.CLOSED) {
+                        log.debug("关闭通道 [{}] 连接", channel);
                         cancelledKey(key);
                     }
                 }
-            } catch (CancelledKeyException ckx) {
-                log.debug("", ckx);
+            });
+        } catch (RejectedExecutionException t) {
+            log.error("提交失败，关闭通道", t);
+            // 提交失败，关闭通道
+            cancelledKey(key);
+        } catch (Throwable t) {
+            
+        }
+    }
+
+    /**
+     * 发送通道写缓冲区中剩余的响应数据，没有发送完时继续关注写事件；发送完后根据
+     * 响应是否要求关闭连接，关闭通道或者归还缓冲区并回到 keep-alive 状态。
+     * 读缓冲区中还有不完整的流水线请求时，保留缓冲区和 Processor，继续读取请求头
+     */
+    private void writePending(SelectionKey key, NioChannel channel) {
+        try {
+            if (!channel.flushNonBlocking()) {
+                register(channel, SelectionKey.OP_WRITE);
+                return;
+            }
+            log.debug("通道 [{}] 异步写完成", channel);
+            if (channel.isReadAfterWrite()) {
+                channel.setReadAfterWrite(false);
+                register(channel, SelectionKey.OP_READ);
+                return;
+            }
+            channel.releaseBuffers();
+            if (channel.isCloseAfterWrite()) {
                 cancelledKey(key);
+            } else {
+                register(channel, SelectionKey.OP_READ, endpoint.getKeepAliveTimeout());
             }
+        } catch (IOException e) {
+            log.debug("通道 [" + channel + "] 异步写失败", e);
+            channel.releaseBuffers();
+            cancelledKey(key);
+        }
+    }
+
+    /**
+     * 推进时间轮，处理已经到期的通道。每次循环都会调用，但只有经过的槽才会被检查，
+     * 所以不再需要遍历所有的 SelectionKey
+     */
+    private void timeout() {
+        timingWheel.advance(expiredHandler);
+    }
+
+    /** Poller 关闭时，关闭所有通道 */
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            cancelledKey(key);
         }
-        // 设置下一次检查的时间点
-        nextExpiration = System.currentTimeMillis() + 1000;
     }
 
     /** 关闭通道 */
@@ -192,7 +277,13 @@ public class Poller implements Runnable {
         NioChannel socket = (NioChannel) key.attach(null);
         if (socket != null) {
             // 释放连接可能占用的 Processor
-            endpoint.getHandler().release(socket);
+            boolean processing = endpoint.getHandler().release(socket);
+            // 关闭没有发送完的文件
+            socket.closeSendfile();
+            // 归还读写缓冲区；还关联着 Processor 时它可能仍在使用缓冲区，不能放回池中
+            if (!processing) {
+                socket.releaseBuffers();
+            }
             // 取消 key
             if (key.isValid())
                 key.cancel();
@@ -226,6 +317,29 @@ public class Poller implements Runnable {
      *            通道关注的事件
      */
     public void register(NioChannel channel, int interestOps) {
+        long timeout;
+        if (interestOps == SelectionKey.OP_WRITE) {
+            timeout = endpoint.getWriteTimeout();
+        } else if (interestOps == SelectionKey.OP_READ) {
+            timeout = endpoint.getReadTimeout();
+        } else { // 新连接，等待第一个请求
+            timeout = endpoint.getKeepAliveTimeout();
+        }
+        register(channel, interestOps, timeout);
+    }
+
+    /**
+     * 将通道插入协作队列中，并指定等待事件的超时时间
+     * 
+     * @param channel
+     *            待插入通道
+     * @param interestOps
+     *            通道关注的事件
+     * @param timeout
+     *            等待事件的超时时间，单位毫秒
+     */
+    public void register(NioChannel channel, int interestOps, long timeout) {
+        channel.setPollTimeout(timeout);
         // 关联 poller
         channel.setPoller(this);
         // 关联关注的事件
@@ -254,18 +368,36 @@ public class Poller implements Runnable {
                     log.debug("注册新的通道 [{}]，并声明关注 [读取] 事件", channel);
                     // 注册通道
                     sc.register(selector, SelectionKey.OP_READ, channel);
+                    channel.interestOps(SelectionKey.OP_READ);
+                    schedule(channel);
                 } catch (Exception e) {
                     log.error("新通道 [" +  channel + "] 注册失败", e);
                 }
+            } else if ((eventOps & OP_ASYNC) == OP_ASYNC) {
+                // 异步处理中，只关注响应式流等待的读写事件，在时间轮中等待超时
+                SelectionKey key = sc.keyFor(selector);
+                try {
+                    if (key != null) {
+                        key.interestOps(eventOps & (SelectionKey.OP_READ | SelectionKey.OP_WRITE));
+                        if (channel.getPollTimeout() > 0) {
+                            schedule(channel);
+                        } else {
+                            timingWheel.cancel(channel);
+                        }
+                    }
+                } catch (CancelledKeyException ckx) {
+                    cancelledKey(key);
+                }
             } else if (eventOps == SelectionKey.OP_READ || eventOps == SelectionKey.OP_WRITE) {
                 // 重新在此 Poller 上声明关注读或写事件
-                SelectionKey key = sc.keyFor(channel.getPoller().getSelector());
+                SelectionKey key = sc.keyFor(selector);
                 try {
                     if (key != null) {
                         // 将重新关注的事件合并到现有的事件集合中
                         int ops = key.interestOps() | channel.interestOps();
                         key.interestOps(ops);
                         channel.interestOps(ops);
+                        schedule(channel);
                     } else { } // The key was cancelled
                 } catch (CancelledKeyException ckx) {
                     cancelledKey(key);
@@ -275,6 +407,17 @@ public class Poller implements Runnable {
         return hasEvent;
     }
 
+    /** 从现在开始计算通道的超时时间，并放入时间轮 */
+    private void schedule(NioChannel channel) {
+        channel.access();
+        timingWheel.schedule(channel, channel.getLastAccess() + channel.getPollTimeout());
+    }
+
+    /** Poller 的缓存时钟，每次循环更新一次 */
+    public long now() {
+        return timingWheel.now();
+    }
+
     public Selector getSelector() {
         return selector;
     }
@@ -15,6 +15,7 @@
  */
 package net.tonwu.tomcat.net;
 
+import net.tonwu.tomcat.net.Handler.SocketEvent;
 import net.tonwu.tomcat.net.Handler.SocketState;
 
 /**
@@ -24,6 +25,34 @@ import net.tonwu.tomcat.net.Handler.SocketState;
  */
 public interface Processor {
 
-    SocketState process(NioChannel socket);
+    /**
+     * 处理通道上的请求
+     * 
+     * @param socket 通道
+     * @param event OPEN 表示通道发生了读写事件，其他表示恢复异步处理的请求
+     */
+    SocketState process(NioChannel socket, SocketEvent event);
+
+    /**
+     * @return 是否有请求在异步处理中
+     */
+    boolean isAsync();
+
+    /**
+     * @return 异步请求当前等待的超时时间，单位毫秒，小于等于 0 表示不超时；等待通道读写时
+     *         应该有超时，否则停止读写的客户端会一直占用连接
+     */
+    long getAsyncTimeout();
+
+    /**
+     * @return 异步处理中等待的通道事件，OP_READ 或 OP_WRITE 的组合，比如响应式流的请求体
+     *         暂时没有数据、响应体数据还没有发送完；0 表示只等待恢复或者超时
+     */
+    int getAsyncInterestOps();
+
+    /**
+     * 回收处理器，重置内部状态，以便 Handler 把它放回对象池中处理其他连接
+     */
+    void recycle();
 
 }
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.net;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 使用零拷贝发送的文件区域，由 FileChannel.transferTo 直接传输到 SocketChannel，
+ * 文件数据不用再经过用户空间的缓冲区
+ *
+ * @author tonwu.net
+ */
+public class SendfileData {
+    /** 文件的绝对路径 */
+    private final String fileName;
+    /** 下一个要发送的字节在文件中的位置 */
+    private long pos;
+    /** 剩余要发送的字节数 */
+    private long remaining;
+
+    private FileChannel fileChannel;
+
+    /**
+     * @param fileName 文件的绝对路径
+     * @param pos 起始位置
+     * @param length 要发送的字节数
+     */
+    public SendfileData(String fileName, long pos, long length) {
+        this.fileName = fileName;
+        this.pos = pos;
+        this.remaining = length;
+    }
+
+    /**
+     * 非阻塞把文件数据传输到通道，直到全部发送或者通道暂时不可写
+     *
+     * @param socket 目标通道
+     * @return true 已经全部发送，false 还有剩余数据，要等待通道可写
+     * @throws IOException
+     */
+    boolean transfer(SocketChannel socket) throws IOException {
+        if (fileChannel == null) {
+            fileChannel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        }
+        while (remaining > 0) {
+            long n = fileChannel.transferTo(pos, remaining, socket);
+            if (n <= 0) {
+                if (pos >= fileChannel.size()) {
+                    throw new EOFException("文件 [" + fileName + "] 在发送时被截断");
+                }
+                return false;
+            }
+            pos += n;
+            remaining -= n;
+        }
+        return true;
+    }
+
+    /** 关闭文件 */
+    void close() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException ignore) {
+            }
+            fileChannel = null;
+        }
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getRemaining() {
+        return remaining;
+    }
+}
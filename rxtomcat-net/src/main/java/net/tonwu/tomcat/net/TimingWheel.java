@@ -0,0 +1,186 @@
+/**
+ * Copyright 2019 tonwu.net - 顿悟源码
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.tonwu.tomcat.net;
+
+/**
+ * 哈希时间轮，管理通道的 keep-alive、读和写超时。
+ * <p>
+ * 时间轮由 ticksPerWheel 个槽组成，每个槽是一个双向链表，每 tickDuration 毫秒前进一格，
+ * 通道按截止时间散列到对应的槽中，添加、移动和删除都是 O(1) 的。前进时只检查当前槽
+ * 中的通道，截止时间超过一圈的通道会留在槽中等待下一圈。
+ * <p>
+ * 时间轮只在所属的 Poller 线程中访问，不需要同步；它同时维护一个粗粒度的缓存时钟，
+ * 每次 Poller 循环更新一次，其他线程可以读取它来避免频繁调用 System.currentTimeMillis()
+ *
+ * @author tonwu.net
+ */
+public class TimingWheel {
+
+    /** 每个槽的时间跨度，单位毫秒 */
+    private final long tickDuration;
+
+    /** 槽数组，每个元素是一个双向链表的哨兵节点 */
+    private final Timeout[] wheel;
+    private final int mask;
+
+    /** 已经处理过的最后一个 tick */
+    private long tick;
+
+    /** 粗粒度的缓存时钟 */
+    private volatile long now;
+
+    /** 时间轮中的通道数 */
+    private int size;
+
+    /**
+     * @param tickDuration 每个槽的时间跨度，单位毫秒
+     * @param ticksPerWheel 槽的个数，会向上取整为 2 的幂
+     */
+    public TimingWheel(long tickDuration, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0");
+        }
+        int n = 1;
+        while (n < ticksPerWheel) {
+            n <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        wheel = new Timeout[n];
+        for (int i = 0; i < n; i++) {
+            Timeout head = new Timeout(null);
+            head.prev = head.next = head;
+            wheel[i] = head;
+        }
+        mask = n - 1;
+        now = System.currentTimeMillis();
+        tick = now / tickDuration;
+    }
+
+    /** 获取缓存时钟的当前时间 */
+    public long now() {
+        return now;
+    }
+
+    /** 更新缓存时钟 */
+    public long updateTime() {
+        now = System.currentTimeMillis();
+        return now;
+    }
+
+    /**
+     * 在指定的截止时间调度通道，如果通道已经在时间轮中，会把它移动到新的槽
+     *
+     * @param channel 通道
+     * @param deadline 截止时间，单位毫秒
+     */
+    public void schedule(NioChannel channel, long deadline) {
+        Timeout timeout = channel.timer();
+        if (timeout.isLinked()) {
+            unlink(timeout);
+        }
+        timeout.deadline = deadline;
+        // 已经过期的放到下一个要处理的槽中
+        long t = Math.max(deadline / tickDuration, tick + 1);
+        Timeout head = wheel[(int) (t & mask)];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+        size++;
+    }
+
+    /**
+     * 从时间轮中移除通道
+     *
+     * @param channel 通道
+     */
+    public void cancel(NioChannel channel) {
+        Timeout timeout = channel.timer();
+        if (timeout.isLinked()) {
+            unlink(timeout);
+        }
+    }
+
+    /**
+     * 更新时钟并前进到当前时间，依次处理经过的每个槽，回调已经到期的通道。
+     * 到期的通道在回调前已经从时间轮中移除，回调中可以再次调度它
+     *
+     * @param expiredHandler 到期回调
+     */
+    public void advance(ExpiredHandler expiredHandler) {
+        advance(System.currentTimeMillis(), expiredHandler);
+    }
+
+    /**
+     * 前进到指定的时间，测试时用来代替系统时钟
+     *
+     * @param currentTime 当前时间，单位毫秒
+     * @param expiredHandler 到期回调
+     */
+    void advance(long currentTime, ExpiredHandler expiredHandler) {
+        now = currentTime;
+        long current = currentTime / tickDuration;
+        // 最多转一圈，每个槽都会被检查到
+        long from = Math.max(tick + 1, current - mask);
+        for (long t = from; t <= current; t++) {
+            // 回调中再次调度的通道，最早会放到下一个槽中
+            tick = t;
+            Timeout head = wheel[(int) (t & mask)];
+            long limit = (t + 1) * tickDuration;
+            Timeout timeout = head.next;
+            while (timeout != head) {
+                Timeout next = timeout.next;
+                if (timeout.deadline < limit) {
+                    unlink(timeout);
+                    expiredHandler.expired(timeout.channel);
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void unlink(Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+        size--;
+    }
+
+    /** 通道超时回调 */
+    public interface ExpiredHandler {
+        void expired(NioChannel channel);
+    }
+
+    /** 时间轮中的节点，每个通道持有一个 */
+    public static final class Timeout {
+        private final NioChannel channel;
+        private long deadline;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(NioChannel channel) {
+            this.channel = channel;
+        }
+
+        boolean isLinked() {
+            return next != null;
+        }
+    }
+}
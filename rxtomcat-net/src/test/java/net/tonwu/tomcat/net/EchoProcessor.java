@@ -22,6 +22,7 @@ import java.nio.channels.SelectionKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.tonwu.tomcat.net.Handler.SocketEvent;
 import net.tonwu.tomcat.net.Handler.SocketState;
 
 /**
@@ -63,7 +64,7 @@ public class EchoProcessor implements Processor {
     private int pos;
 
     @Override
-    public SocketState process(NioChannel ioChannel) {
+    public SocketState process(NioChannel ioChannel, SocketEvent event) {
         SelectionKey key = ioChannel.ioChannel().keyFor(ioChannel.getPoller().getSelector());
         try {
             if (key.isReadable()) {
@@ -118,4 +119,24 @@ public class EchoProcessor implements Processor {
         }
         return SocketState.CLOSED;
     }
+
+    @Override
+    public void recycle() {
+        pos = 0;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return false;
+    }
+
+    @Override
+    public long getAsyncTimeout() {
+        return -1;
+    }
+
+    @Override
+    public int getAsyncInterestOps() {
+        return 0;
+    }
 }
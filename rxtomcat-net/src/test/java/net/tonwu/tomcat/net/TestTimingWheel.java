@@ -0,0 +1,44 @@
+package net.tonwu.tomcat.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestTimingWheel {
+
+    @Test
+    public void expire() {
+        TimingWheel wheel = new TimingWheel(10, 8); // 一圈 80ms
+        final List<NioChannel> expired = new ArrayList<>();
+        TimingWheel.ExpiredHandler handler = new TimingWheel.ExpiredHandler() {
+            @Override
+            public void expired(NioChannel channel) {
+                expired.add(channel);
+            }
+        };
+
+        NioChannel soon = new NioChannel(null);
+        NioChannel later = new NioChannel(null); // 超过一圈
+        NioChannel cancelled = new NioChannel(null);
+        long now = wheel.now();
+        wheel.schedule(soon, now + 20);
+        wheel.schedule(later, now + 200);
+        wheel.schedule(cancelled, now + 20);
+        wheel.cancel(cancelled);
+        Assert.assertEquals(2, wheel.size());
+
+        // 直接指定时间前进，不依赖 sleep 的精度
+        wheel.advance(now + 60, handler);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertSame(soon, expired.get(0));
+
+        // 重新调度会移动到新的槽
+        wheel.schedule(later, wheel.now() + 20);
+        wheel.advance(now + 120, handler);
+        Assert.assertEquals(2, expired.size());
+        Assert.assertSame(later, expired.get(1));
+        Assert.assertEquals(0, wheel.size());
+    }
+}